@@ -0,0 +1,90 @@
+package weka.classifiers.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.classifiers.sk.KNNTeacher;
+import weka.core.Instances;
+
+/**
+ * Time to score all of segment-test with KNNTeacher trained on
+ * segment-challenge, one instance at a time and as a batch spread over a
+ * number of threads. The batch time should drop in proportion to the threads
+ * up to the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchScoringBenchmark
+{
+	/** The number of threads scoring the batch. */
+	@Param({ "1", "2", "4", "8" })
+	public int numThreads;
+
+	/** The test instances. */
+	private Instances m_Test;
+
+	/** The classifier. */
+	private KNNTeacher m_Model;
+
+	/**
+	 * Builds KNNTeacher on segment-challenge.
+	 *
+	 * @exception Exception
+	 *                if the data can't be loaded or the model built
+	 */
+	@Setup
+	public void setup() throws Exception
+	{
+		m_Test = Datasets.load("segment-test");
+		m_Model = new KNNTeacher();
+		m_Model.buildClassifier(Datasets.load("segment-challenge"));
+		m_Model.setNumThreads(numThreads);
+	}
+
+	/**
+	 * Scores segment-test with distributionsForInstances().
+	 *
+	 * @return the class distributions
+	 * @exception Exception
+	 *                if an instance can't be scored
+	 */
+	@Benchmark
+	public double[][] distributionsForInstances() throws Exception
+	{
+		return m_Model.distributionsForInstances(m_Test);
+	}
+
+	/**
+	 * Scores segment-test with distributionForInstance(), for comparison.
+	 *
+	 * @return the class distributions
+	 * @exception Exception
+	 *                if an instance can't be scored
+	 */
+	@Benchmark
+	public double[][] distributionForInstance() throws Exception
+	{
+		double[][] distributions = new double[m_Test.numInstances()][];
+		for (int i = 0; i < m_Test.numInstances(); i++)
+		{
+			distributions[i] = m_Model.distributionForInstance(m_Test
+					.instance(i));
+		}
+		return distributions;
+	}
+}
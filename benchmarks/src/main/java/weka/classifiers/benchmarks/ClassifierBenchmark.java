@@ -0,0 +1,131 @@
+package weka.classifiers.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * Throughput of buildClassifier and distributionForInstance of every
+ * classifier on the nominal datasets, which all of them handle. A build
+ * trains on the whole dataset, a prediction scores the next of its instances.
+ * <p>
+ * Run with the allocation rates of the gc profiler, from the repository:
+ *
+ * <pre>
+ * mvn -B package
+ * java -jar benchmarks/target/benchmarks.jar ClassifierBenchmark -prof gc
+ * </pre>
+ *
+ * or through main(), which adds the gc profiler itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassifierBenchmark
+{
+	/** The classifier, relative to weka.classifiers. */
+	@Param({ "sk.HoeffdingId3", "sk.Id3_LeafKNND2", "sk.Id3_LeafNB",
+			"sk.Id3_NG", "sk.Id3_avg", "sk.Id3_splitA", "sk.Id3_splitAOverAvg",
+			"sk.K1NN", "sk.KNNTeacher", "sk.KNN_ChebyshevDistance",
+			"sk.KNN_EuclidDistance", "sk.KNN_K", "sk.KNN_Manhattan", "sk.KNN_NB",
+			"sk.KNN_WNB", "sk.KNN_Weight1subD", "sk.KNN_WeightD",
+			"sk.KNN_WeightD2", "sk.NB", "sk.id3_LeafKNN", "teacher.ID3",
+			"teacher.KNN", "teacher.NB" })
+	public String classifier;
+
+	/** The dataset. */
+	@Param({ "zoo", "breast-cancer" })
+	public String dataset;
+
+	/** The training and test instances. */
+	private Instances m_Data;
+
+	/** The classifier built on m_Data, for the predictions. */
+	private Classifier m_Model;
+
+	/** The instance to score next. */
+	private int m_Next;
+
+	/**
+	 * Loads the dataset and builds the model to predict with.
+	 *
+	 * @exception Exception
+	 *                if the data can't be loaded or the model built
+	 */
+	@Setup
+	public void setup() throws Exception
+	{
+		Datasets.silence();
+		m_Data = Datasets.load(dataset);
+		m_Model = Datasets.newClassifier(classifier);
+		m_Model.buildClassifier(m_Data);
+	}
+
+	/**
+	 * Builds a new classifier on the dataset.
+	 *
+	 * @return the classifier
+	 * @exception Exception
+	 *                if the classifier can't be built
+	 */
+	@Benchmark
+	public Classifier buildClassifier() throws Exception
+	{
+		Classifier model = Datasets.newClassifier(classifier);
+		model.buildClassifier(m_Data);
+		return model;
+	}
+
+	/**
+	 * Scores the next instance of the dataset.
+	 *
+	 * @return the class distribution
+	 * @exception Exception
+	 *                if the instance can't be scored
+	 */
+	@Benchmark
+	public double[] distributionForInstance() throws Exception
+	{
+		if (m_Next == m_Data.numInstances())
+		{
+			m_Next = 0;
+		}
+		return m_Model.distributionForInstance(m_Data.instance(m_Next++));
+	}
+
+	/**
+	 * Runs the benchmarks of this class with the gc profiler.
+	 *
+	 * @param args
+	 *            ignored
+	 * @exception Exception
+	 *                if the benchmarks fail to run
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+				.include(ClassifierBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
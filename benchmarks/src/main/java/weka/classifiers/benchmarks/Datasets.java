@@ -0,0 +1,114 @@
+package weka.classifiers.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * Loads the ARFF files bundled with the repository for the benchmarks. The
+ * files are looked up in the nominal and the numeric data directories under
+ * the directory given by the system property weka.data, by default the
+ * repository, found from the working directory.
+ */
+public class Datasets
+{
+	/** The nominal and the numeric data directories, relative to the repository. */
+	private static final String[] DIRECTORIES = {
+			"ID3\u79bb\u6563\u578b\u6570\u636e",
+			"KNN\u7684\u6d4b\u8bd5\u6570\u636e/\u5206\u7c7b\u5c5e\u6027\u4e0d\u8fde\u7eed" };
+
+	/**
+	 * Loads a dataset, with the last attribute as the class. Instances with
+	 * missing values are removed, since the Id3 trees refuse to classify them.
+	 *
+	 * @param name
+	 *            the name of the ARFF file without extension
+	 * @return the instances
+	 * @exception Exception
+	 *                if the file can't be found or read
+	 */
+	public static Instances load(String name) throws Exception
+	{
+		File file = find(name + ".arff");
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		Instances data;
+		try
+		{
+			data = new Instances(reader);
+		} finally
+		{
+			reader.close();
+		}
+		data.setClassIndex(data.numAttributes() - 1);
+		for (int i = data.numInstances() - 1; i >= 0; i--)
+		{
+			if (data.instance(i).hasMissingValue())
+			{
+				data.delete(i);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Finds an ARFF file in the data directories.
+	 */
+	private static File find(String fileName) throws Exception
+	{
+		String root = System.getProperty("weka.data");
+		String[] roots = root != null ? new String[] { root } : new String[] {
+				".", ".." };
+		for (int r = 0; r < roots.length; r++)
+		{
+			for (int d = 0; d < DIRECTORIES.length; d++)
+			{
+				File file = new File(new File(roots[r], DIRECTORIES[d]), fileName);
+				if (file.isFile())
+				{
+					return file;
+				}
+			}
+		}
+		throw new Exception("Can't find " + fileName
+				+ ", set -Dweka.data to the repository directory.");
+	}
+
+	/**
+	 * Creates a classifier by name.
+	 *
+	 * @param name
+	 *            the class name relative to weka.classifiers
+	 * @return the classifier
+	 * @exception Exception
+	 *                if the classifier can't be created
+	 */
+	public static Classifier newClassifier(String name) throws Exception
+	{
+		return (Classifier) Class.forName("weka.classifiers." + name)
+				.getConstructor().newInstance();
+	}
+
+	/**
+	 * Discards what the classifiers print to System.out.
+	 */
+	public static void silence()
+	{
+		System.setOut(new PrintStream(new OutputStream()
+		{
+			public void write(int b)
+			{
+			}
+
+			public void write(byte[] b, int off, int len)
+			{
+			}
+		}));
+	}
+}
@@ -0,0 +1,80 @@
+package weka.classifiers.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.classifiers.sk.KNN_K;
+import weka.core.Instances;
+
+/**
+ * Per-query latency of KNN_K against the size of its training set. KNN_K
+ * chooses k by leave-one-out once while building, so a query costs one scan
+ * of the training set and the latency grows linearly with its size, not with
+ * its square as when k was chosen on every query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KNN_KBenchmark
+{
+	/** The number of segment-challenge instances to train on. */
+	@Param({ "150", "300", "600", "1200" })
+	public int trainSize;
+
+	/** The test instances. */
+	private Instances m_Test;
+
+	/** The classifier. */
+	private KNN_K m_Model;
+
+	/** The test instance to score next. */
+	private int m_Next;
+
+	/**
+	 * Builds KNN_K on the first trainSize instances of segment-challenge.
+	 *
+	 * @exception Exception
+	 *                if the data can't be loaded or the model built
+	 */
+	@Setup
+	public void setup() throws Exception
+	{
+		Instances data = Datasets.load("segment-challenge");
+		Instances train = new Instances(data, 0, Math.min(trainSize, data
+				.numInstances()));
+		m_Test = Datasets.load("segment-test");
+		m_Model = new KNN_K();
+		m_Model.buildClassifier(train);
+	}
+
+	/**
+	 * Scores the next instance of segment-test.
+	 *
+	 * @return the class distribution
+	 * @exception Exception
+	 *                if the instance can't be scored
+	 */
+	@Benchmark
+	public double[] distributionForInstance() throws Exception
+	{
+		if (m_Next == m_Test.numInstances())
+		{
+			m_Next = 0;
+		}
+		return m_Model.distributionForInstance(m_Test.instance(m_Next++));
+	}
+}
@@ -0,0 +1,105 @@
+package weka.classifiers.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * Throughput of buildClassifier and distributionForInstance of the KNN
+ * classifiers that handle numeric attributes, on the numeric datasets. The
+ * segment data is trained on segment-challenge and scored on segment-test,
+ * iris and ionosphere are scored on their training instances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumericKNNBenchmark
+{
+	/** The classifier, relative to weka.classifiers. */
+	@Param({ "sk.K1NN", "sk.KNNTeacher", "sk.KNN_ChebyshevDistance",
+			"sk.KNN_EuclidDistance", "sk.KNN_K", "sk.KNN_Manhattan",
+			"sk.KNN_Weight1subD", "sk.KNN_WeightD", "sk.KNN_WeightD2",
+			"teacher.KNN" })
+	public String classifier;
+
+	/** The training dataset. */
+	@Param({ "ionosphere", "iris", "segment-challenge" })
+	public String dataset;
+
+	/** The training instances. */
+	private Instances m_Train;
+
+	/** The test instances. */
+	private Instances m_Test;
+
+	/** The classifier built on m_Train, for the predictions. */
+	private Classifier m_Model;
+
+	/** The test instance to score next. */
+	private int m_Next;
+
+	/**
+	 * Loads the datasets and builds the model to predict with.
+	 *
+	 * @exception Exception
+	 *                if the data can't be loaded or the model built
+	 */
+	@Setup
+	public void setup() throws Exception
+	{
+		Datasets.silence();
+		m_Train = Datasets.load(dataset);
+		m_Test = dataset.endsWith("-challenge") ? Datasets.load(dataset
+				.replace("-challenge", "-test")) : m_Train;
+		m_Model = Datasets.newClassifier(classifier);
+		m_Model.buildClassifier(m_Train);
+	}
+
+	/**
+	 * Builds a new classifier on the training dataset.
+	 *
+	 * @return the classifier
+	 * @exception Exception
+	 *                if the classifier can't be built
+	 */
+	@Benchmark
+	public Classifier buildClassifier() throws Exception
+	{
+		Classifier model = Datasets.newClassifier(classifier);
+		model.buildClassifier(m_Train);
+		return model;
+	}
+
+	/**
+	 * Scores the next test instance.
+	 *
+	 * @return the class distribution
+	 * @exception Exception
+	 *                if the instance can't be scored
+	 */
+	@Benchmark
+	public double[] distributionForInstance() throws Exception
+	{
+		if (m_Next == m_Test.numInstances())
+		{
+			m_Next = 0;
+		}
+		return m_Model.distributionForInstance(m_Test.instance(m_Next++));
+	}
+}
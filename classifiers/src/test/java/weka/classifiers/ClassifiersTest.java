@@ -0,0 +1,165 @@
+package weka.classifiers;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import weka.classifiers.common.TestData;
+import weka.core.Instances;
+
+/**
+ * Tests properties all classifiers of weka.classifiers.sk and
+ * weka.classifiers.teacher share: serialized, updated or off-heap models
+ * predict what the plain model does.
+ */
+public class ClassifiersTest
+{
+	/** The classifiers, relative to weka.classifiers. */
+	private static final String[] CLASSIFIERS = { "sk.HoeffdingId3",
+			"sk.Id3_LeafKNND2", "sk.Id3_LeafNB", "sk.Id3_NG", "sk.Id3_avg",
+			"sk.Id3_splitA", "sk.Id3_splitAOverAvg", "sk.K1NN", "sk.KNNTeacher",
+			"sk.KNN_ChebyshevDistance", "sk.KNN_EuclidDistance", "sk.KNN_K",
+			"sk.KNN_Manhattan", "sk.KNN_NB", "sk.KNN_WNB", "sk.KNN_Weight1subD",
+			"sk.KNN_WeightD", "sk.KNN_WeightD2", "sk.NB", "sk.id3_LeafKNN",
+			"teacher.ID3", "teacher.KNN", "teacher.NB" };
+
+	/**
+	 * The updateable classifiers whose model does not depend on the
+	 * instances given to buildClassifier(). KNN_K chooses k and K1NN fixes
+	 * its attribute ranges when built.
+	 */
+	private static final String[] UPDATEABLE = { "sk.HoeffdingId3",
+			"sk.KNNTeacher", "sk.KNN_ChebyshevDistance", "sk.KNN_EuclidDistance",
+			"sk.KNN_Manhattan", "sk.KNN_NB", "sk.KNN_WNB", "sk.KNN_Weight1subD",
+			"sk.KNN_WeightD", "sk.KNN_WeightD2", "sk.NB", "teacher.KNN",
+			"teacher.NB" };
+
+	/** The classifiers that can keep their training instances off the heap. */
+	private static final String[] OFF_HEAP = { "sk.KNNTeacher",
+			"sk.KNN_ChebyshevDistance", "sk.KNN_EuclidDistance",
+			"sk.KNN_Manhattan", "sk.KNN_Weight1subD", "sk.KNN_WeightD",
+			"sk.KNN_WeightD2", "teacher.KNN" };
+
+	/** The classifiers comparing numeric attributes by their difference. */
+	private static final String[] NUMERIC = { "sk.K1NN",
+			"sk.KNN_ChebyshevDistance", "sk.KNN_EuclidDistance", "sk.KNN_K",
+			"sk.KNN_Manhattan" };
+
+	/** The tolerance for sums taken in another order. */
+	private static final double DELTA = 1e-12;
+
+	/** A deserialized classifier predicts what the original does. */
+	@Test
+	public void serializationKeepsPredictions() throws Exception
+	{
+		for (String name : CLASSIFIERS)
+		{
+			Classifier classifier = create(name);
+			Instances[] data = data(name);
+			classifier.buildClassifier(data[0]);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(classifier);
+			out.close();
+			Classifier copy = (Classifier) new ObjectInputStream(
+					new ByteArrayInputStream(bytes.toByteArray())).readObject();
+			check(name, classifier, copy, data[1], 0);
+		}
+	}
+
+	/**
+	 * A classifier built on part of the data and updated with the rest
+	 * predicts what one built on all of it does.
+	 */
+	@Test
+	public void updatingMatchesBuilding() throws Exception
+	{
+		for (String name : UPDATEABLE)
+		{
+			Classifier built = create(name);
+			Instances[] data = data(name);
+			built.buildClassifier(data[0]);
+
+			Classifier updated = create(name);
+			int start = data[0].numInstances() / 7;
+			updated.buildClassifier(new Instances(data[0], 0, start));
+			for (int i = start; i < data[0].numInstances(); i++)
+			{
+				((UpdateableClassifier) updated).updateClassifier(data[0]
+						.instance(i));
+			}
+			check(name, built, updated, data[1], DELTA);
+		}
+	}
+
+	/** A classifier keeping its instances off the heap predicts the same. */
+	@Test
+	public void offHeapMatchesOnHeap() throws Exception
+	{
+		for (String name : OFF_HEAP)
+		{
+			Classifier onHeap = create(name);
+			Instances[] data = data(name);
+			onHeap.buildClassifier(data[0]);
+
+			Classifier offHeap = create(name);
+			offHeap.getClass().getMethod("setOffHeap", boolean.class).invoke(
+					offHeap, true);
+			offHeap.buildClassifier(data[0]);
+			check(name, onHeap, offHeap, data[1], DELTA);
+
+			for (int i = 0; i < data[1].numInstances(); i++)
+			{
+				((UpdateableClassifier) onHeap).updateClassifier(data[1]
+						.instance(i));
+				((UpdateableClassifier) offHeap).updateClassifier(data[1]
+						.instance(i));
+			}
+			check(name, onHeap, offHeap, data[0], DELTA);
+		}
+	}
+
+	/**
+	 * Creates a classifier.
+	 */
+	private static Classifier create(String name) throws Exception
+	{
+		return (Classifier) Class.forName("weka.classifiers." + name)
+				.newInstance();
+	}
+
+	/**
+	 * Makes training and test data for a classifier. Only the KNN classifiers
+	 * measuring numeric distances get numeric attributes, the others treat
+	 * every attribute as nominal.
+	 */
+	private static Instances[] data(String name)
+	{
+		if (Arrays.asList(NUMERIC).contains(name))
+			return new Instances[] { TestData.mixed(300, 3, 3, 3, 1),
+					TestData.mixed(100, 3, 3, 3, 2) };
+		return new Instances[] { TestData.nominal(300, 5, 3, 3, 3),
+				TestData.nominal(100, 5, 3, 3, 4) };
+	}
+
+	/**
+	 * Checks that two classifiers give the same distributions.
+	 */
+	private static void check(String name, Classifier expected,
+			Classifier actual, Instances test, double delta) throws Exception
+	{
+		for (int i = 0; i < test.numInstances(); i++)
+		{
+			assertArrayEquals(name + ", instance " + i,
+					expected.distributionForInstance(test.instance(i)),
+					actual.distributionForInstance(test.instance(i)), delta);
+		}
+	}
+}
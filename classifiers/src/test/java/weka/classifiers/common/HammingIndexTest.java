@@ -0,0 +1,133 @@
+package weka.classifiers.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Tests HammingIndex against a scan counting mismatching attributes.
+ */
+public class HammingIndexTest
+{
+	/** The number of neighbours searched. */
+	private static final int K = 5;
+
+	/** Plain, grouped and off-heap indices find the same neighbours. */
+	@Test
+	public void findsNearestNeighbors()
+	{
+		// few attributes and values, so that many rows are identical
+		Instances train = TestData.nominal(400, 4, 3, 3, 1);
+		Instances test = TestData.nominal(50, 4, 3, 3, 2);
+		int[] rows = new int[train.numInstances()];
+		for (int i = 0; i < rows.length; i++)
+		{
+			rows[i] = i;
+		}
+		boolean[][] configs = { { false, false }, { true, false },
+				{ false, true } };
+		for (boolean[] config : configs)
+		{
+			HammingIndex index = new HammingIndex(train, config[0], 0, config[1]);
+			check(index, train, rows, test);
+		}
+	}
+
+	/** An index with a window only searches the latest instances. */
+	@Test
+	public void searchesWindow()
+	{
+		Instances data = TestData.nominal(300, 5, 3, 2, 3);
+		Instances test = TestData.nominal(30, 5, 3, 2, 4);
+		int windowSize = 64;
+		for (boolean offHeap : new boolean[] { false, true })
+		{
+			HammingIndex index = new HammingIndex(new Instances(data, 0,
+					windowSize), true, windowSize, offHeap);
+			int[] rows = new int[windowSize];
+			for (int i = 0; i < windowSize; i++)
+			{
+				rows[i] = i;
+			}
+			for (int i = windowSize; i < data.numInstances(); i++)
+			{
+				rows[index.add(data.instance(i))] = i;
+				if (i % 50 == 0)
+					check(index, data, rows, test);
+			}
+			assertEquals(windowSize, index.numInstances());
+			check(index, data, rows, test);
+		}
+	}
+
+	/** Instances added to an index are found like the initial ones. */
+	@Test
+	public void findsAddedInstances()
+	{
+		Instances data = TestData.nominal(200, 4, 3, 2, 5);
+		Instances test = TestData.nominal(30, 4, 3, 2, 6);
+		for (boolean group : new boolean[] { false, true })
+		{
+			HammingIndex index = new HammingIndex(new Instances(data, 0, 20),
+					group);
+			int[] rows = new int[data.numInstances()];
+			for (int i = 0; i < rows.length; i++)
+			{
+				rows[i] = i < 20 ? i : index.add(data.instance(i));
+				assertEquals(i, rows[i]);
+			}
+			check(index, data, rows, test);
+		}
+	}
+
+	/**
+	 * Checks the neighbours of each test instance, one at a time and in a
+	 * batch. Row r of the index holds instance rows[r] of the data.
+	 */
+	private static void check(HammingIndex index, Instances data, int[] rows,
+			Instances test)
+	{
+		long[][] queries = new long[test.numInstances()][];
+		NeighborHeap[] batch = new NeighborHeap[test.numInstances()];
+		for (int q = 0; q < test.numInstances(); q++)
+		{
+			queries[q] = index.encode(test.instance(q));
+			batch[q] = new NeighborHeap(K);
+		}
+		index.nearestNeighbors(queries, batch, queries.length);
+		NeighborHeap heap = new NeighborHeap(K);
+		for (int q = 0; q < test.numInstances(); q++)
+		{
+			Instance query = test.instance(q);
+			double[] distances = new double[index.numInstances()];
+			for (int r = 0; r < distances.length; r++)
+			{
+				distances[r] = mismatches(query, data.instance(rows[r]));
+				assertEquals(distances[r], index.distance(queries[q], r), 0);
+			}
+			Set<Integer> expected = TestData.nearest(distances, K);
+			index.nearestNeighbors(queries[q], heap);
+			assertEquals(expected, TestData.indices(heap));
+			assertEquals(expected, TestData.indices(batch[q]));
+		}
+	}
+
+	/**
+	 * Counts the attributes, class excluded, two instances differ on.
+	 */
+	private static int mismatches(Instance first, Instance second)
+	{
+		int count = 0;
+		for (int i = 0; i < first.numAttributes(); i++)
+		{
+			if (i != first.classIndex() && first.value(i) != second.value(i))
+				count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,125 @@
+package weka.classifiers.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests NeighborHeap.
+ */
+public class NeighborHeapTest
+{
+	/** All neighbours at the k-th distance are kept. */
+	@Test
+	public void keepsTiesAtKthDistance()
+	{
+		NeighborHeap heap = new NeighborHeap(2);
+		assertTrue(heap.offer(1, 0));
+		assertTrue(heap.offer(2, 1));
+		assertTrue(heap.offer(2, 2));
+		assertTrue(heap.offer(2, 3));
+		assertEquals(4, heap.size());
+		assertEquals(2, heap.kthDistance(), 0);
+		assertFalse(heap.offer(3, 4));
+		assertEquals(4, heap.size());
+	}
+
+	/** The group at the k-th distance goes once k neighbours are closer. */
+	@Test
+	public void evictsTiedGroup()
+	{
+		NeighborHeap heap = new NeighborHeap(2);
+		heap.offer(3, 0);
+		heap.offer(3, 1);
+		heap.offer(3, 2);
+		assertTrue(heap.offer(1, 3));
+		// one neighbour is closer, so the tied ones are still second
+		assertEquals(4, heap.size());
+		assertEquals(3, heap.kthDistance(), 0);
+		assertTrue(heap.offer(2, 4));
+		assertEquals(2, heap.size());
+		assertEquals(2, heap.kthDistance(), 0);
+		assertEquals(new TreeSet<Integer>(Arrays.asList(3, 4)),
+				TestData.indices(heap));
+	}
+
+	/** NaN distances count as farther than all others. */
+	@Test
+	public void ordersNaNLast()
+	{
+		NeighborHeap heap = new NeighborHeap(2);
+		assertTrue(heap.offer(Double.NaN, 0));
+		assertTrue(heap.offer(Double.NaN, 1));
+		assertTrue(heap.offer(Double.NaN, 2));
+		assertEquals(3, heap.size());
+		assertTrue(heap.offer(5, 3));
+		assertEquals(4, heap.size());
+		assertTrue(Double.isNaN(heap.kthDistance()));
+		assertTrue(heap.offer(Double.POSITIVE_INFINITY, 4));
+		assertEquals(2, heap.size());
+		assertFalse(heap.offer(Double.NaN, 5));
+		assertTrue(heap.offer(1, 6));
+		assertEquals(2, heap.size());
+		assertEquals(5, heap.kthDistance(), 0);
+
+		heap.sort();
+		assertEquals(1, heap.distance(0), 0);
+		assertEquals(5, heap.distance(1), 0);
+	}
+
+	/** A cleared heap starts over, with a new k if given. */
+	@Test
+	public void clearsForNextQuery()
+	{
+		NeighborHeap heap = new NeighborHeap(1);
+		heap.offer(1, 0);
+		heap.clear(3);
+		assertTrue(heap.isEmpty());
+		assertEquals(3, heap.getK());
+		heap.offer(5, 1);
+		heap.offer(4, 2);
+		assertFalse(heap.isFull());
+		heap.offer(6, 3);
+		assertTrue(heap.isFull());
+		assertEquals(6, heap.kthDistance(), 0);
+	}
+
+	/** The heap keeps what a sort of all candidates gives. */
+	@Test
+	public void matchesSortedCandidates()
+	{
+		Random random = new Random(1);
+		NeighborHeap heap = new NeighborHeap(1);
+		for (int trial = 0; trial < 200; trial++)
+		{
+			int k = 1 + random.nextInt(10);
+			double[] distances = new double[random.nextInt(60)];
+			heap.clear(k);
+			for (int i = 0; i < distances.length; i++)
+			{
+				// one value in twelve stands for a missing one
+				distances[i] = random.nextInt(12);
+				if (distances[i] == 11)
+					distances[i] = Double.NaN;
+				heap.offer(distances[i], i);
+			}
+			assertEquals(TestData.nearest(distances, k), TestData.indices(heap));
+
+			double[] sorted = distances.clone();
+			Arrays.sort(sorted);
+			heap.sort();
+			for (int i = 0; i < heap.size(); i++)
+			{
+				assertEquals(sorted[i], heap.distance(i), 0);
+				assertEquals(distances[heap.index(i)], heap.distance(i), 0);
+				assertTrue(i < k || Double.compare(sorted[i], sorted[k - 1]) == 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package weka.classifiers.common;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Generates small random data sets for the tests. Numeric values are whole
+ * numbers from a narrow range, so that distances are exact and many of them
+ * tie.
+ */
+public class TestData
+{
+	/** The numeric values are drawn from 0 up to this, exclusive. */
+	public static final int NUMERIC_RANGE = 8;
+
+	/**
+	 * Generates numeric attributes and a nominal class, the last attribute.
+	 *
+	 * @param numInstances
+	 *            the number of instances
+	 * @param numAttributes
+	 *            the number of attributes, class excluded
+	 * @param numClasses
+	 *            the number of class values
+	 * @param seed
+	 *            the seed of the random values
+	 * @return the data
+	 */
+	public static Instances numeric(int numInstances, int numAttributes,
+			int numClasses, long seed)
+	{
+		return generate(numInstances, 0, 0, numAttributes, numClasses, seed);
+	}
+
+	/**
+	 * Generates nominal attributes and a nominal class, the last attribute.
+	 *
+	 * @param numInstances
+	 *            the number of instances
+	 * @param numAttributes
+	 *            the number of attributes, class excluded
+	 * @param numValues
+	 *            the number of values of each attribute
+	 * @param numClasses
+	 *            the number of class values
+	 * @param seed
+	 *            the seed of the random values
+	 * @return the data
+	 */
+	public static Instances nominal(int numInstances, int numAttributes,
+			int numValues, int numClasses, long seed)
+	{
+		return generate(numInstances, numAttributes, numValues, 0, numClasses,
+				seed);
+	}
+
+	/**
+	 * Generates nominal attributes followed by numeric ones and a nominal
+	 * class, the last attribute.
+	 *
+	 * @param numInstances
+	 *            the number of instances
+	 * @param numNominal
+	 *            the number of nominal attributes
+	 * @param numNumeric
+	 *            the number of numeric attributes
+	 * @param numClasses
+	 *            the number of class values
+	 * @param seed
+	 *            the seed of the random values
+	 * @return the data
+	 */
+	public static Instances mixed(int numInstances, int numNominal,
+			int numNumeric, int numClasses, long seed)
+	{
+		return generate(numInstances, numNominal, 3, numNumeric, numClasses,
+				seed);
+	}
+
+	/**
+	 * Copies data and blanks some of its numeric values.
+	 *
+	 * @param data
+	 *            the data
+	 * @param fraction
+	 *            the fraction of numeric values to blank
+	 * @param seed
+	 *            the seed of the choice
+	 * @return the copy with missing values
+	 */
+	public static Instances withMissing(Instances data, double fraction,
+			long seed)
+	{
+		Instances copy = new Instances(data);
+		Random random = new Random(seed);
+		for (int n = 0; n < copy.numInstances(); n++)
+		{
+			for (int i = 0; i < copy.numAttributes(); i++)
+			{
+				if (copy.attribute(i).isNumeric() && random.nextDouble() < fraction)
+					copy.instance(n).setMissing(i);
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Generates the data. The class mostly follows the first attribute, so
+	 * that the trees have something to learn.
+	 */
+	private static Instances generate(int numInstances, int numNominal,
+			int numValues, int numNumeric, int numClasses, long seed)
+	{
+		FastVector atts = new FastVector();
+		for (int i = 0; i < numNominal; i++)
+		{
+			atts.addElement(new Attribute("n" + i, values("v", numValues)));
+		}
+		for (int i = 0; i < numNumeric; i++)
+		{
+			atts.addElement(new Attribute("x" + i));
+		}
+		atts.addElement(new Attribute("class", values("c", numClasses)));
+		Instances data = new Instances("test", atts, numInstances);
+		data.setClassIndex(data.numAttributes() - 1);
+
+		Random random = new Random(seed);
+		for (int n = 0; n < numInstances; n++)
+		{
+			double[] values = new double[data.numAttributes()];
+			for (int i = 0; i < numNominal; i++)
+			{
+				values[i] = random.nextInt(numValues);
+			}
+			for (int i = numNominal; i < numNominal + numNumeric; i++)
+			{
+				values[i] = random.nextInt(NUMERIC_RANGE);
+			}
+			values[values.length - 1] = random.nextInt(4) > 0 ? (int) values[0]
+					% numClasses : random.nextInt(numClasses);
+			data.add(new Instance(1, values));
+		}
+		return data;
+	}
+
+	/**
+	 * Makes the values of a nominal attribute.
+	 */
+	private static FastVector values(String prefix, int numValues)
+	{
+		FastVector values = new FastVector();
+		for (int i = 0; i < numValues; i++)
+		{
+			values.addElement(prefix + i);
+		}
+		return values;
+	}
+
+	/**
+	 * Lists the positions of the k smallest distances and of all ties with
+	 * the k-th one, the neighbours a search should find. Distances are
+	 * ordered as by Double.compare(), NaN last.
+	 *
+	 * @param distances
+	 *            the distances of all candidates
+	 * @param k
+	 *            the number of neighbours
+	 * @return the positions
+	 */
+	public static Set<Integer> nearest(double[] distances, int k)
+	{
+		double[] sorted = distances.clone();
+		Arrays.sort(sorted);
+		Set<Integer> nearest = new TreeSet<Integer>();
+		for (int i = 0; i < distances.length; i++)
+		{
+			if (Double.compare(distances[i], sorted[Math.min(k, sorted.length) - 1]) <= 0)
+				nearest.add(i);
+		}
+		return nearest;
+	}
+
+	/**
+	 * Collects the indices held by a heap.
+	 *
+	 * @param heap
+	 *            the heap
+	 * @return the indices
+	 */
+	public static Set<Integer> indices(NeighborHeap heap)
+	{
+		Set<Integer> indices = new TreeSet<Integer>();
+		for (int i = 0; i < heap.size(); i++)
+		{
+			indices.add(heap.index(i));
+		}
+		return indices;
+	}
+}
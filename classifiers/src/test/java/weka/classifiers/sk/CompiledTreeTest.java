@@ -0,0 +1,100 @@
+package weka.classifiers.sk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.reflect.Field;
+
+import org.junit.Test;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.common.TestData;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Tests that the flat and the compiled trees of the ID3 classifiers predict
+ * what their object trees do.
+ */
+public class CompiledTreeTest
+{
+	/** The ID3 classifiers keeping their object tree. */
+	private static final Class<?>[] CLASSIFIERS = { Id3_splitA.class,
+			Id3_NG.class, Id3_avg.class, Id3_splitAOverAvg.class };
+
+	/** The flat tree predicts what the object tree does. */
+	@Test
+	public void flatTreeMatchesObjectTree() throws Exception
+	{
+		Instances train = TestData.nominal(600, 6, 3, 3, 1);
+		Instances test = TestData.nominal(200, 6, 3, 3, 2);
+		for (Class<?> type : CLASSIFIERS)
+		{
+			Classifier classifier = (Classifier) type.newInstance();
+			classifier.buildClassifier(train);
+			check(classifier, test);
+		}
+	}
+
+	/** The compiled tree predicts what the object tree does. */
+	@Test
+	public void compiledTreeMatchesObjectTree() throws Exception
+	{
+		Instances train = TestData.nominal(600, 6, 3, 3, 3);
+		Instances test = TestData.nominal(200, 6, 3, 3, 4);
+		for (Class<?> type : CLASSIFIERS)
+		{
+			Classifier classifier = (Classifier) type.newInstance();
+			type.getMethod("setCompile", boolean.class).invoke(classifier, true);
+			classifier.buildClassifier(train);
+			// compiling needs a JDK
+			assumeTrue(type.getMethod("getCompiledTree").invoke(classifier) != null);
+			check(classifier, test);
+		}
+	}
+
+	/**
+	 * Checks the predictions of a classifier against a walk of its object
+	 * tree.
+	 */
+	private static void check(Classifier classifier, Instances test)
+			throws Exception
+	{
+		for (int i = 0; i < test.numInstances(); i++)
+		{
+			Instance instance = test.instance(i);
+			Object leaf = leaf(classifier, instance);
+			assertArrayEquals((double[]) get(leaf, "m_Distribution"),
+					classifier.distributionForInstance(instance), 0);
+			assertEquals(((Double) get(leaf, "m_ClassValue")).doubleValue(),
+					classifier.classifyInstance(instance), 0);
+		}
+	}
+
+	/**
+	 * Follows an instance down the object tree to its leaf.
+	 */
+	private static Object leaf(Object node, Instance instance) throws Exception
+	{
+		while (true)
+		{
+			Attribute attribute = (Attribute) get(node, "m_Attribute");
+			if (attribute == null)
+				return node;
+			Object[] successors = (Object[]) get(node, "m_Successors");
+			node = successors[(int) instance.value(attribute)];
+		}
+	}
+
+	/**
+	 * Reads a private field of a tree node.
+	 */
+	private static Object get(Object node, String name) throws Exception
+	{
+		Field field = node.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(node);
+	}
+}
@@ -0,0 +1,202 @@
+package weka.classifiers.sk;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import weka.classifiers.common.NeighborHeap;
+import weka.classifiers.common.TestData;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * Tests KDTree and BallTree against a scan of all training instances.
+ */
+public class NeighborIndexTest
+{
+	/** The metrics of the trees. */
+	private static final int[] METRICS = { KDTree.METRIC_EUCLID,
+			KDTree.METRIC_MANHATTAN, KDTree.METRIC_CHEBYSHEV };
+
+	/** The number of neighbours searched. */
+	private static final int K = 7;
+
+	/** A KD-tree finds the neighbours a scan finds, on and off the heap. */
+	@Test
+	public void kdTreeMatchesScan()
+	{
+		for (Instances train : trainingSets())
+		{
+			Instances test = testSet(train);
+			for (int metric : METRICS)
+			{
+				for (int leafSize : new int[] { 1, KDTree.DEFAULT_MAX_LEAF_SIZE })
+				{
+					check(new KDTree(train, metric, leafSize, false), metric,
+							train, test);
+					check(new KDTree(train, metric, leafSize, true), metric,
+							train, test);
+				}
+			}
+		}
+	}
+
+	/** A ball tree finds the neighbours a scan finds. */
+	@Test
+	public void ballTreeMatchesScan()
+	{
+		for (Instances train : trainingSets())
+		{
+			Instances test = testSet(train);
+			for (int metric : METRICS)
+			{
+				for (int leafSize : new int[] { 1, BallTree.DEFAULT_MAX_LEAF_SIZE })
+				{
+					check(new BallTree(train, metric, leafSize), metric, train,
+							test);
+				}
+			}
+		}
+	}
+
+	/** Instances added to a tree are found like the initial ones. */
+	@Test
+	public void findsAddedInstances()
+	{
+		for (Instances train : trainingSets())
+		{
+			Instances test = testSet(train);
+			Instances start = new Instances(train, 0, 20);
+			for (int metric : METRICS)
+			{
+				NeighborIndex[] trees = { new KDTree(start, metric, 4, false),
+						new KDTree(start, metric, 4, true),
+						new BallTree(start, metric, 4) };
+				for (NeighborIndex tree : trees)
+				{
+					for (int i = 20; i < train.numInstances(); i++)
+					{
+						assertEquals(i, tree.add(train.instance(i)));
+					}
+					check(tree, metric, train, test);
+				}
+			}
+		}
+	}
+
+	/**
+	 * With missing values, the trees find the neighbours a scan finds under
+	 * distances leaving out the attributes either instance misses, and no
+	 * more than k plus ties.
+	 */
+	@Test
+	public void skipsMissingValues()
+	{
+		for (Instances complete : trainingSets())
+		{
+			Instances train = TestData.withMissing(complete, 0.1, 3);
+			Instances test = TestData.withMissing(testSet(train), 0.1, 4);
+			Instances start = new Instances(train, 0, 20);
+			for (int metric : METRICS)
+			{
+				NeighborIndex[] built = { new KDTree(train, metric, 4, false),
+						new KDTree(train, metric, 4, true),
+						new BallTree(train, metric, 4) };
+				NeighborIndex[] updated = { new KDTree(start, metric, 4, false),
+						new KDTree(start, metric, 4, true),
+						new BallTree(start, metric, 4) };
+				for (int t = 0; t < built.length; t++)
+				{
+					for (int i = 20; i < train.numInstances(); i++)
+					{
+						updated[t].add(train.instance(i));
+					}
+					check(built[t], metric, train, test);
+					check(updated[t], metric, train, test);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes numeric and mixed training sets.
+	 */
+	private static Instances[] trainingSets()
+	{
+		return new Instances[] { TestData.numeric(300, 4, 3, 1),
+				TestData.mixed(300, 2, 3, 3, 2) };
+	}
+
+	/**
+	 * Makes test instances with the same attributes as the training ones.
+	 */
+	private static Instances testSet(Instances train)
+	{
+		int numNominal = 0;
+		for (int i = 0; i < train.classIndex(); i++)
+		{
+			if (train.attribute(i).isNominal())
+				numNominal++;
+		}
+		return TestData.mixed(40, numNominal, train.classIndex() - numNominal,
+				train.numClasses(), 99);
+	}
+
+	/**
+	 * Checks the neighbours a tree finds for each test instance.
+	 */
+	private static void check(NeighborIndex tree, int metric, Instances train,
+			Instances test)
+	{
+		NeighborHeap heap = new NeighborHeap(K);
+		for (int q = 0; q < test.numInstances(); q++)
+		{
+			double[] query = test.instance(q).toDoubleArray();
+			double[] distances = new double[train.numInstances()];
+			for (int i = 0; i < distances.length; i++)
+			{
+				distances[i] = distance(metric, train, query, train.instance(i)
+						.toDoubleArray());
+			}
+			tree.nearestNeighbors(query, heap);
+			assertEquals(TestData.nearest(distances, K), TestData.indices(heap));
+			for (int i = 0; i < heap.size(); i++)
+			{
+				assertEquals(distances[heap.index(i)], heap.distance(i), 0);
+			}
+		}
+	}
+
+	/**
+	 * Computes the distance the trees are meant to use: the number of
+	 * differing nominal attributes plus the distance on the numeric ones
+	 * neither instance misses.
+	 */
+	private static double distance(int metric, Instances data, double[] first,
+			double[] second)
+	{
+		double mismatches = 0, numeric = 0;
+		for (int i = 0; i < data.numAttributes(); i++)
+		{
+			if (i == data.classIndex())
+				continue;
+			if (data.attribute(i).type() == Attribute.NOMINAL)
+			{
+				if (first[i] != second[i])
+					mismatches++;
+				continue;
+			}
+			if (Double.isNaN(first[i]) || Double.isNaN(second[i]))
+				continue;
+			double diff = Math.abs(first[i] - second[i]);
+			if (metric == KDTree.METRIC_EUCLID)
+				numeric += diff * diff;
+			else if (metric == KDTree.METRIC_MANHATTAN)
+				numeric += diff;
+			else
+				numeric = Math.max(numeric, diff);
+		}
+		return mismatches
+				+ (metric == KDTree.METRIC_EUCLID ? Math.sqrt(numeric) : numeric);
+	}
+}
@@ -0,0 +1,282 @@
+package weka.classifiers.common;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Reads the rows of a dense ARFF file one at a time into a caller's array of
+ * values, coded as in an Instance: the index of a nominal value, the number
+ * of a numeric one, and Instance.missingValue() for a missing one. The header
+ * is parsed by Weka into an empty set of instances, the rows are parsed here
+ * from one reused character buffer, so reading a row creates no Instance and,
+ * for nominal attributes, no objects at all. Training from the stream thus
+ * takes memory independent of the number of rows.
+ * <p>
+ * Only nominal and numeric attributes are read. Sparse rows and instance
+ * weights are not supported.
+ */
+public class ArffStream
+{
+	/** The size of the input buffer. */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** The reader the rows are read from. */
+	private Reader m_Reader;
+
+	/** The structure of the rows, without instances. */
+	private Instances m_Structure;
+
+	/** The characters of each value of each nominal attribute, else null. */
+	private char[][][] m_Values;
+
+	/** The input buffer. */
+	private char[] m_Buffer = new char[BUFFER_SIZE];
+
+	/** The position of the next character in the input buffer. */
+	private int m_Position;
+
+	/** The number of characters in the input buffer. */
+	private int m_Limit;
+
+	/** The current line, reused for every line. */
+	private char[] m_Line = new char[256];
+
+	/** The number of the current line, for error messages. */
+	private int m_LineNumber;
+
+	/**
+	 * Reads the header of an ARFF file. The last attribute is the class.
+	 *
+	 * @param reader
+	 *            the reader, positioned at the start of the file
+	 * @exception IOException
+	 *                if the header can't be read or has other attributes than
+	 *                nominal and numeric ones
+	 */
+	public ArffStream(Reader reader) throws IOException
+	{
+		m_Reader = reader;
+		StringBuffer header = new StringBuffer();
+		int length;
+		while ((length = readLine()) >= 0)
+		{
+			String line = new String(m_Line, 0, length);
+			if (line.trim().toLowerCase().startsWith(Instances.ARFF_DATA))
+				break;
+			header.append(line).append('\n');
+		}
+		if (length < 0)
+		{
+			throw new IOException("No " + Instances.ARFF_DATA
+					+ " section in ARFF file");
+		}
+		header.append(Instances.ARFF_DATA).append('\n');
+		m_Structure = new Instances(new StringReader(header.toString()));
+		m_Structure.setClassIndex(m_Structure.numAttributes() - 1);
+
+		m_Values = new char[m_Structure.numAttributes()][][];
+		for (int i = 0; i < m_Values.length; i++)
+		{
+			Attribute attribute = m_Structure.attribute(i);
+			if (attribute.isNominal())
+			{
+				m_Values[i] = new char[attribute.numValues()][];
+				for (int j = 0; j < attribute.numValues(); j++)
+				{
+					m_Values[i][j] = attribute.value(j).toCharArray();
+				}
+			} else if (!attribute.isNumeric())
+			{
+				throw new IOException("Attribute " + attribute.name()
+						+ " is neither nominal nor numeric");
+			}
+		}
+	}
+
+	/**
+	 * Gets the structure of the rows, an empty set of instances whose class
+	 * index may be changed before reading.
+	 *
+	 * @return the structure
+	 */
+	public Instances getStructure()
+	{
+		return m_Structure;
+	}
+
+	/**
+	 * Reads the next row.
+	 *
+	 * @param values
+	 *            receives the values, one per attribute
+	 * @return false if there are no more rows
+	 * @exception IOException
+	 *                if the row can't be read or parsed
+	 */
+	public boolean next(double[] values) throws IOException
+	{
+		int length;
+		int start;
+		do
+		{
+			length = readLine();
+			if (length < 0)
+				return false;
+			start = skipSpaces(0, length);
+		} while (start == length || m_Line[start] == '%');
+		if (m_Line[start] == '{')
+		{
+			throw new IOException("Sparse rows are not supported, line "
+					+ m_LineNumber);
+		}
+		int pos = start;
+		for (int i = 0; i < values.length; i++)
+		{
+			if (pos > length)
+			{
+				throw new IOException("Too few values, line " + m_LineNumber);
+			}
+			pos = skipSpaces(pos, length);
+			int end;
+			int next;
+			if (pos < length && (m_Line[pos] == '\'' || m_Line[pos] == '"'))
+			{
+				// quoted, up to the closing quote
+				char quote = m_Line[pos++];
+				end = pos;
+				while (end < length && m_Line[end] != quote)
+					end++;
+				if (end == length)
+				{
+					throw new IOException("Unterminated quote, line " + m_LineNumber);
+				}
+				next = end + 1;
+				while (next < length && m_Line[next] != ',')
+					next++;
+			} else
+			{
+				next = pos;
+				while (next < length && m_Line[next] != ',')
+					next++;
+				end = next;
+				while (end > pos && m_Line[end - 1] <= ' ')
+					end--;
+			}
+			values[i] = parse(i, pos, end);
+			pos = next + 1;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the underlying reader.
+	 *
+	 * @exception IOException
+	 *                if closing fails
+	 */
+	public void close() throws IOException
+	{
+		m_Reader.close();
+	}
+
+	/**
+	 * Parses the value of an attribute from m_Line[start..end).
+	 */
+	private double parse(int att, int start, int end) throws IOException
+	{
+		if (end - start == 1 && m_Line[start] == '?')
+		{
+			return Instance.missingValue();
+		}
+		char[][] values = m_Values[att];
+		if (values == null)
+		{
+			try
+			{
+				return Double.parseDouble(new String(m_Line, start, end - start));
+			} catch (NumberFormatException e)
+			{
+				throw new IOException("Number expected, line " + m_LineNumber);
+			}
+		}
+		for (int j = 0; j < values.length; j++)
+		{
+			if (equals(values[j], start, end))
+			{
+				return j;
+			}
+		}
+		throw new IOException("Nominal value "
+				+ new String(m_Line, start, end - start)
+				+ " not declared in header, line " + m_LineNumber);
+	}
+
+	/**
+	 * Tells whether m_Line[start..end) holds the given characters.
+	 */
+	private boolean equals(char[] value, int start, int end)
+	{
+		if (value.length != end - start)
+			return false;
+		for (int k = 0; k < value.length; k++)
+		{
+			if (value[k] != m_Line[start + k])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the first position from the given one that is not white space.
+	 */
+	private int skipSpaces(int pos, int length)
+	{
+		while (pos < length && m_Line[pos] <= ' ')
+			pos++;
+		return pos;
+	}
+
+	/**
+	 * Reads the next line into m_Line, without its line terminator.
+	 *
+	 * @return the length of the line, -1 at the end of the input
+	 */
+	private int readLine() throws IOException
+	{
+		int length = 0;
+		while (true)
+		{
+			if (m_Position == m_Limit)
+			{
+				m_Limit = m_Reader.read(m_Buffer, 0, m_Buffer.length);
+				m_Position = 0;
+				if (m_Limit <= 0)
+				{
+					m_Limit = 0;
+					if (length == 0)
+						return -1;
+					break;
+				}
+			}
+			char c = m_Buffer[m_Position++];
+			if (c == '\n')
+				break;
+			if (length == m_Line.length)
+			{
+				char[] line = new char[2 * length];
+				System.arraycopy(m_Line, 0, line, 0, length);
+				m_Line = line;
+			}
+			m_Line[length++] = c;
+		}
+		if (length > 0 && m_Line[length - 1] == '\r')
+			length--;
+		m_LineNumber++;
+		return length;
+	}
+}
@@ -0,0 +1,271 @@
+package weka.classifiers.common;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import weka.core.Instances;
+
+/**
+ * A binary file holding a set of instances the way ColumnarInstances codes
+ * them, so that training sets are converted from ARFF once and afterwards
+ * loaded without parsing text. The file holds, big-endian:
+ *
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * int     the length of the header in bytes
+ * byte[]  the ARFF header, UTF-8, with the nominal values of every attribute
+ * int     the class index
+ * int     the number of instances n
+ * then, each starting at a multiple of 8 bytes, one column per attribute in
+ * order, the class last: n bytes, shorts or ints for a nominal attribute
+ * depending on its number of values, n doubles for a numeric attribute, and
+ * n ints of class values
+ * </pre>
+ *
+ * The loader maps the file and copies each column from the mapping with one
+ * bulk read, so loading is bound by paging the file in, and the page cache is
+ * shared by every JVM that loads the same file.
+ * <p>
+ * Nominal values are coded by their integer part, so a missing nominal value
+ * is saved as the first value of its attribute, as the classifiers treat it.
+ * Instances with a missing class are not saved, since the classifiers remove
+ * them before training.
+ */
+public class ColumnarFile
+{
+	/** The first int of a columnar file. */
+	public static final int MAGIC = 0x57434F4C;
+
+	/** The version of the file format. */
+	public static final int VERSION = 1;
+
+	/** The extension of columnar files. */
+	public static final String FILE_EXTENSION = ".columns";
+
+	/**
+	 * Saves a set of instances.
+	 *
+	 * @param data
+	 *            the instances, with the class index set
+	 * @param file
+	 *            the file to write
+	 * @exception IOException
+	 *                if the file can't be written
+	 */
+	public static void write(Instances data, File file) throws IOException
+	{
+		data = new Instances(data);
+		data.deleteWithMissingClass();
+		ColumnarInstances columns = new ColumnarInstances(data);
+		int n = columns.numInstances();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try
+		{
+			byte[] header = new Instances(data, 0).toString().getBytes("UTF-8");
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(header.length);
+			out.write(header);
+			out.writeInt(data.classIndex());
+			out.writeInt(n);
+			for (int i = 0; i < data.numAttributes(); i++)
+			{
+				if (i == data.classIndex())
+					continue;
+				pad(out);
+				if (columns.isNominal(i))
+				{
+					int numValues = data.attribute(i).numValues();
+					for (int row = 0; row < n; row++)
+					{
+						int value = columns.nominalValue(i, row);
+						if (numValues <= ColumnarInstances.MAX_BYTE_VALUES)
+							out.writeByte(value);
+						else if (numValues <= ColumnarInstances.MAX_SHORT_VALUES)
+							out.writeShort(value);
+						else
+							out.writeInt(value);
+					}
+				} else if (columns.numericColumn(i) != null)
+				{
+					double[] values = columns.numericColumn(i);
+					for (int row = 0; row < n; row++)
+					{
+						out.writeDouble(values[row]);
+					}
+				}
+			}
+			pad(out);
+			int[] classValues = columns.classValues();
+			for (int row = 0; row < n; row++)
+			{
+				out.writeInt(classValues[row]);
+			}
+		} finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads a columnar file.
+	 *
+	 * @param file
+	 *            the file, written by write()
+	 * @return the coded instances
+	 * @exception IOException
+	 *                if the file can't be read or is not a columnar file
+	 */
+	public static ColumnarInstances load(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+			{
+				throw new IOException(file + " is larger than 2GB");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+			if (buffer.getInt() != MAGIC)
+			{
+				throw new IOException(file + " is not a columnar file");
+			}
+			if (buffer.getInt() != VERSION)
+			{
+				throw new IOException(file + " has an unknown version");
+			}
+			byte[] text = new byte[buffer.getInt()];
+			buffer.get(text);
+			Instances header = new Instances(new StringReader(new String(text,
+					"UTF-8")));
+			header.setClassIndex(buffer.getInt());
+			int n = buffer.getInt();
+
+			int numAttributes = header.numAttributes();
+			byte[][] byteColumns = new byte[numAttributes][];
+			short[][] shortColumns = new short[numAttributes][];
+			int[][] intColumns = new int[numAttributes][];
+			double[][] numericColumns = new double[numAttributes][];
+			for (int i = 0; i < numAttributes; i++)
+			{
+				if (i == header.classIndex())
+					continue;
+				align(buffer);
+				if (header.attribute(i).isNominal())
+				{
+					int numValues = header.attribute(i).numValues();
+					if (numValues <= ColumnarInstances.MAX_BYTE_VALUES)
+					{
+						byteColumns[i] = new byte[n];
+						buffer.get(byteColumns[i]);
+					} else if (numValues <= ColumnarInstances.MAX_SHORT_VALUES)
+					{
+						shortColumns[i] = new short[n];
+						buffer.asShortBuffer().get(shortColumns[i]);
+						skip(buffer, 2 * n);
+					} else
+					{
+						intColumns[i] = new int[n];
+						buffer.asIntBuffer().get(intColumns[i]);
+						skip(buffer, 4 * n);
+					}
+				} else if (header.attribute(i).isNumeric())
+				{
+					numericColumns[i] = new double[n];
+					buffer.asDoubleBuffer().get(numericColumns[i]);
+					skip(buffer, 8 * n);
+				}
+			}
+			align(buffer);
+			int[] classValues = new int[n];
+			buffer.asIntBuffer().get(classValues);
+			return new ColumnarInstances(header, n, byteColumns, shortColumns,
+					intColumns, numericColumns, classValues);
+		} finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Pads the output to a multiple of 8 bytes.
+	 */
+	private static void pad(DataOutputStream out) throws IOException
+	{
+		while (out.size() % 8 != 0)
+		{
+			out.writeByte(0);
+		}
+	}
+
+	/**
+	 * Moves the buffer to the next multiple of 8 bytes.
+	 */
+	private static void align(ByteBuffer buffer)
+	{
+		buffer.position((buffer.position() + 7) & ~7);
+	}
+
+	/**
+	 * Moves the buffer past a column read through a view.
+	 */
+	private static void skip(ByteBuffer buffer, int bytes)
+	{
+		buffer.position(buffer.position() + bytes);
+	}
+
+	/**
+	 * Converts an ARFF file into a columnar file, with the last attribute as
+	 * the class.
+	 *
+	 * @param args
+	 *            the ARFF file and the columnar file, by default the ARFF
+	 *            file with FILE_EXTENSION
+	 */
+	public static void main(String[] args)
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: ColumnarFile <arff file> [<columnar file>]");
+			return;
+		}
+		try
+		{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(args[0]), "UTF-8"));
+			Instances data;
+			try
+			{
+				data = new Instances(reader);
+			} finally
+			{
+				reader.close();
+			}
+			data.setClassIndex(data.numAttributes() - 1);
+			String target = args.length > 1 ? args[1] : args[0].replaceFirst(
+					"\\.arff$", "") + FILE_EXTENSION;
+			write(data, new File(target));
+			System.out.println("Wrote " + data.numInstances() + " instances to "
+					+ target);
+		} catch (Exception e)
+		{
+			System.err.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,515 @@
+package weka.classifiers.common;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A compact, column-wise copy of a set of instances, for training and scoring
+ * without going through Instance. Nominal attributes are stored as byte
+ * columns, short columns if they have more than 256 values or int columns if
+ * they have more than 65536, numeric attributes as double columns and the
+ * class as an int column.
+ * <p>
+ * A tree builder keeps one array of row indices for the whole tree. Every node
+ * owns a contiguous range of it, and splitting a node partitions that range in
+ * place by the values of the split attribute, so building a tree takes O(n)
+ * memory however deep it grows. Nominal values are coded by their integer
+ * part, so a missing value is coded like the first value of its attribute, as
+ * the classifiers always treated it. Missing numeric values stay NaN.
+ * <p>
+ * Instances can be appended with add(). The columns grow by doubling, so they
+ * may be longer than numInstances().
+ * <p>
+ * The columns can be saved to and loaded from a binary file with
+ * ColumnarFile, in which case the instances are only kept as columns. They
+ * are saved along with the classifiers that keep them.
+ */
+public class ColumnarInstances implements Serializable
+{
+	private static final long serialVersionUID = 5179352706143498829L;
+
+	/** The largest number of values a byte column holds. */
+	static final int MAX_BYTE_VALUES = 1 << 8;
+
+	/** The largest number of values a short column holds. */
+	static final int MAX_SHORT_VALUES = 1 << 16;
+
+	/**
+	 * The instances the columns were taken from, or only their structure if
+	 * the columns were loaded from a file.
+	 */
+	private Instances m_Data;
+
+	/** The nominal attributes with at most 256 values, null for others. */
+	private byte[][] m_ByteColumns;
+
+	/** The nominal attributes with more values, null for others. */
+	private short[][] m_ShortColumns;
+
+	/** The nominal attributes with more than 65536 values, null for others. */
+	private int[][] m_IntColumns;
+
+	/** The numeric attributes, null for others. */
+	private double[][] m_NumericColumns;
+
+	/** The coded class values. */
+	private int[] m_ClassValues;
+
+	/** The number of coded instances. */
+	private int m_NumInstances;
+
+	/**
+	 * Scratch space for partitioning, a node only uses its own range so
+	 * disjoint ranges can be partitioned independently. Not saved, it is
+	 * allocated again when the columns are read.
+	 */
+	private transient int[] m_Scratch;
+
+	/**
+	 * Codes the given instances.
+	 *
+	 * @param data
+	 *            the instances
+	 */
+	public ColumnarInstances(Instances data)
+	{
+		m_Data = data;
+		int numInstances = data.numInstances();
+		int numAttributes = data.numAttributes();
+		m_ByteColumns = new byte[numAttributes][];
+		m_ShortColumns = new short[numAttributes][];
+		m_IntColumns = new int[numAttributes][];
+		m_NumericColumns = new double[numAttributes][];
+		for (int i = 0; i < numAttributes; i++)
+		{
+			if (i == data.classIndex())
+				continue;
+			Attribute att = data.attribute(i);
+			if (att.isNominal())
+			{
+				if (att.numValues() <= MAX_BYTE_VALUES)
+					m_ByteColumns[i] = new byte[numInstances];
+				else if (att.numValues() <= MAX_SHORT_VALUES)
+					m_ShortColumns[i] = new short[numInstances];
+				else
+					m_IntColumns[i] = new int[numInstances];
+			} else if (att.isNumeric())
+			{
+				m_NumericColumns[i] = new double[numInstances];
+			}
+		}
+		m_ClassValues = new int[numInstances];
+		for (int k = 0; k < numInstances; k++)
+		{
+			set(k, data.instance(k));
+		}
+		m_NumInstances = numInstances;
+		m_Scratch = new int[numInstances];
+	}
+
+	/**
+	 * Wraps columns read from a file. Every attribute but the class has the
+	 * column of its type, the others are null.
+	 *
+	 * @param header
+	 *            the structure of the instances, with the class index set
+	 * @param numInstances
+	 *            the number of instances
+	 * @param byteColumns
+	 *            the nominal attributes with at most 256 values
+	 * @param shortColumns
+	 *            the nominal attributes with at most 65536 values
+	 * @param intColumns
+	 *            the nominal attributes with more values
+	 * @param numericColumns
+	 *            the numeric attributes
+	 * @param classValues
+	 *            the coded class values
+	 */
+	ColumnarInstances(Instances header, int numInstances,
+			byte[][] byteColumns, short[][] shortColumns, int[][] intColumns,
+			double[][] numericColumns, int[] classValues)
+	{
+		m_Data = header;
+		m_NumInstances = numInstances;
+		m_ByteColumns = byteColumns;
+		m_ShortColumns = shortColumns;
+		m_IntColumns = intColumns;
+		m_NumericColumns = numericColumns;
+		m_ClassValues = classValues;
+		m_Scratch = new int[numInstances];
+	}
+
+	/**
+	 * Appends an instance, in amortised constant time.
+	 *
+	 * @param instance
+	 *            the instance, with the same attributes as the others
+	 * @return the row of the instance
+	 */
+	public int add(Instance instance)
+	{
+		if (m_NumInstances == m_ClassValues.length)
+		{
+			grow(Math.max(16, 2 * m_NumInstances));
+		}
+		set(m_NumInstances, instance);
+		return m_NumInstances++;
+	}
+
+	/**
+	 * Codes an instance into a row.
+	 */
+	private void set(int row, Instance instance)
+	{
+		for (int i = 0; i < m_ByteColumns.length; i++)
+		{
+			if (m_ByteColumns[i] != null)
+				m_ByteColumns[i][row] = (byte) instance.value(i);
+			else if (m_ShortColumns[i] != null)
+				m_ShortColumns[i][row] = (short) instance.value(i);
+			else if (m_IntColumns[i] != null)
+				m_IntColumns[i][row] = (int) instance.value(i);
+			else if (m_NumericColumns[i] != null)
+				m_NumericColumns[i][row] = instance.value(i);
+		}
+		m_ClassValues[row] = (int) instance.classValue();
+	}
+
+	/**
+	 * Grows every column to the given capacity.
+	 */
+	private void grow(int capacity)
+	{
+		for (int i = 0; i < m_ByteColumns.length; i++)
+		{
+			if (m_ByteColumns[i] != null)
+				m_ByteColumns[i] = Arrays.copyOf(m_ByteColumns[i], capacity);
+			else if (m_ShortColumns[i] != null)
+				m_ShortColumns[i] = Arrays.copyOf(m_ShortColumns[i], capacity);
+			else if (m_IntColumns[i] != null)
+				m_IntColumns[i] = Arrays.copyOf(m_IntColumns[i], capacity);
+			else if (m_NumericColumns[i] != null)
+				m_NumericColumns[i] = Arrays.copyOf(m_NumericColumns[i], capacity);
+		}
+		m_ClassValues = Arrays.copyOf(m_ClassValues, capacity);
+		m_Scratch = new int[capacity];
+	}
+
+	/**
+	 * Reads the columns, then allocates the scratch space.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException
+	{
+		in.defaultReadObject();
+		m_Scratch = new int[m_ClassValues.length];
+	}
+
+	/**
+	 * Gets the instances the columns were taken from.
+	 *
+	 * @return the instances, only their structure if the columns were loaded
+	 *         from a file
+	 */
+	public Instances dataset()
+	{
+		return m_Data;
+	}
+
+	/**
+	 * Gets the number of instances.
+	 *
+	 * @return the number of instances
+	 */
+	public int numInstances()
+	{
+		return m_NumInstances;
+	}
+
+	/**
+	 * Gets the number of attributes, class included.
+	 *
+	 * @return the number of attributes
+	 */
+	public int numAttributes()
+	{
+		return m_Data.numAttributes();
+	}
+
+	/**
+	 * Gets an attribute.
+	 *
+	 * @param att
+	 *            the index of the attribute
+	 * @return the attribute
+	 */
+	public Attribute attribute(int att)
+	{
+		return m_Data.attribute(att);
+	}
+
+	/**
+	 * Gets an enumeration of all attributes but the class.
+	 *
+	 * @return the enumeration
+	 */
+	public Enumeration<?> enumerateAttributes()
+	{
+		return m_Data.enumerateAttributes();
+	}
+
+	/**
+	 * Gets the index of the class attribute.
+	 *
+	 * @return the class index
+	 */
+	public int classIndex()
+	{
+		return m_Data.classIndex();
+	}
+
+	/**
+	 * Gets the class attribute.
+	 *
+	 * @return the class attribute
+	 */
+	public Attribute classAttribute()
+	{
+		return m_Data.classAttribute();
+	}
+
+	/**
+	 * Gets the number of class values.
+	 *
+	 * @return the number of classes
+	 */
+	public int numClasses()
+	{
+		return m_Data.numClasses();
+	}
+
+	/**
+	 * Tests whether an attribute is coded as a nominal column.
+	 *
+	 * @param att
+	 *            the index of the attribute
+	 * @return true for a nominal attribute other than the class
+	 */
+	public boolean isNominal(int att)
+	{
+		return m_ByteColumns[att] != null || m_ShortColumns[att] != null
+				|| m_IntColumns[att] != null;
+	}
+
+	/**
+	 * Gets the coded value of a nominal attribute.
+	 *
+	 * @param att
+	 *            the index of a nominal attribute
+	 * @param row
+	 *            the index of the instance
+	 * @return the index of the value
+	 */
+	public int nominalValue(int att, int row)
+	{
+		if (m_ByteColumns[att] != null)
+			return m_ByteColumns[att][row] & 0xFF;
+		if (m_ShortColumns[att] != null)
+			return m_ShortColumns[att][row] & 0xFFFF;
+		return m_IntColumns[att][row];
+	}
+
+	/**
+	 * Gets the values of a numeric attribute.
+	 *
+	 * @param att
+	 *            the index of the attribute
+	 * @return the values indexed by instance, missing ones NaN, or null for
+	 *         an attribute that is not numeric
+	 */
+	public double[] numericColumn(int att)
+	{
+		return m_NumericColumns[att];
+	}
+
+	/**
+	 * Gets the coded class values.
+	 *
+	 * @return the class values indexed by instance
+	 */
+	public int[] classValues()
+	{
+		return m_ClassValues;
+	}
+
+	/**
+	 * Creates an array of row indices holding every instance in order.
+	 *
+	 * @return the row indices
+	 */
+	public int[] newRows()
+	{
+		int[] rows = new int[m_NumInstances];
+		for (int i = 0; i < rows.length; i++)
+		{
+			rows[i] = i;
+		}
+		return rows;
+	}
+
+	/**
+	 * Partitions rows[start..end) by the values of a nominal attribute. Rows
+	 * with the same value keep their relative order, so each part lists its
+	 * instances in the same order a split copy of the instances would.
+	 *
+	 * @param rows
+	 *            the row indices
+	 * @param start
+	 *            the first position of the range
+	 * @param end
+	 *            the position after the last one of the range
+	 * @param att
+	 *            the index of the nominal attribute
+	 * @return the start of each value's part followed by end, so that value j
+	 *         owns rows[bounds[j]..bounds[j + 1])
+	 */
+	public int[] partition(int[] rows, int start, int end, int att)
+	{
+		int numValues = m_Data.attribute(att).numValues();
+		int[] bounds = new int[numValues + 1];
+		byte[] bytes = m_ByteColumns[att];
+		if (bytes != null)
+		{
+			for (int i = start; i < end; i++)
+			{
+				bounds[(bytes[rows[i]] & 0xFF) + 1]++;
+			}
+		} else
+		{
+			for (int i = start; i < end; i++)
+			{
+				bounds[nominalValue(att, rows[i]) + 1]++;
+			}
+		}
+		bounds[0] = start;
+		for (int j = 0; j < numValues; j++)
+		{
+			bounds[j + 1] += bounds[j];
+		}
+		int[] next = new int[numValues];
+		System.arraycopy(bounds, 0, next, 0, numValues);
+		if (bytes != null)
+		{
+			for (int i = start; i < end; i++)
+			{
+				m_Scratch[next[bytes[rows[i]] & 0xFF]++] = rows[i];
+			}
+		} else
+		{
+			for (int i = start; i < end; i++)
+			{
+				m_Scratch[next[nominalValue(att, rows[i])]++] = rows[i];
+			}
+		}
+		System.arraycopy(m_Scratch, start, rows, start, end - start);
+		return bounds;
+	}
+
+	/**
+	 * Counts the classes per value of a nominal attribute over
+	 * rows[start..end).
+	 *
+	 * @param att
+	 *            the index of the nominal attribute
+	 * @param rows
+	 *            the row indices
+	 * @param start
+	 *            the first position of the range
+	 * @param end
+	 *            the position after the last one of the range
+	 * @param counts
+	 *            the counts by value and class, added to
+	 * @param valueCounts
+	 *            the counts by value, added to
+	 */
+	public void count(int att, int[] rows, int start, int end,
+			double[][] counts, double[] valueCounts)
+	{
+		int[] classValues = m_ClassValues;
+		byte[] bytes = m_ByteColumns[att];
+		if (bytes != null)
+		{
+			for (int k = start; k < end; k++)
+			{
+				int row = rows[k];
+				int attVal = bytes[row] & 0xFF;
+				counts[attVal][classValues[row]]++;
+				valueCounts[attVal]++;
+			}
+			return;
+		}
+		for (int k = start; k < end; k++)
+		{
+			int row = rows[k];
+			int attVal = nominalValue(att, row);
+			counts[attVal][classValues[row]]++;
+			valueCounts[attVal]++;
+		}
+	}
+
+	/**
+	 * Copies the instances of a range of rows, for models that need them as
+	 * Instances.
+	 *
+	 * @param rows
+	 *            the row indices
+	 * @param start
+	 *            the first position of the range
+	 * @param end
+	 *            the position after the last one of the range
+	 * @return the instances in the order of the rows
+	 */
+	public Instances instances(int[] rows, int start, int end)
+	{
+		Instances result = new Instances(m_Data, end - start);
+		for (int i = start; i < end; i++)
+		{
+			result.add(instance(rows[i]));
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the instance of a row, decoded from the columns if it is not among
+	 * the instances the columns were taken from.
+	 */
+	private Instance instance(int row)
+	{
+		if (row < m_Data.numInstances())
+		{
+			return m_Data.instance(row);
+		}
+		Instance instance = new Instance(m_Data.numAttributes());
+		instance.setDataset(m_Data);
+		for (int i = 0; i < m_ByteColumns.length; i++)
+		{
+			if (i == m_Data.classIndex())
+				instance.setValue(i, m_ClassValues[row]);
+			else if (isNominal(i))
+				instance.setValue(i, nominalValue(i, row));
+			else if (m_NumericColumns[i] != null)
+				instance.setValue(i, m_NumericColumns[i][row]);
+			else
+				instance.setMissing(i);
+		}
+		return instance;
+	}
+}
@@ -0,0 +1,332 @@
+package weka.classifiers.common;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * The class counts of every value of every nominal attribute in a set of
+ * instances, taken in a single pass over each column. The ID3 trees evaluate
+ * all candidate splits of a node from one table instead of splitting the
+ * node's instances once per attribute, so only the chosen split is
+ * materialised.
+ * <p>
+ * Values are counted by their integer part, so a missing value counts as the
+ * first value of its attribute, the same way the trees send it to the first
+ * successor.
+ * <p>
+ * A table counted from an empty set of instances can be filled one instance
+ * at a time with add(), which is how the leaves of HoeffdingId3 keep their
+ * statistics, or straight from the rows of an ArffStream.
+ */
+public class ContingencyTable implements Serializable
+{
+	private static final long serialVersionUID = -3208736120557465021L;
+
+	/** The index of the class attribute. */
+	private int m_ClassIndex;
+
+	/** The number of instances counted. */
+	private int m_NumInstances;
+
+	/** The number of instances of each class. */
+	private double[] m_ClassCounts;
+
+	/** The counts per attribute, value and class, null for other attributes. */
+	private double[][][] m_Counts;
+
+	/** The number of instances per attribute and value. */
+	private double[][] m_ValueCounts;
+
+	/**
+	 * Counts the given instances.
+	 *
+	 * @param data
+	 *            the instances to count
+	 */
+	public ContingencyTable(Instances data)
+	{
+		this(new ColumnarInstances(data));
+	}
+
+	/**
+	 * Counts the given instances.
+	 *
+	 * @param data
+	 *            the coded instances to count
+	 */
+	public ContingencyTable(ColumnarInstances data)
+	{
+		this(data, data.newRows(), 0, data.numInstances());
+	}
+
+	/**
+	 * Counts the rows of a stream, reading it to its end.
+	 *
+	 * @param stream
+	 *            the stream, with its class index set
+	 * @exception IOException
+	 *                if a row can't be read
+	 */
+	public ContingencyTable(ArffStream stream) throws IOException
+	{
+		this(stream.getStructure());
+		double[] values = new double[stream.getStructure().numAttributes()];
+		while (stream.next(values))
+		{
+			add(values);
+		}
+	}
+
+	/**
+	 * Counts the instances of a range of rows.
+	 *
+	 * @param data
+	 *            the coded instances
+	 * @param rows
+	 *            the row indices
+	 * @param start
+	 *            the first position of the range
+	 * @param end
+	 *            the position after the last one of the range
+	 */
+	public ContingencyTable(ColumnarInstances data, int[] rows, int start,
+			int end)
+	{
+		countClasses(data, rows, start, end);
+		for (int i = 0; i < data.numAttributes(); i++)
+		{
+			count(data, i, rows, start, end);
+		}
+	}
+
+	/**
+	 * Counts the instances of a range of rows, one attribute per task. If
+	 * asked to and inside a fork/join pool, the attributes are counted in
+	 * parallel.
+	 *
+	 * @param data
+	 *            the coded instances
+	 * @param rows
+	 *            the row indices
+	 * @param start
+	 *            the first position of the range
+	 * @param end
+	 *            the position after the last one of the range
+	 * @param parallel
+	 *            whether to count the attributes in parallel
+	 * @exception Exception
+	 *                if counting fails
+	 */
+	public ContingencyTable(final ColumnarInstances data, final int[] rows,
+			final int start, final int end, boolean parallel) throws Exception
+	{
+		countClasses(data, rows, start, end);
+		ParallelBuild.Task[] tasks = new ParallelBuild.Task[data.numAttributes()];
+		for (int i = 0; i < tasks.length; i++)
+		{
+			final int att = i;
+			tasks[i] = new ParallelBuild.Task()
+			{
+				public void run()
+				{
+					count(data, att, rows, start, end);
+				}
+			};
+		}
+		ParallelBuild.invokeAll(tasks, parallel);
+	}
+
+	/**
+	 * Counts the classes over a range of rows and sets up the tables of the
+	 * attributes.
+	 */
+	private void countClasses(ColumnarInstances data, int[] rows, int start,
+			int end)
+	{
+		m_ClassIndex = data.classIndex();
+		m_NumInstances = end - start;
+		m_ClassCounts = new double[data.numClasses()];
+		int[] classValues = data.classValues();
+		for (int k = start; k < end; k++)
+		{
+			m_ClassCounts[classValues[rows[k]]]++;
+		}
+		m_Counts = new double[data.numAttributes()][][];
+		m_ValueCounts = new double[data.numAttributes()][];
+	}
+
+	/**
+	 * Counts the classes per value of one attribute over a range of rows.
+	 */
+	private void count(ColumnarInstances data, int att, int[] rows, int start,
+			int end)
+	{
+		if (!data.isNominal(att))
+			return;
+		int numValues = data.attribute(att).numValues();
+		double[][] counts = new double[numValues][data.numClasses()];
+		double[] valueCounts = new double[numValues];
+		data.count(att, rows, start, end, counts, valueCounts);
+		m_Counts[att] = counts;
+		m_ValueCounts[att] = valueCounts;
+	}
+
+	/**
+	 * Counts one more instance. Instances with a missing class are skipped.
+	 *
+	 * @param instance
+	 *            the instance, with the attributes of the counted instances
+	 */
+	public void add(Instance instance)
+	{
+		if (instance.classIsMissing())
+			return;
+		add(instance.toDoubleArray());
+	}
+
+	/**
+	 * Counts one more instance given by its values. Instances with a missing
+	 * class are skipped.
+	 *
+	 * @param values
+	 *            the values of the instance, coded as in an Instance
+	 */
+	public void add(double[] values)
+	{
+		if (Instance.isMissingValue(values[m_ClassIndex]))
+			return;
+		int classValue = (int) values[m_ClassIndex];
+		m_ClassCounts[classValue]++;
+		for (int i = 0; i < m_Counts.length; i++)
+		{
+			if (m_Counts[i] == null)
+				continue;
+			int value = (int) values[i];
+			m_Counts[i][value][classValue]++;
+			m_ValueCounts[i][value]++;
+		}
+		m_NumInstances++;
+	}
+
+	/**
+	 * Gets the number of instances counted.
+	 *
+	 * @return the number of instances
+	 */
+	public int numInstances()
+	{
+		return m_NumInstances;
+	}
+
+	/**
+	 * Gets the number of instances of each class. The array is the table's
+	 * own and must not be modified.
+	 *
+	 * @return the class counts
+	 */
+	public double[] classCounts()
+	{
+		return m_ClassCounts;
+	}
+
+	/**
+	 * Gets the number of instances of each class among those with the given
+	 * value of an attribute. The array is the table's own and must not be
+	 * modified.
+	 *
+	 * @param att
+	 *            the index of a nominal attribute
+	 * @param value
+	 *            the index of the value
+	 * @return the class counts
+	 */
+	public double[] classCounts(int att, int value)
+	{
+		return m_Counts[att][value];
+	}
+
+	/**
+	 * Gets the number of instances with the given value of an attribute.
+	 *
+	 * @param att
+	 *            the index of a nominal attribute
+	 * @param value
+	 *            the index of the value
+	 * @return the number of instances
+	 */
+	public double valueCount(int att, int value)
+	{
+		return m_ValueCounts[att][value];
+	}
+
+	/**
+	 * Computes the entropy of the class distribution of all instances counted.
+	 *
+	 * @return the entropy
+	 */
+	public double entropy()
+	{
+		return entropy(m_ClassCounts, m_NumInstances);
+	}
+
+	/**
+	 * Computes the information gain of splitting on an attribute.
+	 *
+	 * @param att
+	 *            the index of a nominal attribute
+	 * @return the information gain
+	 */
+	public double infoGain(int att)
+	{
+		double infoGain = entropy();
+		for (int j = 0; j < m_ValueCounts[att].length; j++)
+		{
+			if (m_ValueCounts[att][j] > 0)
+			{
+				infoGain -= (m_ValueCounts[att][j] / (double) m_NumInstances)
+						* entropy(m_Counts[att][j], m_ValueCounts[att][j]);
+			}
+		}
+		return infoGain;
+	}
+
+	/**
+	 * Computes the split information of an attribute, the entropy of the
+	 * distribution of its values, which gain ratio divides by.
+	 *
+	 * @param att
+	 *            the index of a nominal attribute
+	 * @return the split information
+	 */
+	public double splitInfo(int att)
+	{
+		return entropy(m_ValueCounts[att], m_NumInstances);
+	}
+
+	/**
+	 * Computes the entropy of a distribution given by counts.
+	 *
+	 * @param counts
+	 *            the counts
+	 * @param total
+	 *            the sum of the counts
+	 * @return the entropy
+	 */
+	private static double entropy(double[] counts, double total)
+	{
+		double entropy = 0;
+		for (int j = 0; j < counts.length; j++)
+		{
+			if (counts[j] > 0)
+			{
+				entropy -= counts[j] * Utils.log2(counts[j]);
+			}
+		}
+		entropy /= total;
+		return entropy + Utils.log2(total);
+	}
+}
@@ -0,0 +1,292 @@
+package weka.classifiers.common;
+
+import java.io.Serializable;
+
+import weka.core.Instance;
+
+/**
+ * A decision tree over nominal attributes flattened into primitive arrays for
+ * prediction. Node 0 is the root. An inner node stores its split attribute and
+ * the position of its first child, the children of a node being stored next to
+ * each other in the order of the attribute's values. A leaf stores -1 as its
+ * attribute and the index of its leaf, under which the leaf's class value and
+ * distribution are kept.
+ * <p>
+ * Finding the leaf of an instance is a loop over two int arrays. A value is
+ * followed by its integer part, so a missing value leads to the first child,
+ * the way the trees always sent it.
+ */
+public class FlatTree implements Serializable
+{
+	private static final long serialVersionUID = 5617416285094315371L;
+
+	/** The split attribute of each node, -1 for a leaf. */
+	private int[] m_Attributes;
+
+	/** The first child of an inner node, the leaf index of a leaf. */
+	private int[] m_Children;
+
+	/** The number of children of each node. */
+	private int[] m_NumChildren;
+
+	/** The number of nodes. */
+	private int m_NumNodes;
+
+	/** The class value of each leaf. */
+	private double[] m_ClassValues;
+
+	/** The class distribution of each leaf, null for leaves without one. */
+	private double[][] m_Distributions;
+
+	/** The number of leaves. */
+	private int m_NumLeaves;
+
+	/**
+	 * Creates a tree holding only the root, which is to be made a leaf or a
+	 * split.
+	 */
+	public FlatTree()
+	{
+		m_Attributes = new int[16];
+		m_Children = new int[16];
+		m_NumChildren = new int[16];
+		m_ClassValues = new double[8];
+		m_Distributions = new double[8][];
+		m_NumNodes = 1;
+	}
+
+	/**
+	 * Makes a node a split and adds its children.
+	 *
+	 * @param node
+	 *            the position of the node
+	 * @param attribute
+	 *            the index of the split attribute
+	 * @param numChildren
+	 *            the number of children, one per value of the attribute
+	 * @return the position of the first child
+	 */
+	public int setSplit(int node, int attribute, int numChildren)
+	{
+		if (m_NumNodes + numChildren > m_Attributes.length)
+		{
+			int length = Math.max(2 * m_Attributes.length, m_NumNodes
+					+ numChildren);
+			m_Attributes = grow(m_Attributes, length);
+			m_Children = grow(m_Children, length);
+			m_NumChildren = grow(m_NumChildren, length);
+		}
+		int first = m_NumNodes;
+		m_NumNodes += numChildren;
+		m_Attributes[node] = attribute;
+		m_Children[node] = first;
+		m_NumChildren[node] = numChildren;
+		return first;
+	}
+
+	/**
+	 * Makes a node a leaf.
+	 *
+	 * @param node
+	 *            the position of the node
+	 * @param classValue
+	 *            the class value of the leaf
+	 * @param distribution
+	 *            the class distribution of the leaf, kept as it is, or null
+	 * @return the index of the leaf
+	 */
+	public int setLeaf(int node, double classValue, double[] distribution)
+	{
+		if (m_NumLeaves == m_ClassValues.length)
+		{
+			double[] classValues = new double[2 * m_NumLeaves];
+			double[][] distributions = new double[2 * m_NumLeaves][];
+			System.arraycopy(m_ClassValues, 0, classValues, 0, m_NumLeaves);
+			System.arraycopy(m_Distributions, 0, distributions, 0, m_NumLeaves);
+			m_ClassValues = classValues;
+			m_Distributions = distributions;
+		}
+		m_ClassValues[m_NumLeaves] = classValue;
+		m_Distributions[m_NumLeaves] = distribution;
+		m_Attributes[node] = -1;
+		m_Children[node] = m_NumLeaves;
+		m_NumChildren[node] = 0;
+		return m_NumLeaves++;
+	}
+
+	/**
+	 * Makes a node a leaf whose prediction the tree's owner keeps, e.g. a
+	 * model, under the index of the leaf.
+	 *
+	 * @param node
+	 *            the position of the node
+	 * @return the index of the leaf
+	 */
+	public int setLeaf(int node)
+	{
+		return setLeaf(node, Instance.missingValue(), null);
+	}
+
+	/**
+	 * Trims the arrays once the tree is complete.
+	 */
+	public void compact()
+	{
+		m_Attributes = grow(m_Attributes, m_NumNodes);
+		m_Children = grow(m_Children, m_NumNodes);
+		m_NumChildren = grow(m_NumChildren, m_NumNodes);
+		double[] classValues = new double[m_NumLeaves];
+		double[][] distributions = new double[m_NumLeaves][];
+		System.arraycopy(m_ClassValues, 0, classValues, 0, m_NumLeaves);
+		System.arraycopy(m_Distributions, 0, distributions, 0, m_NumLeaves);
+		m_ClassValues = classValues;
+		m_Distributions = distributions;
+	}
+
+	/**
+	 * Copies the used part of an array into one of the given length.
+	 */
+	private int[] grow(int[] array, int length)
+	{
+		int[] result = new int[length];
+		System.arraycopy(array, 0, result, 0, m_NumNodes);
+		return result;
+	}
+
+	/**
+	 * Gets the number of nodes.
+	 *
+	 * @return the number of nodes
+	 */
+	public int numNodes()
+	{
+		return m_NumNodes;
+	}
+
+	/**
+	 * Gets the number of leaves.
+	 *
+	 * @return the number of leaves
+	 */
+	public int numLeaves()
+	{
+		return m_NumLeaves;
+	}
+
+	/**
+	 * Gets the split attribute of a node.
+	 *
+	 * @param node
+	 *            the position of the node
+	 * @return the index of the attribute, -1 for a leaf
+	 */
+	public int attribute(int node)
+	{
+		return m_Attributes[node];
+	}
+
+	/**
+	 * Gets the first child of an inner node.
+	 *
+	 * @param node
+	 *            the position of the node
+	 * @return the position of the first child
+	 */
+	public int firstChild(int node)
+	{
+		return m_Children[node];
+	}
+
+	/**
+	 * Gets the number of children of a node.
+	 *
+	 * @param node
+	 *            the position of the node
+	 * @return the number of children, 0 for a leaf
+	 */
+	public int numChildren(int node)
+	{
+		return m_NumChildren[node];
+	}
+
+	/**
+	 * Gets the leaf index of a leaf.
+	 *
+	 * @param node
+	 *            the position of the node
+	 * @return the index of the leaf
+	 */
+	public int leafIndex(int node)
+	{
+		return m_Children[node];
+	}
+
+	/**
+	 * Gets the class value of a leaf.
+	 *
+	 * @param leaf
+	 *            the index of the leaf
+	 * @return the class value
+	 */
+	public double leafClassValue(int leaf)
+	{
+		return m_ClassValues[leaf];
+	}
+
+	/**
+	 * Gets the class distribution of a leaf. The array is the leaf's own.
+	 *
+	 * @param leaf
+	 *            the index of the leaf
+	 * @return the class distribution, null if the leaf has none
+	 */
+	public double[] leafDistribution(int leaf)
+	{
+		return m_Distributions[leaf];
+	}
+
+	/**
+	 * Finds the leaf an instance falls into.
+	 *
+	 * @param instance
+	 *            the instance
+	 * @return the index of the leaf
+	 */
+	public int leaf(Instance instance)
+	{
+		int[] attributes = m_Attributes;
+		int[] children = m_Children;
+		int node = 0;
+		int att;
+		while ((att = attributes[node]) >= 0)
+		{
+			node = children[node] + (int) instance.value(att);
+		}
+		return children[node];
+	}
+
+	/**
+	 * Gets the class value of the leaf an instance falls into.
+	 *
+	 * @param instance
+	 *            the instance
+	 * @return the class value
+	 */
+	public double classValue(Instance instance)
+	{
+		return m_ClassValues[leaf(instance)];
+	}
+
+	/**
+	 * Gets the class distribution of the leaf an instance falls into. The
+	 * array is the leaf's own.
+	 *
+	 * @param instance
+	 *            the instance
+	 * @return the class distribution
+	 */
+	public double[] distribution(Instance instance)
+	{
+		return m_Distributions[leaf(instance)];
+	}
+}
@@ -0,0 +1,607 @@
+package weka.classifiers.common;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Bit-packed copy of a training set for the overlap distance used by the
+ * nominal KNN classifiers, i.e. the number of attributes (class excluded) on
+ * which two instances differ.
+ * <p>
+ * Every nominal value gets one bit, so an instance is one-hot encoded into a
+ * few longs. Two instances agree on as many nominal attributes as their
+ * encodings have common bits, and the mismatch count for all nominal
+ * attributes is computed with one Long.bitCount per word. Other attributes are
+ * compared on their integer part, as the classifiers always did, and are kept
+ * after the bit words in each row.
+ * <p>
+ * Optionally the rows are grouped by their encoding, so that the distance to
+ * all identical training instances is computed once. This pays off on the
+ * leaves of the ID3 trees, whose instances often repeat.
+ * <p>
+ * An index with a window size keeps at most that many rows in a ring. Once
+ * it is full, add() overwrites the oldest row, so memory and query time stay
+ * fixed however many instances are added.
+ * <p>
+ * An off-heap index keeps its rows in OffHeapRows instead of a long array, so
+ * that the heap does not grow with the training set. Its rows are not
+ * grouped, and scans read one chunk of rows after the other.
+ */
+public class HammingIndex implements Serializable
+{
+	private static final long serialVersionUID = 7359184463120580519L;
+
+	/**
+	 * The number of longs of the training rows compared with a batch of
+	 * queries at a time, 128KB so that a block stays in the L2 cache.
+	 */
+	private static final int BLOCK_LONGS = 1 << 14;
+
+	/** The index of the class attribute. */
+	private int m_ClassIndex;
+
+	/** The nominal attributes, class excluded. */
+	private int[] m_NominalAtts;
+
+	/** The first bit of each nominal attribute. */
+	private int[] m_StartBit;
+
+	/** The other attributes, compared on their integer part. */
+	private int[] m_OtherAtts;
+
+	/** The number of longs holding the bits of one instance. */
+	private int m_NumWords;
+
+	/** The number of longs of one encoded instance. */
+	private int m_RowLength;
+
+	/** The encoded training instances, one row after the other. */
+	private long[] m_Rows;
+
+	/** The encoded training instances of an off-heap index, else null. */
+	private OffHeapRows m_Store;
+
+	/** A row encoded before it is stored off the heap. */
+	private long[] m_Encoded;
+
+	/** The number of encoded training instances. */
+	private int m_NumInstances;
+
+	/** The training indices ordered so that identical rows are adjacent. */
+	private int[] m_Order;
+
+	/** The start of each group of identical rows in m_Order, plus the end. */
+	private int[] m_GroupStart;
+
+	/** The number of groups of identical rows. */
+	private int m_NumGroups;
+
+	/** The most rows kept, 0 for no limit. */
+	private int m_WindowSize;
+
+	/** The row holding the oldest instance once the window is full. */
+	private int m_Oldest;
+
+	/**
+	 * Encodes the given training instances.
+	 *
+	 * @param data
+	 *            the training instances
+	 */
+	public HammingIndex(Instances data)
+	{
+		this(data, false);
+	}
+
+	/**
+	 * Encodes the given training instances.
+	 *
+	 * @param data
+	 *            the training instances
+	 * @param groupDuplicates
+	 *            whether identical rows are grouped for nearestNeighbors()
+	 */
+	public HammingIndex(Instances data, boolean groupDuplicates)
+	{
+		this(data, groupDuplicates, 0);
+	}
+
+	/**
+	 * Encodes the given training instances into an index that keeps only the
+	 * most recent ones. Identical rows are not grouped in a window, since the
+	 * groups would break up as rows are overwritten.
+	 *
+	 * @param data
+	 *            the training instances, at most windowSize of them
+	 * @param groupDuplicates
+	 *            whether identical rows are grouped if there is no window
+	 * @param windowSize
+	 *            the most rows kept, 0 for no limit
+	 */
+	public HammingIndex(Instances data, boolean groupDuplicates,
+			int windowSize)
+	{
+		this(data, groupDuplicates, windowSize, false);
+	}
+
+	/**
+	 * Encodes the given training instances, on or off the heap. Identical
+	 * rows are neither grouped in a window nor off the heap.
+	 *
+	 * @param data
+	 *            the training instances, at most windowSize of them
+	 * @param groupDuplicates
+	 *            whether identical rows are grouped if there is no window
+	 * @param windowSize
+	 *            the most rows kept, 0 for no limit
+	 * @param offHeap
+	 *            whether the rows are kept outside the Java heap
+	 */
+	public HammingIndex(Instances data, boolean groupDuplicates,
+			int windowSize, boolean offHeap)
+	{
+		if (windowSize > 0 && data.numInstances() > windowSize)
+		{
+			throw new IllegalArgumentException("More than " + windowSize
+					+ " instances for the window.");
+		}
+		m_WindowSize = windowSize;
+		m_ClassIndex = data.classIndex();
+		int numNominal = 0, numOther = 0;
+		for (int i = 0; i < data.numAttributes(); i++)
+		{
+			if (i == m_ClassIndex)
+				continue;
+			if (data.attribute(i).isNominal())
+				numNominal++;
+			else
+				numOther++;
+		}
+		m_NominalAtts = new int[numNominal];
+		m_StartBit = new int[numNominal];
+		m_OtherAtts = new int[numOther];
+		int numBits = 0;
+		numNominal = numOther = 0;
+		for (int i = 0; i < data.numAttributes(); i++)
+		{
+			if (i == m_ClassIndex)
+				continue;
+			if (data.attribute(i).isNominal())
+			{
+				m_NominalAtts[numNominal] = i;
+				m_StartBit[numNominal] = numBits;
+				numBits += Math.max(1, data.attribute(i).numValues());
+				numNominal++;
+			} else
+			{
+				m_OtherAtts[numOther++] = i;
+			}
+		}
+		m_NumWords = (numBits + 63) >>> 6;
+		m_RowLength = m_NumWords + m_OtherAtts.length;
+
+		m_NumInstances = data.numInstances();
+		int capacity = Math.max(m_NumInstances, m_WindowSize);
+		if (offHeap)
+		{
+			m_Store = new OffHeapRows(m_RowLength, capacity);
+			m_Encoded = new long[m_RowLength];
+			for (int i = 0; i < m_NumInstances; i++)
+			{
+				store(i, data.instance(i));
+			}
+			return;
+		}
+		m_Rows = new long[capacity * m_RowLength];
+		for (int i = 0; i < m_NumInstances; i++)
+		{
+			encode(data.instance(i), m_Rows, i * m_RowLength);
+		}
+		if (groupDuplicates && m_WindowSize == 0)
+		{
+			groupDuplicates();
+		}
+	}
+
+	/**
+	 * Sorts the rows by their encoding and records the groups of identical
+	 * rows. The groups are dropped again if they would save less than a
+	 * quarter of the distance computations.
+	 */
+	private void groupDuplicates()
+	{
+		Integer[] order = new Integer[m_NumInstances];
+		for (int i = 0; i < m_NumInstances; i++)
+		{
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer first, Integer second)
+			{
+				int a = first.intValue() * m_RowLength;
+				int b = second.intValue() * m_RowLength;
+				for (int j = 0; j < m_RowLength; j++)
+				{
+					if (m_Rows[a + j] != m_Rows[b + j])
+					{
+						return m_Rows[a + j] < m_Rows[b + j] ? -1 : 1;
+					}
+				}
+				return first.intValue() - second.intValue();
+			}
+		});
+		int[] groupStart = new int[m_NumInstances + 1];
+		int numGroups = 0;
+		m_Order = new int[m_NumInstances];
+		for (int i = 0; i < m_NumInstances; i++)
+		{
+			m_Order[i] = order[i].intValue();
+			if (i == 0 || !sameRow(m_Order[i - 1], m_Order[i]))
+			{
+				groupStart[numGroups++] = i;
+			}
+		}
+		groupStart[numGroups] = m_NumInstances;
+		if (4 * numGroups > 3 * m_NumInstances)
+		{
+			m_Order = null;
+			return;
+		}
+		m_GroupStart = new int[numGroups + 1];
+		System.arraycopy(groupStart, 0, m_GroupStart, 0, numGroups + 1);
+		m_NumGroups = numGroups;
+	}
+
+	/**
+	 * Tests whether two training rows have the same encoding.
+	 */
+	private boolean sameRow(int first, int second)
+	{
+		int a = first * m_RowLength, b = second * m_RowLength;
+		for (int j = 0; j < m_RowLength; j++)
+		{
+			if (m_Rows[a + j] != m_Rows[b + j])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Appends a training instance, in amortised constant time. The rows grow
+	 * by doubling. If identical rows are grouped, the new row forms a group of
+	 * its own, which only costs the saving it could have shared. If the window
+	 * is full, the instance replaces the oldest one and gets its index.
+	 *
+	 * @param instance
+	 *            the instance, with the same attributes as the others
+	 * @return the index of the instance
+	 */
+	public int add(Instance instance)
+	{
+		if (m_NumInstances == m_WindowSize && m_WindowSize > 0)
+		{
+			int index = m_Oldest;
+			m_Oldest = (m_Oldest + 1) % m_WindowSize;
+			if (m_Store != null)
+			{
+				store(index, instance);
+				return index;
+			}
+			Arrays.fill(m_Rows, index * m_RowLength, (index + 1) * m_RowLength,
+					0L);
+			encode(instance, m_Rows, index * m_RowLength);
+			return index;
+		}
+		if (m_Store != null)
+		{
+			m_Store.ensureCapacity(Math.max(16, m_NumInstances + 1));
+			store(m_NumInstances, instance);
+			return m_NumInstances++;
+		}
+		if ((m_NumInstances + 1) * m_RowLength > m_Rows.length)
+		{
+			m_Rows = Arrays.copyOf(m_Rows, Math.max(16, 2 * (m_NumInstances + 1))
+					* m_RowLength);
+		}
+		encode(instance, m_Rows, m_NumInstances * m_RowLength);
+		if (m_GroupStart != null)
+		{
+			if (m_NumInstances == m_Order.length)
+			{
+				m_Order = Arrays.copyOf(m_Order, Math.max(16, 2 * m_NumInstances));
+			}
+			m_Order[m_NumInstances] = m_NumInstances;
+			if (m_NumGroups + 2 > m_GroupStart.length)
+			{
+				m_GroupStart = Arrays.copyOf(m_GroupStart, 2 * (m_NumGroups + 2));
+			}
+			m_GroupStart[++m_NumGroups] = m_NumInstances + 1;
+		}
+		return m_NumInstances++;
+	}
+
+	/**
+	 * Gets the number of encoded training instances.
+	 *
+	 * @return the number of instances
+	 */
+	public int numInstances()
+	{
+		return m_NumInstances;
+	}
+
+	/**
+	 * Encodes an instance for use with distance().
+	 *
+	 * @param instance
+	 *            the instance to encode
+	 * @return the encoded instance
+	 */
+	public long[] encode(Instance instance)
+	{
+		long[] row = new long[m_RowLength];
+		encode(instance, row, 0);
+		return row;
+	}
+
+	/**
+	 * Encodes an instance into an array obtained from newQuery(), so that one
+	 * array can be reused for every query.
+	 *
+	 * @param instance
+	 *            the instance to encode
+	 * @param row
+	 *            the array receiving the encoded instance
+	 */
+	public void encode(Instance instance, long[] row)
+	{
+		Arrays.fill(row, 0, m_RowLength, 0L);
+		encode(instance, row, 0);
+	}
+
+	/**
+	 * Gets the number of longs of one encoded instance.
+	 *
+	 * @return the number of longs
+	 */
+	public int rowLength()
+	{
+		return m_RowLength;
+	}
+
+	/**
+	 * Creates an array large enough to hold one encoded instance.
+	 *
+	 * @return the array
+	 */
+	public long[] newQuery()
+	{
+		return new long[m_RowLength];
+	}
+
+	/**
+	 * Encodes an instance into the given array. A missing value is encoded
+	 * like the first value of its attribute, matching the integer comparison
+	 * of the unencoded distance.
+	 */
+	private void encode(Instance instance, long[] rows, int offset)
+	{
+		for (int j = 0; j < m_NominalAtts.length; j++)
+		{
+			int bit = m_StartBit[j] + (int) instance.value(m_NominalAtts[j]);
+			rows[offset + (bit >>> 6)] |= 1L << (bit & 63);
+		}
+		for (int j = 0; j < m_OtherAtts.length; j++)
+		{
+			rows[offset + m_NumWords + j] = (int) instance.value(m_OtherAtts[j]);
+		}
+	}
+
+	/**
+	 * Encodes an instance into a row of the off-heap store.
+	 */
+	private void store(int row, Instance instance)
+	{
+		Arrays.fill(m_Encoded, 0L);
+		encode(instance, m_Encoded, 0);
+		m_Store.put(row, m_Encoded);
+	}
+
+	/**
+	 * Gets the row after the last one that can be scanned together with the
+	 * given one, the end of its chunk off the heap.
+	 */
+	private int scanEnd(int row)
+	{
+		if (m_Store == null)
+		{
+			return m_NumInstances;
+		}
+		return Math.min(m_NumInstances, m_Store.chunkEnd(row));
+	}
+
+	/**
+	 * Offers the training rows start..end-1 to a heap. Off the heap the rows
+	 * must lie in one chunk.
+	 */
+	private void offer(long[] query, NeighborHeap heap, int start, int end)
+	{
+		if (m_Store == null)
+		{
+			for (int i = start; i < end; i++)
+			{
+				heap.offer(distance(query, 0, m_Rows, i * m_RowLength), i);
+			}
+			return;
+		}
+		ByteBuffer chunk = m_Store.chunk(start);
+		int offset = m_Store.offset(start);
+		for (int i = start; i < end; i++, offset += 8 * m_RowLength)
+		{
+			heap.offer(distance(query, chunk, offset), i);
+		}
+	}
+
+	/**
+	 * Finds the k nearest training instances to an encoded instance. If there
+	 * are several instances at the k-th distance, all of them are kept.
+	 *
+	 * @param query
+	 *            the encoded instance
+	 * @param neighbors
+	 *            the heap receiving the neighbours, cleared first
+	 */
+	public void nearestNeighbors(long[] query, NeighborHeap neighbors)
+	{
+		neighbors.clear();
+		if (m_GroupStart == null)
+		{
+			for (int start = 0; start < m_NumInstances; start = scanEnd(start))
+			{
+				offer(query, neighbors, start, scanEnd(start));
+			}
+			return;
+		}
+		for (int g = 0; g < m_NumGroups; g++)
+		{
+			double distance = distance(query, m_Order[m_GroupStart[g]]);
+			if (neighbors.isFull() && distance > neighbors.kthDistance())
+			{
+				continue;
+			}
+			for (int i = m_GroupStart[g]; i < m_GroupStart[g + 1]; i++)
+			{
+				neighbors.offer(distance, m_Order[i]);
+			}
+		}
+	}
+
+	/**
+	 * Finds the k nearest training instances to several encoded instances at
+	 * once. The training rows are visited in blocks small enough to stay in
+	 * the cache, and each block is compared with all the queries before the
+	 * next one is read. Every query still sees the rows in their order, so it
+	 * gets the same neighbours as from nearestNeighbors(long[], NeighborHeap).
+	 *
+	 * @param queries
+	 *            the encoded instances
+	 * @param neighbors
+	 *            the heaps receiving the neighbours of each query, cleared
+	 *            first
+	 * @param numQueries
+	 *            the number of queries, taken from the start of the arrays
+	 */
+	public void nearestNeighbors(long[][] queries, NeighborHeap[] neighbors,
+			int numQueries)
+	{
+		if (m_GroupStart != null)
+		{
+			for (int q = 0; q < numQueries; q++)
+			{
+				nearestNeighbors(queries[q], neighbors[q]);
+			}
+			return;
+		}
+		for (int q = 0; q < numQueries; q++)
+		{
+			neighbors[q].clear();
+		}
+		int blockSize = Math.max(1, BLOCK_LONGS / Math.max(1, m_RowLength));
+		int end;
+		for (int start = 0; start < m_NumInstances; start = end)
+		{
+			// a block never crosses a chunk of an off-heap index
+			end = Math.min(start + blockSize, scanEnd(start));
+			for (int q = 0; q < numQueries; q++)
+			{
+				offer(queries[q], neighbors[q], start, end);
+			}
+		}
+	}
+
+	/**
+	 * Calculates the distance between an encoded instance and a training
+	 * instance.
+	 *
+	 * @param query
+	 *            the encoded instance
+	 * @param index
+	 *            the index of the training instance
+	 * @return the number of attributes the two instances differ on
+	 */
+	public double distance(long[] query, int index)
+	{
+		if (m_Store != null)
+		{
+			return distance(query, m_Store.chunk(index), m_Store.offset(index));
+		}
+		return distance(query, 0, m_Rows, index * m_RowLength);
+	}
+
+	/**
+	 * Calculates the distance between two encoded instances.
+	 *
+	 * @param first
+	 *            the first encoded instance
+	 * @param second
+	 *            the second encoded instance
+	 * @return the number of attributes the two instances differ on
+	 */
+	public double distance(long[] first, long[] second)
+	{
+		return distance(first, 0, second, 0);
+	}
+
+	/**
+	 * Counts the attributes two encoded rows differ on.
+	 */
+	private double distance(long[] first, int firstOffset, long[] second,
+			int secondOffset)
+	{
+		int matches = 0;
+		for (int w = 0; w < m_NumWords; w++)
+		{
+			matches += Long.bitCount(first[firstOffset + w]
+					& second[secondOffset + w]);
+		}
+		int distance = m_NominalAtts.length - matches;
+		for (int j = m_NumWords; j < m_RowLength; j++)
+		{
+			if (first[firstOffset + j] != second[secondOffset + j])
+			{
+				distance++;
+			}
+		}
+		return distance;
+	}
+
+	/**
+	 * Counts the attributes an encoded row and a row of a chunk differ on.
+	 */
+	private double distance(long[] first, ByteBuffer chunk, int offset)
+	{
+		int numWords = m_NumWords, rowLength = m_RowLength;
+		int matches = 0;
+		for (int w = 0; w < numWords; w++, offset += 8)
+		{
+			matches += Long.bitCount(first[w] & chunk.getLong(offset));
+		}
+		int distance = m_NominalAtts.length - matches;
+		for (int j = numWords; j < rowLength; j++, offset += 8)
+		{
+			if (first[j] != chunk.getLong(offset))
+			{
+				distance++;
+			}
+		}
+		return distance;
+	}
+}
@@ -0,0 +1,282 @@
+package weka.classifiers.common;
+
+/**
+ * Keeps the k nearest neighbours found for a query, shared by the KNN
+ * classifiers. If there are several neighbours at the k-th distance, all of
+ * them are kept.
+ * <p>
+ * The neighbours are held in a bounded max-heap over parallel distance and
+ * index arrays, so the k-th distance is always at the root and inserting a
+ * candidate allocates nothing. The arrays only grow when ties at the k-th
+ * distance do not fit any more. A heap is meant to be cleared and reused for
+ * every query.
+ * <p>
+ * Distances are ordered as by Double.compare(), so a NaN distance counts as
+ * farther than any other and is only kept while fewer than k neighbours are
+ * closer.
+ */
+public class NeighborHeap
+{
+	/** The distances of the neighbours, in heap order. */
+	private double[] m_Distances;
+
+	/** The training indices of the neighbours, in heap order. */
+	private int[] m_Indices;
+
+	/** The number of neighbours held. */
+	private int m_Size;
+
+	/** The number of neighbours to keep. */
+	private int m_K;
+
+	/** Whether the arrays have been sorted and are no longer a heap. */
+	private boolean m_Sorted;
+
+	/**
+	 * Creates a heap keeping the k nearest neighbours.
+	 *
+	 * @param k
+	 *            the number of neighbours to keep
+	 */
+	public NeighborHeap(int k)
+	{
+		m_K = Math.max(1, k);
+		m_Distances = new double[m_K + 1];
+		m_Indices = new int[m_K + 1];
+	}
+
+	/**
+	 * Removes all neighbours so the heap can be used for the next query.
+	 */
+	public void clear()
+	{
+		m_Size = 0;
+		m_Sorted = false;
+	}
+
+	/**
+	 * Removes all neighbours and changes the number of neighbours to keep.
+	 *
+	 * @param k
+	 *            the number of neighbours to keep
+	 */
+	public void clear(int k)
+	{
+		m_K = Math.max(1, k);
+		if (m_Distances.length <= m_K)
+		{
+			m_Distances = new double[m_K + 1];
+			m_Indices = new int[m_K + 1];
+		}
+		clear();
+	}
+
+	/**
+	 * Gets the number of neighbours to keep.
+	 *
+	 * @return k
+	 */
+	public int getK()
+	{
+		return m_K;
+	}
+
+	/**
+	 * Gets the number of neighbours held, ties at the k-th distance included.
+	 *
+	 * @return the number of neighbours
+	 */
+	public int size()
+	{
+		return m_Size;
+	}
+
+	/**
+	 * Gets whether the heap is empty.
+	 *
+	 * @return true if so
+	 */
+	public boolean isEmpty()
+	{
+		return m_Size == 0;
+	}
+
+	/**
+	 * Gets whether k neighbours have been found, so that candidates farther
+	 * than kthDistance() can be skipped.
+	 *
+	 * @return true if so
+	 */
+	public boolean isFull()
+	{
+		return m_Size >= m_K;
+	}
+
+	/**
+	 * Gets the largest distance held, which is the k-th distance once the heap
+	 * is full.
+	 *
+	 * @return the largest distance
+	 */
+	public double kthDistance()
+	{
+		return m_Distances[0];
+	}
+
+	/**
+	 * Gets the distance of the i-th neighbour. Neighbours are in no particular
+	 * order unless sort() has been called.
+	 *
+	 * @param i
+	 *            the position of the neighbour
+	 * @return the distance
+	 */
+	public double distance(int i)
+	{
+		return m_Distances[i];
+	}
+
+	/**
+	 * Gets the training index of the i-th neighbour.
+	 *
+	 * @param i
+	 *            the position of the neighbour
+	 * @return the index
+	 */
+	public int index(int i)
+	{
+		return m_Indices[i];
+	}
+
+	/**
+	 * Offers a candidate neighbour. It is kept if fewer than k neighbours are
+	 * held or if it is not farther than the k-th distance; neighbours that
+	 * drop beyond the k-th distance are removed.
+	 *
+	 * @param distance
+	 *            the distance of the candidate
+	 * @param index
+	 *            the training index of the candidate
+	 * @return true if the candidate was kept
+	 */
+	public boolean offer(double distance, int index)
+	{
+		if (m_Size >= m_K && Double.compare(distance, m_Distances[0]) > 0)
+		{
+			return false;
+		}
+		boolean evict = m_Size >= m_K
+				&& Double.compare(distance, m_Distances[0]) < 0;
+		push(distance, index);
+		if (evict)
+		{
+			// the group at the old k-th distance goes if enough neighbours
+			// are closer than it
+			double max = m_Distances[0];
+			int size = m_Size;
+			while (m_Size > 0 && Double.compare(m_Distances[0], max) == 0)
+			{
+				pop();
+			}
+			if (m_Size < m_K)
+			{
+				// popped neighbours were moved just past the heap's end
+				while (m_Size < size)
+				{
+					push(m_Distances[m_Size], m_Indices[m_Size]);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sorts the neighbours by increasing distance. The heap cannot take more
+	 * candidates afterwards until it is cleared.
+	 */
+	public void sort()
+	{
+		if (m_Sorted)
+		{
+			return;
+		}
+		int size = m_Size;
+		while (m_Size > 1)
+		{
+			pop();
+		}
+		m_Size = size;
+		m_Sorted = true;
+	}
+
+	/**
+	 * Adds an entry and restores the heap order.
+	 */
+	private void push(double distance, int index)
+	{
+		if (m_Size == m_Distances.length)
+		{
+			double[] distances = new double[2 * m_Size];
+			int[] indices = new int[2 * m_Size];
+			System.arraycopy(m_Distances, 0, distances, 0, m_Size);
+			System.arraycopy(m_Indices, 0, indices, 0, m_Size);
+			m_Distances = distances;
+			m_Indices = indices;
+		}
+		int i = m_Size++;
+		while (i > 0)
+		{
+			int parent = (i - 1) >>> 1;
+			if (Double.compare(m_Distances[parent], distance) >= 0)
+			{
+				break;
+			}
+			m_Distances[i] = m_Distances[parent];
+			m_Indices[i] = m_Indices[parent];
+			i = parent;
+		}
+		m_Distances[i] = distance;
+		m_Indices[i] = index;
+	}
+
+	/**
+	 * Removes the root and stores it at the position just after the new end
+	 * of the heap.
+	 */
+	private void pop()
+	{
+		double topDistance = m_Distances[0];
+		int topIndex = m_Indices[0];
+		m_Size--;
+		double distance = m_Distances[m_Size];
+		int index = m_Indices[m_Size];
+		int i = 0;
+		while (true)
+		{
+			int child = 2 * i + 1;
+			if (child >= m_Size)
+			{
+				break;
+			}
+			if (child + 1 < m_Size
+					&& Double.compare(m_Distances[child + 1], m_Distances[child]) > 0)
+			{
+				child++;
+			}
+			if (Double.compare(m_Distances[child], distance) <= 0)
+			{
+				break;
+			}
+			m_Distances[i] = m_Distances[child];
+			m_Indices[i] = m_Indices[child];
+			i = child;
+		}
+		if (m_Size > 0)
+		{
+			m_Distances[i] = distance;
+			m_Indices[i] = index;
+		}
+		m_Distances[m_Size] = topDistance;
+		m_Indices[m_Size] = topIndex;
+	}
+}
@@ -0,0 +1,303 @@
+package weka.classifiers.common;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Fixed-length rows of 8-byte words, longs or doubles, kept outside the Java
+ * heap in direct ByteBuffers, so that large training sets of the KNN indices
+ * neither fill the old generation nor lengthen its collections. The heap only
+ * holds the buffer objects, one per chunk.
+ * <p>
+ * A direct buffer holds at most 2GB, so the rows are spread over chunks of at
+ * most CHUNK_BYTES each, a row never crossing chunks. Rows are numbered
+ * consecutively, so a scan reads each chunk sequentially. The last chunk grows
+ * by doubling until it is full, then a new one is started, so no row is ever
+ * copied once its chunk is full.
+ * <p>
+ * The memory is allocated with ByteBuffer.allocateDirect(), which is limited
+ * by -XX:MaxDirectMemorySize, by default the maximum heap size, and is freed
+ * once the buffers are garbage collected.
+ * <p>
+ * Serialization writes the words of the chunks one by one, so that a saved
+ * model loads on a machine of either byte order, into new direct buffers.
+ */
+public class OffHeapRows implements Serializable
+{
+	private static final long serialVersionUID = -4861590350264131970L;
+
+	/** The largest number of bytes in a chunk. */
+	public static final int CHUNK_BYTES = 1 << 30;
+
+	/** The number of words of one row. */
+	private int m_RowLength;
+
+	/** The number of bytes of one row. */
+	private int m_RowBytes;
+
+	/** The number of rows of a full chunk. */
+	private int m_ChunkRows;
+
+	/** The chunks, the first m_NumChunks are in use. */
+	private transient ByteBuffer[] m_Chunks = new ByteBuffer[1];
+
+	/** The number of rows each chunk has room for. */
+	private int[] m_ChunkCapacity = new int[1];
+
+	/** The number of chunks in use. */
+	private int m_NumChunks;
+
+	/** The number of rows there is room for. */
+	private int m_Capacity;
+
+	/**
+	 * Allocates room for the given number of rows.
+	 *
+	 * @param rowLength
+	 *            the number of words of a row
+	 * @param capacity
+	 *            the number of rows to allocate room for
+	 */
+	public OffHeapRows(int rowLength, int capacity)
+	{
+		m_RowLength = rowLength;
+		m_RowBytes = 8 * rowLength;
+		m_ChunkRows = CHUNK_BYTES / Math.max(8, m_RowBytes);
+		ensureCapacity(capacity);
+	}
+
+	/**
+	 * Makes room for at least the given number of rows, keeping the rows
+	 * stored so far.
+	 *
+	 * @param rows
+	 *            the number of rows
+	 */
+	public void ensureCapacity(int rows)
+	{
+		while (m_Capacity < rows)
+		{
+			int last = m_NumChunks - 1;
+			if (last >= 0 && m_ChunkCapacity[last] < m_ChunkRows)
+			{
+				// grow the last chunk
+				int capacity = Math.min(m_ChunkRows, Math.max(rows - last
+						* m_ChunkRows, 2 * m_ChunkCapacity[last]));
+				ByteBuffer chunk = allocate(capacity);
+				ByteBuffer old = m_Chunks[last].duplicate();
+				old.clear();
+				chunk.put(old);
+				chunk.clear();
+				m_Chunks[last] = chunk;
+				m_ChunkCapacity[last] = capacity;
+			} else
+			{
+				if (m_NumChunks == m_Chunks.length)
+				{
+					m_Chunks = Arrays.copyOf(m_Chunks, 2 * m_NumChunks);
+					m_ChunkCapacity = Arrays.copyOf(m_ChunkCapacity,
+							2 * m_NumChunks);
+				}
+				int capacity = Math.min(m_ChunkRows, Math.max(16, rows
+						- m_NumChunks * m_ChunkRows));
+				m_Chunks[m_NumChunks] = allocate(capacity);
+				m_ChunkCapacity[m_NumChunks] = capacity;
+				m_NumChunks++;
+			}
+			m_Capacity = (m_NumChunks - 1) * m_ChunkRows
+					+ m_ChunkCapacity[m_NumChunks - 1];
+		}
+	}
+
+	/**
+	 * Allocates a zeroed chunk with room for the given number of rows.
+	 */
+	private ByteBuffer allocate(int rows)
+	{
+		return ByteBuffer.allocateDirect(rows * m_RowBytes).order(
+				ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Gets the number of rows there is room for.
+	 *
+	 * @return the number of rows
+	 */
+	public int capacity()
+	{
+		return m_Capacity;
+	}
+
+	/**
+	 * Gets the number of words of a row.
+	 *
+	 * @return the number of words
+	 */
+	public int rowLength()
+	{
+		return m_RowLength;
+	}
+
+	/**
+	 * Gets the chunk holding a row. The words of the row are read from it
+	 * with getLong() and getDouble() at offset(row) + 8 * j.
+	 *
+	 * @param row
+	 *            the index of the row
+	 * @return the chunk
+	 */
+	public ByteBuffer chunk(int row)
+	{
+		return m_Chunks[row / m_ChunkRows];
+	}
+
+	/**
+	 * Gets the position of a row in its chunk, in bytes.
+	 *
+	 * @param row
+	 *            the index of the row
+	 * @return the offset of the row
+	 */
+	public int offset(int row)
+	{
+		return (row % m_ChunkRows) * m_RowBytes;
+	}
+
+	/**
+	 * Gets the row after the last one in the chunk of the given row, so that
+	 * rows row..chunkEnd(row)-1 can be scanned in one chunk.
+	 *
+	 * @param row
+	 *            the index of the row
+	 * @return the first row of the next chunk
+	 */
+	public int chunkEnd(int row)
+	{
+		return (int) Math.min(Integer.MAX_VALUE, ((long) row / m_ChunkRows + 1)
+				* m_ChunkRows);
+	}
+
+	/**
+	 * Gets a word of a row as a long.
+	 *
+	 * @param row
+	 *            the index of the row
+	 * @param j
+	 *            the index of the word
+	 * @return the word
+	 */
+	public long getLong(int row, int j)
+	{
+		return chunk(row).getLong(offset(row) + 8 * j);
+	}
+
+	/**
+	 * Gets a word of a row as a double.
+	 *
+	 * @param row
+	 *            the index of the row
+	 * @param j
+	 *            the index of the word
+	 * @return the word
+	 */
+	public double getDouble(int row, int j)
+	{
+		return chunk(row).getDouble(offset(row) + 8 * j);
+	}
+
+	/**
+	 * Copies a row into an array of doubles.
+	 *
+	 * @param row
+	 *            the index of the row
+	 * @param values
+	 *            receives the words of the row
+	 */
+	public void get(int row, double[] values)
+	{
+		ByteBuffer chunk = chunk(row);
+		int offset = offset(row);
+		for (int j = 0; j < m_RowLength; j++, offset += 8)
+		{
+			values[j] = chunk.getDouble(offset);
+		}
+	}
+
+	/**
+	 * Stores a row of longs.
+	 *
+	 * @param row
+	 *            the index of the row, less than capacity()
+	 * @param words
+	 *            the words of the row
+	 */
+	public void put(int row, long[] words)
+	{
+		ByteBuffer chunk = chunk(row);
+		int offset = offset(row);
+		for (int j = 0; j < m_RowLength; j++, offset += 8)
+		{
+			chunk.putLong(offset, words[j]);
+		}
+	}
+
+	/**
+	 * Stores a row of doubles.
+	 *
+	 * @param row
+	 *            the index of the row, less than capacity()
+	 * @param values
+	 *            the words of the row
+	 */
+	public void put(int row, double[] values)
+	{
+		ByteBuffer chunk = chunk(row);
+		int offset = offset(row);
+		for (int j = 0; j < m_RowLength; j++, offset += 8)
+		{
+			chunk.putDouble(offset, values[j]);
+		}
+	}
+
+	/**
+	 * Writes the sizes, then every word of the chunks in use.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		for (int c = 0; c < m_NumChunks; c++)
+		{
+			ByteBuffer chunk = m_Chunks[c];
+			int end = m_ChunkCapacity[c] * m_RowBytes;
+			for (int offset = 0; offset < end; offset += 8)
+			{
+				out.writeLong(chunk.getLong(offset));
+			}
+		}
+	}
+
+	/**
+	 * Reads the sizes, then allocates the chunks and fills them.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException
+	{
+		in.defaultReadObject();
+		m_Chunks = new ByteBuffer[m_ChunkCapacity.length];
+		for (int c = 0; c < m_NumChunks; c++)
+		{
+			ByteBuffer chunk = allocate(m_ChunkCapacity[c]);
+			int end = m_ChunkCapacity[c] * m_RowBytes;
+			for (int offset = 0; offset < end; offset += 8)
+			{
+				chunk.putLong(offset, in.readLong());
+			}
+			m_Chunks[c] = chunk;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package weka.classifiers.common;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join support for the tree builders. A build is started with invoke(),
+ * which runs it in the common fork/join pool, and inside it invokeAll() forks
+ * independent pieces of work such as the subtrees of a node. For small nodes
+ * or outside a pool, invokeAll() simply runs the pieces one after the other.
+ * The pieces never depend on each other, so a builder produces the same tree
+ * either way.
+ */
+public class ParallelBuild
+{
+	/** The default number of instances from which on a node is built in parallel. */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	/**
+	 * A piece of work of a build.
+	 */
+	public interface Task
+	{
+		/**
+		 * Does the work.
+		 *
+		 * @exception Exception
+		 *                if the work fails
+		 */
+		void run() throws Exception;
+	}
+
+	/**
+	 * Runs a build in the common fork/join pool and waits for it.
+	 *
+	 * @param task
+	 *            the build
+	 * @exception Exception
+	 *                the exception the build failed with
+	 */
+	public static void invoke(Task task) throws Exception
+	{
+		try
+		{
+			ForkJoinPool.commonPool().invoke(new TaskAction(task));
+		} catch (TaskException e)
+		{
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Runs independent pieces of work and waits for all of them. They run in
+	 * parallel if asked to and called inside a fork/join pool, otherwise in
+	 * order.
+	 *
+	 * @param tasks
+	 *            the pieces of work
+	 * @param parallel
+	 *            whether the pieces are worth running in parallel
+	 * @exception Exception
+	 *                the exception a piece of work failed with
+	 */
+	public static void invokeAll(Task[] tasks, boolean parallel)
+			throws Exception
+	{
+		if (!parallel || !ForkJoinTask.inForkJoinPool())
+		{
+			for (int i = 0; i < tasks.length; i++)
+			{
+				tasks[i].run();
+			}
+			return;
+		}
+		TaskAction[] actions = new TaskAction[tasks.length];
+		for (int i = 0; i < tasks.length; i++)
+		{
+			actions[i] = new TaskAction(tasks[i]);
+		}
+		try
+		{
+			ForkJoinTask.invokeAll(actions);
+		} catch (TaskException e)
+		{
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Finds the exception a task failed with. The pool may rethrow a copy of
+	 * the wrapper that has the original wrapper as its cause.
+	 */
+	private static Exception unwrap(TaskException e)
+	{
+		Throwable cause = e;
+		while (cause instanceof TaskException && cause.getCause() != null)
+		{
+			cause = cause.getCause();
+		}
+		if (cause instanceof Exception)
+		{
+			return (Exception) cause;
+		}
+		throw (Error) cause;
+	}
+
+	/*
+	 * Runs a task inside the pool.
+	 */
+	private static class TaskAction extends RecursiveAction
+	{
+		private static final long serialVersionUID = -2730617734512397546L;
+
+		/** The task to run. */
+		private Task m_Task;
+
+		public TaskAction(Task task)
+		{
+			m_Task = task;
+		}
+
+		protected void compute()
+		{
+			try
+			{
+				m_Task.run();
+			} catch (RuntimeException e)
+			{
+				throw e;
+			} catch (Exception e)
+			{
+				throw new TaskException(e);
+			}
+		}
+	}
+
+	/*
+	 * Carries a checked exception out of the pool.
+	 */
+	private static class TaskException extends RuntimeException
+	{
+		private static final long serialVersionUID = 4418212296403124675L;
+
+		public TaskException(Throwable cause)
+		{
+			super(cause);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package weka.classifiers.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Batch scoring for the KNN classifiers over a HammingIndex. The test
+ * instances are cut into tiles of TILE_QUERIES instances, which a pool of
+ * threads takes one after the other. The neighbours of a whole tile are
+ * searched together, so that a block of training rows is read from memory
+ * once per tile rather than once per query. Every thread has its own queries
+ * and heaps, and the classifiers only read their model while scoring, so the
+ * distributions are those distributionForInstance() computes.
+ */
+public class ParallelScoring
+{
+	/** The number of test instances whose neighbours are searched together. */
+	public static final int TILE_QUERIES = 32;
+
+	/**
+	 * Turns the neighbours of a test instance into its class distribution.
+	 */
+	public interface Scorer
+	{
+		/**
+		 * Computes the class distribution of a test instance.
+		 *
+		 * @param neighbors
+		 *            the nearest neighbours of the instance
+		 * @param instance
+		 *            the instance
+		 * @return the class distribution
+		 * @exception Exception
+		 *                if the distribution can't be computed
+		 */
+		double[] distribution(NeighborHeap neighbors, Instance instance)
+				throws Exception;
+	}
+
+	/**
+	 * Gets the default number of threads, one per available processor.
+	 *
+	 * @return the number of threads
+	 */
+	public static int defaultNumThreads()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Scores a batch of test instances with a pool of threads.
+	 *
+	 * @param index
+	 *            the encoded training instances
+	 * @param k
+	 *            the number of neighbours
+	 * @param data
+	 *            the test instances
+	 * @param scorer
+	 *            computes a distribution from the neighbours
+	 * @param numThreads
+	 *            the number of threads, 1 scores in the calling thread
+	 * @return the class distribution of each test instance
+	 * @exception Exception
+	 *                the exception scoring an instance failed with
+	 */
+	public static double[][] score(final HammingIndex index, final int k,
+			final Instances data, final Scorer scorer, int numThreads)
+			throws Exception
+	{
+		final double[][] distributions = new double[data.numInstances()][];
+		final AtomicInteger next = new AtomicInteger();
+		int numTiles = (data.numInstances() + TILE_QUERIES - 1) / TILE_QUERIES;
+		numThreads = Math.min(numThreads, numTiles);
+		if (numThreads <= 1)
+		{
+			scoreTiles(index, k, data, scorer, next, distributions);
+			return distributions;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try
+		{
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (int t = 0; t < numThreads; t++)
+			{
+				results.add(pool.submit(new Callable<Object>()
+				{
+					public Object call() throws Exception
+					{
+						scoreTiles(index, k, data, scorer, next, distributions);
+						return null;
+					}
+				}));
+			}
+			for (int t = 0; t < numThreads; t++)
+			{
+				try
+				{
+					results.get(t).get();
+				} catch (ExecutionException e)
+				{
+					if (e.getCause() instanceof Exception)
+					{
+						throw (Exception) e.getCause();
+					}
+					throw (Error) e.getCause();
+				}
+			}
+		} finally
+		{
+			pool.shutdownNow();
+		}
+		return distributions;
+	}
+
+	/**
+	 * Scores tiles of test instances until there are none left.
+	 */
+	private static void scoreTiles(HammingIndex index, int k, Instances data,
+			Scorer scorer, AtomicInteger next, double[][] distributions)
+			throws Exception
+	{
+		long[][] queries = new long[TILE_QUERIES][];
+		NeighborHeap[] neighbors = new NeighborHeap[TILE_QUERIES];
+		for (int q = 0; q < TILE_QUERIES; q++)
+		{
+			queries[q] = index.newQuery();
+			neighbors[q] = new NeighborHeap(k);
+		}
+		int start;
+		while ((start = next.getAndAdd(TILE_QUERIES)) < data.numInstances())
+		{
+			int numQueries = Math.min(TILE_QUERIES, data.numInstances() - start);
+			for (int q = 0; q < numQueries; q++)
+			{
+				index.encode(data.instance(start + q), queries[q]);
+			}
+			index.nearestNeighbors(queries, neighbors, numQueries);
+			for (int q = 0; q < numQueries; q++)
+			{
+				distributions[start + q] = scorer.distribution(neighbors[q], data
+						.instance(start + q));
+			}
+		}
+	}
+}
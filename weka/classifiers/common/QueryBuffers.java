@@ -0,0 +1,144 @@
+package weka.classifiers.common;
+
+import java.io.Serializable;
+
+import weka.core.Instance;
+
+/**
+ * The buffers a KNN classifier finds the neighbours of a test instance with:
+ * a neighbour heap, the instance's attribute values or encoding, and the
+ * rows of its neighbours. A classifier keeps one QueryBuffers and every
+ * thread gets its own buffers from it, which it reuses for all its
+ * predictions. So a prediction allocates none of them, and predictions from
+ * several threads share none.
+ * <p>
+ * The buffers are not saved with the classifier; a loaded classifier makes
+ * new ones on first use.
+ */
+public class QueryBuffers implements Serializable
+{
+	private static final long serialVersionUID = -4420318629542813675L;
+
+	/** The buffers of each thread. */
+	private transient ThreadLocal<Buffers> m_Buffers = new ThreadLocal<Buffers>();
+
+	/**
+	 * Gets the calling thread's neighbour heap, cleared for a new query.
+	 *
+	 * @param k
+	 *            the number of neighbours to keep
+	 * @return the heap
+	 */
+	public NeighborHeap neighbors(int k)
+	{
+		Buffers buffers = buffers();
+		if (buffers.m_Neighbors == null)
+			buffers.m_Neighbors = new NeighborHeap(k);
+		buffers.m_Neighbors.clear(k);
+		return buffers.m_Neighbors;
+	}
+
+	/**
+	 * Copies the attribute values of an instance into the calling thread's
+	 * value buffer.
+	 *
+	 * @param instance
+	 *            the instance
+	 * @return the buffer, its first numAttributes() values those of the
+	 *         instance
+	 */
+	public double[] values(Instance instance)
+	{
+		Buffers buffers = buffers();
+		if (buffers.m_Values.length < instance.numAttributes())
+			buffers.m_Values = new double[instance.numAttributes()];
+		double[] values = buffers.m_Values;
+		for (int i = 0; i < instance.numAttributes(); i++)
+		{
+			values[i] = instance.value(i);
+		}
+		return values;
+	}
+
+	/**
+	 * Encodes an instance for an index into the calling thread's encoding
+	 * buffer.
+	 *
+	 * @param index
+	 *            the index
+	 * @param instance
+	 *            the instance
+	 * @return the buffer, its first longs the encoded instance
+	 */
+	public long[] encode(HammingIndex index, Instance instance)
+	{
+		Buffers buffers = buffers();
+		if (buffers.m_Encoded.length < index.rowLength())
+			buffers.m_Encoded = index.newQuery();
+		index.encode(instance, buffers.m_Encoded);
+		return buffers.m_Encoded;
+	}
+
+	/**
+	 * Copies the training rows of the neighbours in a heap into the calling
+	 * thread's row buffer.
+	 *
+	 * @param neighbors
+	 *            the neighbours
+	 * @return the buffer, its first neighbors.size() values the rows
+	 */
+	public int[] rows(NeighborHeap neighbors)
+	{
+		Buffers buffers = buffers();
+		if (buffers.m_Rows.length < neighbors.size())
+			buffers.m_Rows = new int[Math.max(neighbors.size(),
+					2 * buffers.m_Rows.length)];
+		int[] rows = buffers.m_Rows;
+		for (int i = 0; i < neighbors.size(); i++)
+		{
+			rows[i] = neighbors.index(i);
+		}
+		return rows;
+	}
+
+	/**
+	 * Gets the buffers of the calling thread, made on its first query.
+	 */
+	private Buffers buffers()
+	{
+		Buffers buffers = m_Buffers.get();
+		if (buffers == null)
+		{
+			buffers = new Buffers();
+			m_Buffers.set(buffers);
+		}
+		return buffers;
+	}
+
+	/**
+	 * Replaces a loaded instance, whose thread-local was not saved, with a
+	 * new one.
+	 */
+	private Object readResolve()
+	{
+		return new QueryBuffers();
+	}
+
+	/*
+	 * The buffers of one thread.
+	 */
+	private static class Buffers
+	{
+		/** The neighbour heap, null until the first query. */
+		private NeighborHeap m_Neighbors;
+
+		/** The attribute values of a query. */
+		private double[] m_Values = new double[0];
+
+		/** The encoding of a query. */
+		private long[] m_Encoded = new long[0];
+
+		/** The rows of a query's neighbours. */
+		private int[] m_Rows = new int[0];
+	}
+}
@@ -0,0 +1,535 @@
+package weka.classifiers.sk;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import weka.classifiers.common.NeighborHeap;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A ball tree (metric tree) over a training set, answering k-nearest-neighbour
+ * queries under the same distances as KDTree: an overlap count over the
+ * nominal attributes plus the L2, L1 or L-infinity norm over the numeric
+ * attributes. Each of these is a sum of two metrics and so a metric itself.
+ * <p>
+ * Every node is a ball around one of its training rows, the pivot, with the
+ * largest distance from the pivot to a row below as radius. By the triangle
+ * inequality no row below a node is closer to a query than the query's
+ * distance to the pivot minus the radius, so whole subtrees are skipped once
+ * that bound exceeds the current k-th distance. Unlike the bounding boxes of
+ * a KD-tree, the bound takes in the nominal attributes, which makes the tree
+ * the index of choice for data mixing nominal and numeric attributes.
+ * <p>
+ * A node is split around the two rows farthest apart among its rows, found by
+ * going to the farthest row from the pivot and from there to the farthest row
+ * again. The rows are ordered by how much nearer they are to the first than
+ * to the second and split at the median, so the tree stays balanced.
+ * <p>
+ * add() inserts an instance by descending to the child with the nearer pivot,
+ * widening the radii on the way, and splits the leaf in place once it is
+ * full.
+ * <p>
+ * As in KDTree, a numeric attribute missing in either instance adds nothing
+ * to their distance. That distance is no metric: a row missing everything is
+ * at distance 0 from any two rows however far apart. It is one, though, over
+ * the attributes that neither of the rows compared misses, and it is never
+ * less than that. So a node records the numeric attributes no row below it
+ * misses, and its bound measures the query's distance to the pivot over
+ * those only, which keeps it a lower bound for every row below.
+ */
+public class BallTree implements NeighborIndex
+{
+	private static final long serialVersionUID = 2078846431952737165L;
+
+	/** The default maximal number of instances kept in a leaf. */
+	public static final int DEFAULT_MAX_LEAF_SIZE = 8;
+
+	/**
+	 * The relative margin by which a lower bound is lowered, since rounding
+	 * may make computed distances violate the triangle inequality by a few
+	 * ulps.
+	 */
+	private static final double SLACK = 1e-9;
+
+	/** The metric, one of KDTree.METRIC_EUCLID, _MANHATTAN, _CHEBYSHEV. */
+	private int m_Metric;
+
+	/** The maximal number of instances in a leaf. */
+	private int m_MaxLeafSize;
+
+	/** The attribute values of the training instances, one row per instance. */
+	private double[][] m_Values;
+
+	/** The number of training instances. */
+	private int m_NumInstances;
+
+	/** The numeric attributes. */
+	private int[] m_NumericAtts;
+
+	/** The numeric attributes in decreasing order of variance. */
+	private int[] m_AbandonAtts;
+
+	/** The nominal attributes (class excluded) compared by overlap. */
+	private int[] m_NominalAtts;
+
+	/** The root of the tree. */
+	private BallNode m_Root;
+
+	/**
+	 * Tells whether a training set has both nominal and numeric attributes,
+	 * class excluded, so that a ball tree prunes better than a KD-tree.
+	 *
+	 * @param data
+	 *            the training instances
+	 * @return true if so
+	 */
+	public static boolean isMixed(Instances data)
+	{
+		boolean nominal = false, numeric = false;
+		for (int i = 0; i < data.numAttributes(); i++)
+		{
+			if (i == data.classIndex())
+				continue;
+			if (data.attribute(i).type() == Attribute.NUMERIC)
+				numeric = true;
+			else if (data.attribute(i).type() == Attribute.NOMINAL)
+				nominal = true;
+		}
+		return nominal && numeric;
+	}
+
+	/**
+	 * Builds a ball tree over the given training instances.
+	 *
+	 * @param data
+	 *            the training instances
+	 * @param metric
+	 *            one of KDTree.METRIC_EUCLID, METRIC_MANHATTAN,
+	 *            METRIC_CHEBYSHEV
+	 */
+	public BallTree(Instances data, int metric)
+	{
+		this(data, metric, DEFAULT_MAX_LEAF_SIZE);
+	}
+
+	/**
+	 * Builds a ball tree over the given training instances.
+	 *
+	 * @param data
+	 *            the training instances
+	 * @param metric
+	 *            one of KDTree.METRIC_EUCLID, METRIC_MANHATTAN,
+	 *            METRIC_CHEBYSHEV
+	 * @param maxLeafSize
+	 *            the maximal number of instances in a leaf
+	 */
+	public BallTree(Instances data, int metric, int maxLeafSize)
+	{
+		m_Metric = metric;
+		m_MaxLeafSize = Math.max(1, maxLeafSize);
+
+		int numNumeric = 0, numNominal = 0;
+		for (int i = 0; i < data.numAttributes(); i++)
+		{
+			if (i == data.classIndex())
+				continue;
+			if (data.attribute(i).type() == Attribute.NUMERIC)
+				numNumeric++;
+			else if (data.attribute(i).type() == Attribute.NOMINAL)
+				numNominal++;
+		}
+		m_NumericAtts = new int[numNumeric];
+		m_NominalAtts = new int[numNominal];
+		numNumeric = numNominal = 0;
+		for (int i = 0; i < data.numAttributes(); i++)
+		{
+			if (i == data.classIndex())
+				continue;
+			if (data.attribute(i).type() == Attribute.NUMERIC)
+				m_NumericAtts[numNumeric++] = i;
+			else if (data.attribute(i).type() == Attribute.NOMINAL)
+				m_NominalAtts[numNominal++] = i;
+		}
+		m_AbandonAtts = m_NumericAtts.clone();
+		KDTree.orderByVariance(data, m_AbandonAtts);
+
+		m_NumInstances = data.numInstances();
+		m_Values = new double[m_NumInstances][];
+		for (int i = 0; i < m_NumInstances; i++)
+		{
+			m_Values[i] = data.instance(i).toDoubleArray();
+		}
+		// an empty tree is centred on row 0, the first one to be added
+		m_Root = makeTree(allRows(), 0, m_NumInstances, 0);
+	}
+
+	/**
+	 * Appends a training instance and inserts it into its leaf, in time
+	 * proportional to the depth of the tree.
+	 *
+	 * @param instance
+	 *            the instance, with the same attributes as the others
+	 * @return the index of the instance
+	 */
+	public int add(Instance instance)
+	{
+		double[] row = instance.toDoubleArray();
+		if (m_NumInstances == m_Values.length)
+		{
+			m_Values = Arrays.copyOf(m_Values, Math.max(16, 2 * m_NumInstances));
+		}
+		m_Values[m_NumInstances] = row;
+		int index = m_NumInstances++;
+		insert(m_Root, index, row);
+		return index;
+	}
+
+	/**
+	 * Inserts a row below the given node, widening the radii and narrowing
+	 * the attributes of the bounds on the way to its leaf.
+	 */
+	private void insert(BallNode node, int index, double[] row)
+	{
+		while (true)
+		{
+			double distance = distance(m_Values[node.m_Pivot], row);
+			if (distance > node.m_Radius)
+				node.m_Radius = distance;
+			node.m_BoundAtts = present(node.m_BoundAtts, row);
+			if (node.m_Left == null)
+				break;
+			node = distance(m_Values[node.m_Left.m_Pivot], row) <= distance(
+					m_Values[node.m_Right.m_Pivot], row) ? node.m_Left
+					: node.m_Right;
+		}
+		if (node.m_Size == node.m_Rows.length)
+		{
+			// a full leaf is split if its rows differ, else it grows; either
+			// way it has room for twice as many rows before the next check
+			node.m_Rows = Arrays.copyOf(node.m_Rows, 2 * node.m_Rows.length);
+			node.m_Rows[node.m_Size++] = index;
+			BallNode split = makeTree(node.m_Rows, 0, node.m_Size, node.m_Pivot);
+			if (split.m_Left != null)
+			{
+				node.m_Left = split.m_Left;
+				node.m_Right = split.m_Right;
+				node.m_Rows = null;
+				node.m_Size = 0;
+			}
+			return;
+		}
+		node.m_Rows[node.m_Size++] = index;
+	}
+
+	/**
+	 * Narrows the numeric attributes of a node's bound to those the given row
+	 * has.
+	 *
+	 * @param atts
+	 *            the attributes, null for all numeric ones
+	 * @param row
+	 *            the row
+	 * @return the attributes the row has, null if that is all numeric ones
+	 */
+	private int[] present(int[] atts, double[] row)
+	{
+		if (atts == null)
+			atts = m_NumericAtts;
+		int count = 0;
+		for (int j = 0; j < atts.length; j++)
+		{
+			if (!Double.isNaN(row[atts[j]]))
+				count++;
+		}
+		if (count == atts.length)
+			return atts == m_NumericAtts ? null : atts;
+		int[] present = new int[count];
+		count = 0;
+		for (int j = 0; j < atts.length; j++)
+		{
+			if (!Double.isNaN(row[atts[j]]))
+				present[count++] = atts[j];
+		}
+		return present;
+	}
+
+	/**
+	 * Gets the indices of all training instances.
+	 */
+	private int[] allRows()
+	{
+		int[] rows = new int[m_NumInstances];
+		for (int i = 0; i < rows.length; i++)
+		{
+			rows[i] = i;
+		}
+		return rows;
+	}
+
+	/**
+	 * Builds the subtree over the rows rows[start..end), reordering them.
+	 *
+	 * @param rows
+	 *            the row indices
+	 * @param start
+	 *            the first position of the range
+	 * @param end
+	 *            the position after the last one of the range
+	 * @param pivot
+	 *            the row the node's ball is centred on, one of the range
+	 *            unless it is empty
+	 * @return the node
+	 */
+	private BallNode makeTree(int[] rows, int start, int end, int pivot)
+	{
+		BallNode node = new BallNode();
+		node.m_Pivot = pivot;
+		int farthest = pivot;
+		for (int i = start; i < end; i++)
+		{
+			double distance = distance(m_Values[pivot], m_Values[rows[i]]);
+			if (distance > node.m_Radius)
+			{
+				node.m_Radius = distance;
+				farthest = rows[i];
+			}
+			node.m_BoundAtts = present(node.m_BoundAtts, m_Values[rows[i]]);
+		}
+		if (end - start <= m_MaxLeafSize || node.m_Radius == 0)
+			return makeLeaf(node, rows, start, end);
+
+		// order the rows by how much nearer they are to the left seed than to
+		// the right one and split at the median
+		int left = farthest;
+		int right = left;
+		double width = 0;
+		for (int i = start; i < end; i++)
+		{
+			double distance = distance(m_Values[left], m_Values[rows[i]]);
+			if (distance > width)
+			{
+				width = distance;
+				right = rows[i];
+			}
+		}
+		double[] keys = new double[end - start];
+		for (int i = start; i < end; i++)
+		{
+			keys[i - start] = distance(m_Values[left], m_Values[rows[i]])
+					- distance(m_Values[right], m_Values[rows[i]]);
+		}
+		int mid = (start + end) >>> 1;
+		select(rows, keys, start, end, mid);
+		// the seeds become the pivots of the halves they fell into
+		node.m_Left = makeTree(rows, start, mid, seed(rows, start, mid, left));
+		node.m_Right = makeTree(rows, mid, end, seed(rows, mid, end, right));
+		return node;
+	}
+
+	/**
+	 * Gets the seed if it is one of the rows rows[start..end), else the first
+	 * of them. A seed can only fall into the other half if the keys tie.
+	 */
+	private int seed(int[] rows, int start, int end, int seed)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (rows[i] == seed)
+				return seed;
+		}
+		return rows[start];
+	}
+
+	/**
+	 * Gives a node its own copy of the rows rows[start..end), with room for at
+	 * least m_MaxLeafSize rows.
+	 */
+	private BallNode makeLeaf(BallNode node, int[] rows, int start, int end)
+	{
+		node.m_Size = end - start;
+		node.m_Rows = new int[Math.max(m_MaxLeafSize, node.m_Size)];
+		System.arraycopy(rows, start, node.m_Rows, 0, node.m_Size);
+		return node;
+	}
+
+	/**
+	 * Reorders rows[start..end) with their keys, which start at keys[0], so
+	 * that position k holds the row with the k-th smallest key, smaller keys
+	 * before it and larger ones after it.
+	 */
+	private void select(int[] rows, double[] keys, int start, int end, int k)
+	{
+		int lo = 0, hi = end - start - 1, target = k - start;
+		while (lo < hi)
+		{
+			double pivot = keys[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			while (i <= j)
+			{
+				while (keys[i] < pivot)
+					i++;
+				while (keys[j] > pivot)
+					j--;
+				if (i <= j)
+				{
+					double key = keys[i];
+					keys[i] = keys[j];
+					keys[j] = key;
+					int row = rows[start + i];
+					rows[start + i] = rows[start + j];
+					rows[start + j] = row;
+					i++;
+					j--;
+				}
+			}
+			if (target <= j)
+				hi = j;
+			else if (target >= i)
+				lo = i;
+			else
+				break;
+		}
+	}
+
+	/**
+	 * Finds the k nearest training instances to the given attribute values.
+	 * If there are several instances at the k-th distance, all of them are
+	 * kept.
+	 *
+	 * @param query
+	 *            the attribute values to search neighbours for
+	 * @param neighbors
+	 *            the heap receiving the neighbours, cleared first
+	 */
+	public void nearestNeighbors(double[] query, NeighborHeap neighbors)
+	{
+		neighbors.clear();
+		if (m_NumInstances > 0)
+		{
+			search(m_Root, distance(query, m_Values[m_Root.m_Pivot]), query,
+					neighbors);
+		}
+	}
+
+	/**
+	 * Searches the subtree below the given node, whose pivot is at the given
+	 * distance from the query.
+	 */
+	private void search(BallNode node, double pivotDistance, double[] query,
+			NeighborHeap neighbors)
+	{
+		if (neighbors.isFull()
+				&& lowerBound(node, pivotDistance, query) > neighbors
+						.kthDistance())
+		{
+			return;
+		}
+		if (node.m_Left == null)
+		{
+			for (int i = 0; i < node.m_Size; i++)
+			{
+				double bound = neighbors.isFull() ? neighbors.kthDistance()
+						: Double.POSITIVE_INFINITY;
+				neighbors.offer(distance(query, m_Values[node.m_Rows[i]], bound),
+						node.m_Rows[i]);
+			}
+			return;
+		}
+		// descend into the child with the nearer pivot first
+		double left = distance(query, m_Values[node.m_Left.m_Pivot]);
+		double right = distance(query, m_Values[node.m_Right.m_Pivot]);
+		if (left <= right)
+		{
+			search(node.m_Left, left, query, neighbors);
+			search(node.m_Right, right, query, neighbors);
+		} else
+		{
+			search(node.m_Right, right, query, neighbors);
+			search(node.m_Left, left, query, neighbors);
+		}
+	}
+
+	/**
+	 * Computes a lower bound for the distance between the query and every
+	 * row in a ball, lowered by SLACK against rounding. If rows below the
+	 * node miss numeric values, the distance to the pivot is taken again over
+	 * the node's bound attributes.
+	 */
+	private double lowerBound(BallNode node, double pivotDistance,
+			double[] query)
+	{
+		if (node.m_BoundAtts != null)
+		{
+			pivotDistance = KDTree.distance(m_Metric, m_NominalAtts,
+					node.m_BoundAtts, node.m_BoundAtts, query,
+					m_Values[node.m_Pivot], Double.POSITIVE_INFINITY);
+		}
+		double radius = node.m_Radius;
+		return pivotDistance - radius - SLACK * (pivotDistance + radius);
+	}
+
+	/**
+	 * Calculates the distance between a query and a training row.
+	 *
+	 * @param first
+	 *            the attribute values of the query
+	 * @param second
+	 *            the attribute values of the training instance
+	 * @return the distance between the two
+	 */
+	public double distance(double[] first, double[] second)
+	{
+		return distance(first, second, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Calculates the distance between a query and a training row, giving up
+	 * once it exceeds a bound, the same way as KDTree.
+	 *
+	 * @param first
+	 *            the attribute values of the query
+	 * @param second
+	 *            the attribute values of the training instance
+	 * @param bound
+	 *            the distance beyond which the row is of no interest
+	 * @return the distance between the two, or a partial distance larger than
+	 *         the bound
+	 */
+	public double distance(double[] first, double[] second, double bound)
+	{
+		return KDTree.distance(m_Metric, m_NominalAtts, m_NumericAtts,
+				m_AbandonAtts, first, second, bound);
+	}
+
+	/*
+	 * A node of the tree, a ball around its pivot and, for a leaf, owning the
+	 * rows m_Rows[0..m_Size).
+	 */
+	private static class BallNode implements Serializable
+	{
+		private static final long serialVersionUID = -5243172059813669350L;
+
+		/** The training row the ball is centred on. */
+		private int m_Pivot;
+
+		/** The largest distance from the pivot to a row below this node. */
+		private double m_Radius;
+
+		/**
+		 * The numeric attributes no row below this node misses, over which
+		 * its bound is measured, null if that is all of them.
+		 */
+		private int[] m_BoundAtts;
+
+		/** The rows of a leaf, null for an inner node. */
+		private int[] m_Rows;
+
+		/** The number of rows of a leaf. */
+		private int m_Size;
+
+		/** The children, null for a leaf. */
+		private BallNode m_Left, m_Right;
+	}
+}
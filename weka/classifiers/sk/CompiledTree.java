@@ -0,0 +1,401 @@
+package weka.classifiers.sk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import weka.classifiers.common.FlatTree;
+import weka.core.Instance;
+
+/**
+ * A flat tree compiled into bytecode. The tree is turned into a class of
+ * nested switch statements over int-coded attribute values, which is compiled
+ * with the system Java compiler and loaded by a class loader of its own, so
+ * the JIT compiles prediction into plain branches. Every compiled tree gets a
+ * new class and loader, and a tree that is replaced can be unloaded again.
+ * <p>
+ * Values are coded by their index, as ColumnarInstances codes them. A value a
+ * node has no child for, e.g. a missing value coded by its integer part, goes
+ * to the first child.
+ * <p>
+ * Compiling needs a JDK; when no compiler is available or the tree is too
+ * large for a class, compile() returns null and the flat tree has to be used.
+ */
+public class CompiledTree
+{
+	/**
+	 * The interface of the generated classes.
+	 */
+	public interface Switch
+	{
+		/**
+		 * Finds the leaf of int-coded attribute values.
+		 *
+		 * @param values
+		 *            the value indices, by attribute index
+		 * @return the index of the leaf
+		 */
+		int leaf(int[] values);
+
+		/**
+		 * Finds the leaf of an instance.
+		 *
+		 * @param instance
+		 *            the instance
+		 * @return the index of the leaf
+		 */
+		int leaf(Instance instance);
+	}
+
+	/** The number of nodes from which on subtrees get a method of their own. */
+	private static final int MAX_METHOD_NODES = 1000;
+
+	/** Numbers the generated classes. */
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+
+	/** The tree that was compiled, holding the leaves. */
+	private FlatTree m_Tree;
+
+	/** The compiled tree. */
+	private Switch m_Switch;
+
+	private CompiledTree(FlatTree tree, Switch compiled)
+	{
+		m_Tree = tree;
+		m_Switch = compiled;
+	}
+
+	/**
+	 * Compiles a flat tree.
+	 *
+	 * @param tree
+	 *            the complete tree
+	 * @return the compiled tree, or null if no compiler is available or
+	 *         compiling fails
+	 */
+	public static CompiledTree compile(FlatTree tree)
+	{
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null)
+		{
+			return null;
+		}
+		String className = "CompiledTree" + COUNTER.incrementAndGet();
+		final String source = toSource(tree, className);
+		try
+		{
+			final Map<String, ByteArrayOutputStream> classes = new HashMap<String, ByteArrayOutputStream>();
+			StandardJavaFileManager standard = compiler.getStandardFileManager(
+					null, null, null);
+			JavaFileManager manager = new ForwardingJavaFileManager<StandardJavaFileManager>(
+					standard)
+			{
+				public JavaFileObject getJavaFileForOutput(Location location,
+						final String name, JavaFileObject.Kind kind,
+						FileObject sibling)
+				{
+					return new SimpleJavaFileObject(URI.create("mem:///"
+							+ name.replace('.', '/') + kind.extension), kind)
+					{
+						public OutputStream openOutputStream()
+						{
+							ByteArrayOutputStream out = new ByteArrayOutputStream();
+							classes.put(name, out);
+							return out;
+						}
+					};
+				}
+			};
+			JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///"
+					+ className + JavaFileObject.Kind.SOURCE.extension),
+					JavaFileObject.Kind.SOURCE)
+			{
+				public CharSequence getCharContent(boolean ignoreEncodingErrors)
+				{
+					return source;
+				}
+			};
+			List<String> options = Arrays.asList("-classpath", classPath());
+			Boolean success = compiler.getTask(null, manager,
+					new DiagnosticCollector<JavaFileObject>(), options, null,
+					Collections.singletonList(file)).call();
+			manager.close();
+			if (success == null || !success.booleanValue())
+			{
+				return null;
+			}
+			ClassLoader loader = new ClassLoader(CompiledTree.class
+					.getClassLoader())
+			{
+				protected Class<?> findClass(String name)
+						throws ClassNotFoundException
+				{
+					ByteArrayOutputStream out = classes.get(name);
+					if (out == null)
+					{
+						throw new ClassNotFoundException(name);
+					}
+					byte[] bytes = out.toByteArray();
+					return defineClass(name, bytes, 0, bytes.length);
+				}
+			};
+			Switch compiled = (Switch) loader.loadClass(className)
+					.getConstructor().newInstance();
+			return new CompiledTree(tree, compiled);
+		} catch (Exception e)
+		{
+			return null;
+		} catch (LinkageError e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the class path the generated source is compiled against, the
+	 * application's plus wherever this class and Weka were loaded from.
+	 */
+	private static String classPath()
+	{
+		StringBuffer result = new StringBuffer(System.getProperty(
+				"java.class.path", ""));
+		Class<?>[] classes = { CompiledTree.class, Instance.class };
+		for (int i = 0; i < classes.length; i++)
+		{
+			CodeSource codeSource = classes[i].getProtectionDomain()
+					.getCodeSource();
+			if (codeSource == null || codeSource.getLocation() == null)
+				continue;
+			try
+			{
+				result.append(File.pathSeparator).append(
+						new File(codeSource.getLocation().toURI()).getPath());
+			} catch (Exception e)
+			{
+				// not a file, the class path has to do
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Generates the source of a class of nested switch statements for a flat
+	 * tree, implementing CompiledTree.Switch. Large trees are split into
+	 * several methods, as a method's bytecode is limited to 64KB.
+	 *
+	 * @param tree
+	 *            the complete tree
+	 * @param className
+	 *            the name of the class, in the default package
+	 * @return the source
+	 */
+	public static String toSource(FlatTree tree, String className)
+	{
+		StringBuffer result = new StringBuffer();
+		result.append("public class " + className + " implements "
+				+ Switch.class.getName().replace('$', '.') + "\n");
+		result.append("{\n");
+		toSource(tree, "int[] v", "v", "v[%d]", result);
+		result.append("\n");
+		toSource(tree, Instance.class.getName() + " i", "i",
+				"(int) i.value(%d)", result);
+		result.append("}\n");
+		return result.toString();
+	}
+
+	/**
+	 * Generates the methods of one variant of leaf(), starting with the
+	 * public one for the root.
+	 *
+	 * @param tree
+	 *            the tree
+	 * @param parameter
+	 *            the parameter declaration of the methods
+	 * @param argument
+	 *            the name of the parameter
+	 * @param value
+	 *            the format of the expression reading an attribute's value
+	 * @param buffer
+	 *            the buffer receiving the source
+	 */
+	private static void toSource(FlatTree tree, String parameter,
+			String argument, String value, StringBuffer buffer)
+	{
+		List<Integer> roots = new ArrayList<Integer>();
+		roots.add(Integer.valueOf(0));
+		for (int m = 0; m < roots.size(); m++)
+		{
+			int root = roots.get(m).intValue();
+			if (root == 0)
+			{
+				buffer.append("\tpublic int leaf(" + parameter + ")\n");
+			} else
+			{
+				buffer.append("\n\tprivate int node" + root + "(" + parameter
+						+ ")\n");
+			}
+			buffer.append("\t{\n");
+			toSource(tree, root, argument, value, 2, new int[1], roots, buffer);
+			buffer.append("\t}\n");
+		}
+	}
+
+	/**
+	 * Generates the statements of a node. Once a method holds
+	 * MAX_METHOD_NODES nodes, the remaining subtrees become methods of their
+	 * own.
+	 *
+	 * @param tree
+	 *            the tree
+	 * @param node
+	 *            the position of the node
+	 * @param argument
+	 *            the name of the parameter
+	 * @param value
+	 *            the format of the expression reading an attribute's value
+	 * @param level
+	 *            the indentation level
+	 * @param count
+	 *            the number of nodes in the current method so far
+	 * @param roots
+	 *            the list receiving the nodes that need a method
+	 * @param buffer
+	 *            the buffer receiving the source
+	 */
+	private static void toSource(FlatTree tree, int node, String argument,
+			String value, int level, int[] count, List<Integer> roots,
+			StringBuffer buffer)
+	{
+		char[] tabs = new char[level];
+		Arrays.fill(tabs, '\t');
+		String indent = new String(tabs);
+		int attribute = tree.attribute(node);
+		if (attribute < 0)
+		{
+			buffer.append(indent + "return " + tree.leafIndex(node) + ";\n");
+			return;
+		}
+		if (count[0] >= MAX_METHOD_NODES)
+		{
+			buffer.append(indent + "return node" + node + "(" + argument
+					+ ");\n");
+			roots.add(Integer.valueOf(node));
+			return;
+		}
+		count[0] += tree.numChildren(node) + 1;
+		buffer.append(indent + "switch (" + String.format(value, attribute)
+				+ ")\n");
+		buffer.append(indent + "{\n");
+		int first = tree.firstChild(node);
+		for (int j = 1; j < tree.numChildren(node); j++)
+		{
+			buffer.append(indent + "case " + j + ":\n");
+			toSource(tree, first + j, argument, value, level + 1, count, roots,
+					buffer);
+		}
+		buffer.append(indent + "default:\n");
+		toSource(tree, first, argument, value, level + 1, count, roots, buffer);
+		buffer.append(indent + "}\n");
+	}
+
+	/**
+	 * Gets the tree that was compiled.
+	 *
+	 * @return the flat tree
+	 */
+	public FlatTree flatTree()
+	{
+		return m_Tree;
+	}
+
+	/**
+	 * Finds the leaf of int-coded attribute values.
+	 *
+	 * @param values
+	 *            the value indices, by attribute index
+	 * @return the index of the leaf
+	 */
+	public int leaf(int[] values)
+	{
+		return m_Switch.leaf(values);
+	}
+
+	/**
+	 * Finds the leaf of an instance.
+	 *
+	 * @param instance
+	 *            the instance
+	 * @return the index of the leaf
+	 */
+	public int leaf(Instance instance)
+	{
+		return m_Switch.leaf(instance);
+	}
+
+	/**
+	 * Classifies int-coded attribute values.
+	 *
+	 * @param values
+	 *            the value indices, by attribute index
+	 * @return the class value of their leaf
+	 */
+	public double classValue(int[] values)
+	{
+		return m_Tree.leafClassValue(m_Switch.leaf(values));
+	}
+
+	/**
+	 * Gets the class distribution of int-coded attribute values.
+	 *
+	 * @param values
+	 *            the value indices, by attribute index
+	 * @return the class distribution of their leaf, the leaf's own array
+	 */
+	public double[] distribution(int[] values)
+	{
+		return m_Tree.leafDistribution(m_Switch.leaf(values));
+	}
+
+	/**
+	 * Classifies an instance.
+	 *
+	 * @param instance
+	 *            the instance
+	 * @return the class value of its leaf
+	 */
+	public double classValue(Instance instance)
+	{
+		return m_Tree.leafClassValue(m_Switch.leaf(instance));
+	}
+
+	/**
+	 * Gets the class distribution of an instance.
+	 *
+	 * @param instance
+	 *            the instance
+	 * @return the class distribution of its leaf, the leaf's own array
+	 */
+	public double[] distribution(Instance instance)
+	{
+		return m_Tree.leafDistribution(m_Switch.leaf(instance));
+	}
+}
@@ -0,0 +1,149 @@
+package weka.classifiers.sk;
+
+/**
+ * Distance kernels computing one query against a block of training rows.
+ * The rows are stored column by column, so that a kernel runs over the
+ * values of one attribute for consecutive rows and adds its term to one
+ * accumulator per row. Such loops have no dependence from one row to the
+ * next and no branch on the metric, which lets the JIT compiler turn them
+ * into SIMD instructions on any JDK the classifiers run on.
+ * <p>
+ * Every row's terms are added in the order of the attributes, the way
+ * KDTree.distance() adds them, so the distances are exactly the same.
+ */
+public class DistanceKernels
+{
+	/**
+	 * Counts the rows whose nominal value differs from the query's, compared
+	 * on their integer parts.
+	 *
+	 * @param column
+	 *            the values of the rows
+	 * @param offset
+	 *            the position of the first row's value
+	 * @param count
+	 *            the number of rows
+	 * @param query
+	 *            the query's value
+	 * @param acc
+	 *            the accumulators, one per row, incremented on a mismatch
+	 */
+	public static void mismatches(double[] column, int offset, int count,
+			double query, double[] acc)
+	{
+		int value = (int) query;
+		for (int r = 0; r < count; r++)
+		{
+			acc[r] += (int) column[offset + r] != value ? 1 : 0;
+		}
+	}
+
+	/**
+	 * Adds the squared differences between the rows' values and the query's.
+	 *
+	 * @param column
+	 *            the values of the rows
+	 * @param offset
+	 *            the position of the first row's value
+	 * @param count
+	 *            the number of rows
+	 * @param query
+	 *            the query's value
+	 * @param acc
+	 *            the accumulators, one per row
+	 */
+	public static void squares(double[] column, int offset, int count,
+			double query, double[] acc)
+	{
+		for (int r = 0; r < count; r++)
+		{
+			double diff = query - column[offset + r];
+			acc[r] += diff * diff;
+		}
+	}
+
+	/**
+	 * Adds the absolute differences between the rows' values and the query's.
+	 *
+	 * @param column
+	 *            the values of the rows
+	 * @param offset
+	 *            the position of the first row's value
+	 * @param count
+	 *            the number of rows
+	 * @param query
+	 *            the query's value
+	 * @param acc
+	 *            the accumulators, one per row
+	 */
+	public static void absolutes(double[] column, int offset, int count,
+			double query, double[] acc)
+	{
+		for (int r = 0; r < count; r++)
+		{
+			acc[r] += Math.abs(query - column[offset + r]);
+		}
+	}
+
+	/**
+	 * Raises each accumulator to the absolute difference between the row's
+	 * value and the query's if that is larger. A NaN difference is ignored.
+	 *
+	 * @param column
+	 *            the values of the rows
+	 * @param offset
+	 *            the position of the first row's value
+	 * @param count
+	 *            the number of rows
+	 * @param query
+	 *            the query's value
+	 * @param acc
+	 *            the accumulators, one per row
+	 */
+	public static void maxima(double[] column, int offset, int count,
+			double query, double[] acc)
+	{
+		for (int r = 0; r < count; r++)
+		{
+			double diff = Math.abs(query - column[offset + r]);
+			acc[r] = diff > acc[r] ? diff : acc[r];
+		}
+	}
+
+	/**
+	 * Tells whether every accumulator exceeds its limit.
+	 *
+	 * @param acc
+	 *            the accumulators
+	 * @param count
+	 *            the number of rows
+	 * @param limits
+	 *            the limits, one per row
+	 * @return true if so
+	 */
+	public static boolean allAbove(double[] acc, int count, double[] limits)
+	{
+		for (int r = 0; r < count; r++)
+		{
+			if (!(acc[r] > limits[r]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces each accumulator of squares by its square root.
+	 *
+	 * @param acc
+	 *            the accumulators
+	 * @param count
+	 *            the number of rows
+	 */
+	public static void sqrt(double[] acc, int count)
+	{
+		for (int r = 0; r < count; r++)
+		{
+			acc[r] = Math.sqrt(acc[r]);
+		}
+	}
+}
@@ -0,0 +1,575 @@
+package weka.classifiers.sk;
+
+import java.io.Serializable;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.classifiers.common.ArffStream;
+import weka.classifiers.common.ContingencyTable;
+import weka.core.Attribute;
+import weka.core.Capabilities;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.NoSupportForMissingValuesException;
+import weka.core.Utils;
+import weka.core.Capabilities.Capability;
+
+/**
+ * An ID3 tree learnt from a stream in one pass, after the Hoeffding tree of
+ * Domingos and Hulten. Every leaf counts the classes per value of every
+ * attribute in a ContingencyTable. Once a leaf has seen a grace period of
+ * instances since it was last evaluated, it evaluates its attributes with the
+ * split measure of one of the ID3 variants and splits on the best one if,
+ * with probability 1 - delta, it is also the best on the whole stream: when
+ * its measure exceeds that of the second best by more than the Hoeffding
+ * bound
+ *
+ * <pre>
+ * epsilon = sqrt(R * R * ln(1 / delta) / (2 * n))
+ * </pre>
+ *
+ * where n is the number of instances the leaf has seen and R is the range of
+ * the measure: log2 of the number of classes for the information gain, and 1
+ * for the others, since the gain of an attribute is at most the entropy of its
+ * values, which is at most log2 of its number of values. If the two are so
+ * close that epsilon drops below the tie threshold the leaf splits anyway.
+ * <p>
+ * A leaf drops its table when it splits, and the successors start counting
+ * afresh, so memory grows with the size of the tree and not with the length
+ * of the stream. The successors predict from the class counts their value had
+ * in the parent until they have seen instances of their own.
+ * <p>
+ * Like ContingencyTable, training counts a missing value as the first value
+ * of its attribute and sends it down the first successor.
+ * <p>
+ * The tree can also be trained straight from an ArffStream, in memory
+ * independent of the length of the file.
+ */
+public class HoeffdingId3 extends Classifier implements UpdateableClassifier
+{
+	private static final long serialVersionUID = -6412795035171342817L;
+
+	/** Information gain, as Id3 and teacher.ID3. */
+	public static final int SPLIT_INFO_GAIN = 1;
+
+	/** Information gain over split information, as Id3_splitA. */
+	public static final int SPLIT_GAIN_RATIO = 2;
+
+	/** Information gain over log2 of the number of values, as Id3_NG. */
+	public static final int SPLIT_NG = 3;
+
+	/**
+	 * Gain ratio among the attributes with more than the average information
+	 * gain, as Id3_splitAOverAvg.
+	 */
+	public static final int SPLIT_ABOVE_AVERAGE = 4;
+
+	/** The split measure, one of the SPLIT_ constants. */
+	private int m_SplitCriterion = SPLIT_INFO_GAIN;
+
+	/** The probability of choosing a different split than the whole stream. */
+	private double m_Delta = 1e-7;
+
+	/** The bound below which the best attribute wins a tie. */
+	private double m_TieThreshold = 0.05;
+
+	/** The number of instances a leaf sees between two evaluations. */
+	private int m_GracePeriod = 200;
+
+	/** The structure of the training instances. */
+	private Instances m_Header;
+
+	/** The range of the split measure. */
+	private double m_Range;
+
+	/** The root of the tree. */
+	private HoeffdingNode m_Root;
+
+	/** The number of nodes in the tree. */
+	private int m_NumNodes;
+
+	/**
+	 * Returns default capabilities of the classifier.
+	 *
+	 * @return the capabilities of this classifier
+	 */
+	public Capabilities getCapabilities()
+	{
+		Capabilities result = super.getCapabilities();
+		result.disableAll();
+
+		// attributes
+		result.enable(Capability.NOMINAL_ATTRIBUTES);
+		result.enable(Capability.MISSING_VALUES);
+
+		// class
+		result.enable(Capability.NOMINAL_CLASS);
+		result.enable(Capability.MISSING_CLASS_VALUES);
+
+		// instances
+		result.setMinimumNumberInstances(0);
+
+		return result;
+	}
+
+	/**
+	 * Builds the tree by streaming the training instances through
+	 * updateClassifier() one by one.
+	 *
+	 * @param data
+	 *            the training data
+	 * @exception Exception
+	 *                if classifier can't be built successfully
+	 */
+	public void buildClassifier(Instances data) throws Exception
+	{
+		getCapabilities().testWithFail(data);
+
+		initTree(data);
+		for (int i = 0; i < data.numInstances(); i++)
+		{
+			updateClassifier(data.instance(i));
+		}
+	}
+
+	/**
+	 * Builds the tree from the rows of a stream, reading it to its end.
+	 *
+	 * @param stream
+	 *            the stream, with its class index set
+	 * @exception Exception
+	 *                if classifier can't be built successfully
+	 */
+	public void buildClassifier(ArffStream stream) throws Exception
+	{
+		getCapabilities().testWithFail(stream.getStructure());
+
+		initTree(stream.getStructure());
+		double[] values = new double[m_Header.numAttributes()];
+		while (stream.next(values))
+		{
+			update(values);
+		}
+	}
+
+	/**
+	 * Starts a tree of a single empty leaf.
+	 */
+	private void initTree(Instances data)
+	{
+		m_Header = new Instances(data, 0);
+		m_Range = m_SplitCriterion == SPLIT_INFO_GAIN ? Utils.log2(Math.max(2,
+				data.numClasses())) : 1;
+		m_Root = new HoeffdingNode(m_Header, new double[data.numClasses()]);
+		m_NumNodes = 1;
+	}
+
+	/**
+	 * Counts a training instance in its leaf, which may then split. Instances
+	 * with a missing class are ignored.
+	 *
+	 * @param instance
+	 *            the new training instance
+	 * @exception Exception
+	 *                if the instance can't be added
+	 */
+	public void updateClassifier(Instance instance) throws Exception
+	{
+		if (instance.classIsMissing())
+		{
+			return;
+		}
+		update(instance.toDoubleArray());
+	}
+
+	/**
+	 * Counts a training instance, given by its values, in its leaf.
+	 */
+	private void update(double[] values)
+	{
+		if (Instance.isMissingValue(values[m_Header.classIndex()]))
+		{
+			return;
+		}
+		HoeffdingNode leaf = m_Root;
+		while (leaf.m_Attribute >= 0)
+		{
+			leaf = leaf.m_Successors[(int) values[leaf.m_Attribute]];
+		}
+		leaf.m_Table.add(values);
+		if (leaf.m_Table.numInstances() - leaf.m_Evaluated >= m_GracePeriod)
+		{
+			leaf.m_Evaluated = leaf.m_Table.numInstances();
+			attemptSplit(leaf);
+		}
+	}
+
+	/**
+	 * Splits a leaf on its best attribute if the Hoeffding bound tells it
+	 * apart from the second best, or if the bound is below the tie threshold.
+	 * A pure leaf is never split.
+	 */
+	private void attemptSplit(HoeffdingNode leaf)
+	{
+		ContingencyTable table = leaf.m_Table;
+		if (Utils.eq(table.entropy(), 0))
+		{
+			return;
+		}
+		double[] infoGains = new double[m_Header.numAttributes()];
+		double[] measures = measures(table, infoGains);
+		int best = -1, second = -1;
+		for (int i = 0; i < measures.length; i++)
+		{
+			if (Double.isNaN(measures[i]))
+				continue;
+			if (best < 0 || measures[i] > measures[best])
+			{
+				second = best;
+				best = i;
+			} else if (second < 0 || measures[i] > measures[second])
+			{
+				second = i;
+			}
+		}
+		if (best < 0 || !Utils.gr(infoGains[best], 0))
+		{
+			return;
+		}
+		// not splitting at all scores 0 under every measure
+		double gap = measures[best]
+				- (second < 0 ? 0 : Math.max(0, measures[second]));
+		double epsilon = Math.sqrt(m_Range * m_Range * Math.log(1 / m_Delta)
+				/ (2.0 * table.numInstances()));
+		if (gap > epsilon || epsilon < m_TieThreshold)
+		{
+			split(leaf, best);
+		}
+	}
+
+	/**
+	 * Computes the split measure of every attribute a leaf can split on. An
+	 * attribute qualifies if it is nominal, not the class, and has shown more
+	 * than one value in the leaf.
+	 *
+	 * @param table
+	 *            the counts of the leaf
+	 * @param infoGains
+	 *            receives the information gain of each qualifying attribute
+	 * @return the measure of each attribute, NaN for those that don't qualify
+	 */
+	private double[] measures(ContingencyTable table, double[] infoGains)
+	{
+		double[] measures = new double[m_Header.numAttributes()];
+		double sumInfoGain = 0;
+		int numCandidates = 0;
+		for (int i = 0; i < measures.length; i++)
+		{
+			measures[i] = Double.NaN;
+			if (i == m_Header.classIndex() || !m_Header.attribute(i).isNominal())
+				continue;
+			double splitInfo = table.splitInfo(i);
+			if (!Utils.gr(splitInfo, 0))
+				continue;
+			infoGains[i] = table.infoGain(i);
+			sumInfoGain += infoGains[i];
+			numCandidates++;
+			switch (m_SplitCriterion)
+			{
+			case SPLIT_GAIN_RATIO:
+			case SPLIT_ABOVE_AVERAGE:
+				measures[i] = infoGains[i] / splitInfo;
+				break;
+			case SPLIT_NG:
+				measures[i] = infoGains[i]
+						/ Utils.log2(m_Header.attribute(i).numValues());
+				break;
+			default:
+				measures[i] = infoGains[i];
+			}
+		}
+		if (m_SplitCriterion == SPLIT_ABOVE_AVERAGE && numCandidates > 0)
+		{
+			// keep the attributes of above average gain, if there are any
+			double average = sumInfoGain / numCandidates;
+			boolean any = false;
+			for (int i = 0; i < measures.length; i++)
+			{
+				any |= !Double.isNaN(measures[i]) && infoGains[i] > average;
+			}
+			for (int i = 0; any && i < measures.length; i++)
+			{
+				if (!(infoGains[i] > average))
+				{
+					measures[i] = Double.NaN;
+				}
+			}
+		}
+		return measures;
+	}
+
+	/**
+	 * Turns a leaf into an inner node splitting on the given attribute, with
+	 * one new leaf per value.
+	 */
+	private void split(HoeffdingNode leaf, int att)
+	{
+		ContingencyTable table = leaf.m_Table;
+		int numValues = m_Header.attribute(att).numValues();
+		leaf.m_Successors = new HoeffdingNode[numValues];
+		for (int j = 0; j < numValues; j++)
+		{
+			leaf.m_Successors[j] = new HoeffdingNode(m_Header,
+					table.classCounts(att, j).clone());
+		}
+		leaf.m_Attribute = att;
+		leaf.m_Prior = null;
+		leaf.m_Table = null;
+		m_NumNodes += numValues;
+	}
+
+	/**
+	 * Finds the leaf an instance falls into.
+	 */
+	private HoeffdingNode leaf(Instance instance)
+			throws NoSupportForMissingValuesException
+	{
+		if (instance.hasMissingValue())
+		{
+			throw new NoSupportForMissingValuesException(
+					"HoeffdingId3: no missing values, please.");
+		}
+		HoeffdingNode leaf = m_Root;
+		while (leaf.m_Attribute >= 0)
+		{
+			leaf = leaf.m_Successors[(int) instance.value(leaf.m_Attribute)];
+		}
+		return leaf;
+	}
+
+	/**
+	 * Computes class distribution for instance using the tree.
+	 *
+	 * @param instance
+	 *            the instance for which distribution is to be computed
+	 * @return the class distribution for the given instance
+	 * @throws NoSupportForMissingValuesException
+	 *             if instance has missing values
+	 */
+	public double[] distributionForInstance(Instance instance)
+			throws NoSupportForMissingValuesException
+	{
+		double[] distribution = leaf(instance).classCounts();
+		if (Utils.gr(Utils.sum(distribution), 0))
+		{
+			Utils.normalize(distribution);
+		}
+		return distribution;
+	}
+
+	/**
+	 * Sets the split measure.
+	 *
+	 * @param splitCriterion
+	 *            one of SPLIT_INFO_GAIN, SPLIT_GAIN_RATIO, SPLIT_NG,
+	 *            SPLIT_ABOVE_AVERAGE
+	 */
+	public void setSplitCriterion(int splitCriterion)
+	{
+		m_SplitCriterion = splitCriterion;
+	}
+
+	/**
+	 * Gets the split measure.
+	 *
+	 * @return one of the SPLIT_ constants
+	 */
+	public int getSplitCriterion()
+	{
+		return m_SplitCriterion;
+	}
+
+	/**
+	 * Sets the probability that a leaf splits on another attribute than the
+	 * whole stream would have chosen.
+	 *
+	 * @param delta
+	 *            the probability, between 0 and 1
+	 */
+	public void setDelta(double delta)
+	{
+		m_Delta = delta;
+	}
+
+	/**
+	 * Gets the probability of choosing another split than the whole stream.
+	 *
+	 * @return the probability
+	 */
+	public double getDelta()
+	{
+		return m_Delta;
+	}
+
+	/**
+	 * Sets the Hoeffding bound below which a leaf splits on its best attribute
+	 * even if the second best is as good.
+	 *
+	 * @param tieThreshold
+	 *            the threshold
+	 */
+	public void setTieThreshold(double tieThreshold)
+	{
+		m_TieThreshold = tieThreshold;
+	}
+
+	/**
+	 * Gets the Hoeffding bound below which ties are broken.
+	 *
+	 * @return the threshold
+	 */
+	public double getTieThreshold()
+	{
+		return m_TieThreshold;
+	}
+
+	/**
+	 * Sets the number of instances a leaf sees between two evaluations of its
+	 * attributes.
+	 *
+	 * @param gracePeriod
+	 *            the number of instances
+	 */
+	public void setGracePeriod(int gracePeriod)
+	{
+		m_GracePeriod = Math.max(1, gracePeriod);
+	}
+
+	/**
+	 * Gets the number of instances a leaf sees between two evaluations.
+	 *
+	 * @return the number of instances
+	 */
+	public int getGracePeriod()
+	{
+		return m_GracePeriod;
+	}
+
+	/**
+	 * Gets the number of nodes in the tree.
+	 *
+	 * @return the number of nodes
+	 */
+	public int numNodes()
+	{
+		return m_NumNodes;
+	}
+
+	/**
+	 * Prints the decision tree.
+	 *
+	 * @return a textual description of the classifier
+	 */
+	public String toString()
+	{
+		if (m_Root == null)
+		{
+			return "HoeffdingId3: No model built yet.";
+		}
+		return "HoeffdingId3\n\n" + toString(m_Root, 0) + "\n\nNumber of nodes: "
+				+ m_NumNodes;
+	}
+
+	/**
+	 * Outputs a subtree at a certain level.
+	 */
+	private String toString(HoeffdingNode node, int level)
+	{
+		StringBuffer text = new StringBuffer();
+		if (node.m_Attribute < 0)
+		{
+			double[] counts = node.classCounts();
+			if (Utils.eq(Utils.sum(counts), 0))
+			{
+				text.append(": null");
+			} else
+			{
+				text.append(": "
+						+ m_Header.classAttribute().value(Utils.maxIndex(counts)));
+			}
+			return text.toString();
+		}
+		Attribute attribute = m_Header.attribute(node.m_Attribute);
+		for (int j = 0; j < node.m_Successors.length; j++)
+		{
+			text.append("\n");
+			for (int i = 0; i < level; i++)
+			{
+				text.append("|  ");
+			}
+			text.append(attribute.name() + " = " + attribute.value(j));
+			text.append(toString(node.m_Successors[j], level + 1));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Returns a string describing the classifier.
+	 *
+	 * @return a description suitable for the GUI.
+	 */
+	public String globalInfo()
+	{
+		return "Incremental ID3 tree that splits a leaf once the Hoeffding bound "
+				+ "shows its best attribute, under the split measure of Id3, "
+				+ "Id3_splitA, Id3_NG or Id3_splitAOverAvg, to be the best on "
+				+ "the whole stream. Can only deal with nominal attributes.";
+	}
+
+	public static void main(String[] args)
+	{
+		runClassifier(new HoeffdingId3(), args);
+	}
+
+	/*
+	 * A node of the tree, a leaf counting its instances or an inner node.
+	 */
+	private static class HoeffdingNode implements Serializable
+	{
+		private static final long serialVersionUID = 2305197646083614523L;
+
+		/** The attribute split on, -1 for a leaf. */
+		private int m_Attribute = -1;
+
+		/** The successors of an inner node, one per value. */
+		private HoeffdingNode[] m_Successors;
+
+		/** The counts of a leaf's instances, null for an inner node. */
+		private ContingencyTable m_Table;
+
+		/** The class counts of a leaf's value in its parent. */
+		private double[] m_Prior;
+
+		/** The number of instances of a leaf at its last evaluation. */
+		private int m_Evaluated;
+
+		public HoeffdingNode(Instances header, double[] prior)
+		{
+			m_Table = new ContingencyTable(header);
+			m_Prior = prior;
+		}
+
+		/**
+		 * Gets a new array with the class counts a leaf predicts from, its
+		 * own once it has seen instances, else those of its parent.
+		 */
+		public double[] classCounts()
+		{
+			if (m_Table.numInstances() > 0)
+			{
+				return m_Table.classCounts().clone();
+			}
+			return m_Prior.clone();
+		}
+	}
+}
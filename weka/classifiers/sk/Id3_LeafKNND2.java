@@ -7,6 +7,10 @@
 package weka.classifiers.sk;
 
 import weka.classifiers.*;
+import weka.classifiers.common.ColumnarInstances;
+import weka.classifiers.common.ContingencyTable;
+import weka.classifiers.common.FlatTree;
+import weka.classifiers.common.ParallelBuild;
 import weka.core.*;
 import java.util.*;
 
@@ -16,14 +20,35 @@ import java.util.*;
 public class Id3_LeafKNND2 extends Classifier
 {
 
+	/** The default leaf size from which on identical instances are grouped. */
+	public static final int DEFAULT_INDEX_LEAF_SIZE = 64;
+
 	/** The node's successors. */
 	private Id3_LeafKNND2[] m_Successors;
 
 	/** Attribute used for splitting. */
 	private Attribute m_Attribute;
 
-	/** The instances of the leaf node. */
-	private Instances m_Instances;
+	/**
+	 * The number of instances from which on a node builds its successors and
+	 * evaluates its attributes in parallel, values below 1 build sequentially.
+	 */
+	private int m_ParallelThreshold = ParallelBuild.DEFAULT_THRESHOLD;
+
+	/** The tree flattened for prediction, only set at the root. */
+	private FlatTree m_Tree;
+
+	/** The models of the leaves by leaf index, only set at the root. */
+	private KNN_WeightD2[] m_LeafModels;
+
+	/** The neighbour model of the leaf node, built from its instances. */
+	private KNN_WeightD2 m_KNN;
+
+	/**
+	 * The number of instances from which on a leaf's neighbour model groups
+	 * identical instances, values below 1 turn grouping off.
+	 */
+	private int m_IndexLeafSize = DEFAULT_INDEX_LEAF_SIZE;
 
 	/**
 	 * Builds ID3 decision tree classifier.
@@ -37,7 +62,91 @@ public class Id3_LeafKNND2 extends Classifier
 	{
 
 		// Build ID3 tree
-		makeTree(data);
+		final ColumnarInstances columns = new ColumnarInstances(data);
+		final int[] rows = columns.newRows();
+		if (m_ParallelThreshold > 0)
+		{
+			// large nodes fork their successors inside the pool
+			ParallelBuild.invoke(new ParallelBuild.Task()
+			{
+				public void run() throws Exception
+				{
+					makeTree(columns, rows, 0, rows.length);
+				}
+			});
+		} else
+		{
+			makeTree(columns, rows, 0, rows.length);
+		}
+		// flatten the tree for prediction
+		List<KNN_WeightD2> leafModels = new ArrayList<KNN_WeightD2>();
+		m_Tree = new FlatTree();
+		flatten(m_Tree, 0, leafModels);
+		m_Tree.compact();
+		m_LeafModels = leafModels.toArray(new KNN_WeightD2[leafModels.size()]);
+	}
+
+	/**
+	 * Sets the number of instances from which on a leaf's neighbour model
+	 * groups identical instances, so that their distance to a query is
+	 * computed once.
+	 * 
+	 * @param indexLeafSize
+	 *            the leaf size, values below 1 turn grouping off
+	 */
+	public void setIndexLeafSize(int indexLeafSize)
+	{
+		m_IndexLeafSize = indexLeafSize;
+	}
+
+	/**
+	 * Gets the number of instances from which on a leaf's neighbour model
+	 * groups identical instances.
+	 * 
+	 * @return the leaf size
+	 */
+	public int getIndexLeafSize()
+	{
+		return m_IndexLeafSize;
+	}
+
+	/**
+	 * Builds the neighbour model of a leaf node.
+	 * 
+	 * @param data
+	 *            the instances of the leaf
+	 * @exception Exception
+	 *                if the model can't be built successfully
+	 */
+	private void makeLeafModel(Instances data) throws Exception
+	{
+		m_KNN = new KNN_WeightD2();
+		m_KNN.setGroupDuplicates(m_IndexLeafSize > 0
+				&& data.numInstances() >= m_IndexLeafSize);
+		m_KNN.buildClassifier(data);
+	}
+
+	/**
+	 * Sets the number of instances from which on a node builds its successors
+	 * and evaluates its attributes in parallel. The tree is the same either
+	 * way.
+	 * 
+	 * @param parallelThreshold
+	 *            the number of instances, values below 1 build sequentially
+	 */
+	public void setParallelThreshold(int parallelThreshold)
+	{
+		m_ParallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * Gets the number of instances from which on a node is built in parallel.
+	 * 
+	 * @return the number of instances
+	 */
+	public int getParallelThreshold()
+	{
+		return m_ParallelThreshold;
 	}
 
 	/**
@@ -45,28 +154,41 @@ public class Id3_LeafKNND2 extends Classifier
 	 * 
 	 * @param data
 	 *            the training data
+	 * @param rows
+	 *            the row indices of the training data, shared by the whole
+	 *            tree
+	 * @param start
+	 *            the first position of this node's rows
+	 * @param end
+	 *            the position after the last one of this node's rows
 	 * @exception Exception
 	 *                if decision tree can't be built successfully
 	 */
-	private void makeTree(Instances data) throws Exception
+	private void makeTree(ColumnarInstances data, int[] rows, int start,
+			int end) throws Exception
 	{
 
+		boolean parallel = m_ParallelThreshold > 0
+				&& end - start >= m_ParallelThreshold;
 		// Check if no instances have reached this node
-		if (data.numInstances() == 0)
+		if (start == end)
 		{
 			m_Attribute = null;
-			m_Instances = new Instances(data);
+			makeLeafModel(data.instances(rows, start, end));
 			return;
 		}
 		// Compute attribute with maximum split value.
 		double impurityReduce = 0;
 		double maxValue = 0;
 		int maxIndex = -1;
+		// one pass counts the classes per value of every attribute
+		ContingencyTable table = new ContingencyTable(data, rows, start, end,
+				parallel);
 		for (int i = 0; i < data.numAttributes(); i++)
 		{
 			if (i == data.classIndex())
 				continue;
-			impurityReduce = computeEntropyReduce(data, data.attribute(i));
+			impurityReduce = computeEntropyReduce(table, data.attribute(i));
 			if (impurityReduce > maxValue)
 			{
 				maxValue = impurityReduce;
@@ -77,99 +199,103 @@ public class Id3_LeafKNND2 extends Classifier
 		if (Utils.eq(maxValue, 0))
 		{
 			m_Attribute = null;
-			m_Instances = new Instances(data);
+			makeLeafModel(data.instances(rows, start, end));
 			return;
 		} else
 		{
 			m_Attribute = data.attribute(maxIndex);
-			Instances[] splitData = splitData(data, m_Attribute);
+			int[] bounds = data.partition(rows, start, end, maxIndex);
 			m_Successors = new Id3_LeafKNND2[m_Attribute.numValues()];
 			for (int j = 0; j < m_Attribute.numValues(); j++)
 			{
 				m_Successors[j] = new Id3_LeafKNND2();
-				m_Successors[j].makeTree(splitData[j]);
+				m_Successors[j].m_IndexLeafSize = m_IndexLeafSize;
+				m_Successors[j].m_ParallelThreshold = m_ParallelThreshold;
 			}
+			makeSuccessors(data, rows, bounds, parallel);
 		}
 	}
 
 	/**
-	 * Splits a dataset according to the values of a nominal attribute.
+	 * Builds the successors over the parts of a split.
 	 * 
 	 * @param data
-	 *            the data which is to be split
-	 * @param att
-	 *            the attribute to be used for splitting
-	 * @return the sets of instances produced by the split
+	 *            the training data
+	 * @param rows
+	 *            the row indices of the training data
+	 * @param bounds
+	 *            the parts of the split, successor j owns
+	 *            rows[bounds[j]..bounds[j + 1])
+	 * @param parallel
+	 *            whether to build the successors in parallel
+	 * @exception Exception
+	 *                if a successor can't be built successfully
 	 */
-	private Instances[] splitData(Instances data, Attribute att)
+	private void makeSuccessors(final ColumnarInstances data, final int[] rows,
+			int[] bounds, boolean parallel) throws Exception
 	{
-		int numAttValues = att.numValues();
-		Instances[] splitData = new Instances[numAttValues];
-		for (int j = 0; j < numAttValues; j++)
+		ParallelBuild.Task[] tasks = new ParallelBuild.Task[m_Successors.length];
+		for (int j = 0; j < m_Successors.length; j++)
 		{
-			splitData[j] = new Instances(data, 0);
-		}
-		int numInstances = data.numInstances();
-		for (int i = 0; i < numInstances; i++)
-		{
-			int attVal = (int) data.instance(i).value(att);
-			splitData[attVal].add(data.instance(i));
+			final Id3_LeafKNND2 successor = m_Successors[j];
+			final int start = bounds[j], end = bounds[j + 1];
+			tasks[j] = new ParallelBuild.Task()
+			{
+				public void run() throws Exception
+				{
+					successor.makeTree(data, rows, start, end);
+				}
+			};
 		}
-		return splitData;
+		ParallelBuild.invokeAll(tasks, parallel);
 	}
 
 	/**
-	 * Computes information gain for an attribute.
+	 * Computes information gain for an attribute from the class counts of
+	 * the node.
 	 * 
-	 * @param data
-	 *            the data for which info gain is to be computed
+	 * @param table
+	 *            the class counts of the data for which info gain is to be
+	 *            computed
 	 * @param att
 	 *            the attribute
 	 * @return the information gain for the given attribute and data
 	 */
-	private double computeEntropyReduce(Instances data, Attribute att)
-			throws Exception
+	private double computeEntropyReduce(ContingencyTable table, Attribute att)
 	{
 
-		double entropyReduce = computeEntropy(data);
-		Instances[] splitData = splitData(data, att);
+		double entropyReduce = computeEntropy(table.classCounts(),
+				table.numInstances());
 		for (int j = 0; j < att.numValues(); j++)
 		{
-			if (splitData[j].numInstances() > 0)
+			double numInstances = table.valueCount(att.index(), j);
+			if (numInstances > 0)
 			{
-				entropyReduce -= ((double) splitData[j].numInstances() / (double) data
-						.numInstances()) * computeEntropy(splitData[j]);
+				entropyReduce -= (numInstances / (double) table.numInstances())
+						* computeEntropy(table.classCounts(att.index(), j),
+								numInstances);
 			}
 		}
 		return entropyReduce;
 	}
 
 	/**
-	 * Computes the entropy of a dataset.
+	 * Computes the entropy of a class distribution.
 	 * 
-	 * @param data
-	 *            the data for which entropy is to be computed
-	 * @return the entropy of the data's class distribution
+	 * @param classCounts
+	 *            the number of instances of each class
+	 * @param numInstances
+	 *            the number of instances
+	 * @return the entropy of the class distribution
 	 */
-	private double computeEntropy(Instances data) throws Exception
+	private double computeEntropy(double[] classCounts, double numInstances)
 	{
 
-		int numClasses = data.numClasses();
-		int numInstances = data.numInstances();
-		double[] classCounts = new double[numClasses];
-		for (int i = 0; i < numInstances; i++)
-		{
-			int classVal = (int) data.instance(i).classValue();
-			classCounts[classVal]++;
-		}
-		for (int i = 0; i < numClasses; i++)
-		{
-			classCounts[i] /= numInstances;
-		}
 		double Entropy = 0;
-		for (int i = 0; i < numClasses; i++)
+		for (int i = 0; i < classCounts.length; i++)
 		{
-			Entropy -= classCounts[i] * log2(classCounts[i], 1);
+			double p = classCounts[i] / numInstances;
+			Entropy -= p * log2(p, 1);
 		}
 		return Entropy;
 	}
@@ -190,6 +316,32 @@ public class Id3_LeafKNND2 extends Classifier
 			return Math.log(x / y) / Math.log(2);
 	}
 
+	/**
+	 * Flattens the subtree of this node into the given tree.
+	 * 
+	 * @param tree
+	 *            the flat tree
+	 * @param node
+	 *            the position of this node in the flat tree
+	 * @param leafModels
+	 *            the list receiving the models of the leaves by leaf index
+	 */
+	private void flatten(FlatTree tree, int node, List<KNN_WeightD2> leafModels)
+	{
+		if (m_Attribute == null)
+		{
+			tree.setLeaf(node);
+			leafModels.add(m_KNN);
+			return;
+		}
+		int first = tree.setSplit(node, m_Attribute.index(),
+				m_Successors.length);
+		for (int j = 0; j < m_Successors.length; j++)
+		{
+			m_Successors[j].flatten(tree, first + j, leafModels);
+		}
+	}
+
 	/**
 	 * Computes class distribution for instance using decision tree.
 	 * 
@@ -199,17 +351,8 @@ public class Id3_LeafKNND2 extends Classifier
 	 */
 	public double[] distributionForInstance(Instance instance) throws Exception
 	{
-		if (m_Attribute == null)
-		{
-			KNN_WeightD2 weightD2=new KNN_WeightD2();
-			weightD2.buildClassifier(m_Instances);
-			return weightD2.distributionForInstance(instance);
-		} 
-		else
-		{
-			return m_Successors[(int) instance.value(m_Attribute)]
-					.distributionForInstance(instance);
-		}
+		return m_LeafModels[m_Tree.leaf(instance)]
+				.distributionForInstance(instance);
 	}
 
 	/**
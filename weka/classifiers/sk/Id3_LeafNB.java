@@ -1,6 +1,10 @@
 package weka.classifiers.sk;
 
 import weka.classifiers.*;
+import weka.classifiers.common.ColumnarInstances;
+import weka.classifiers.common.ContingencyTable;
+import weka.classifiers.common.FlatTree;
+import weka.classifiers.common.ParallelBuild;
 import weka.core.*;
 
 import java.util.*;
@@ -15,25 +19,84 @@ public class Id3_LeafNB extends Classifier
 
   /** Ƿ */
   private Attribute m_Attribute;
-  /** ѵ */
-  private Instances m_Instances;
+
+	/**
+	 * The number of instances from which on a node builds its successors and
+	 * evaluates its attributes in parallel, values below 1 build sequentially.
+	 */
+	private int m_ParallelThreshold = ParallelBuild.DEFAULT_THRESHOLD;
+
+	/** The tree flattened for prediction, only set at the root. */
+	private FlatTree m_Tree;
+
+	/** The models of the leaves by leaf index, only set at the root. */
+	private NB[] m_LeafModels;
+
+  /** The Naive Bayes model of a leaf, built from the leaf's training instances. */
+  private NB m_NB;
   private double m_ClassValue;
   private Attribute m_ClassAttribute;
-  private double[] m_Distribution;
   
   public void buildClassifier(Instances data) throws Exception 
   {
     //Build ID3 tree
-    makeTree(data);
+    final ColumnarInstances columns = new ColumnarInstances(data);
+    final int[] rows = columns.newRows();
+    if (m_ParallelThreshold > 0)
+    {
+      // large nodes fork their successors inside the pool
+      ParallelBuild.invoke(new ParallelBuild.Task()
+      {
+        public void run() throws Exception
+        {
+          makeTree(columns, rows, 0, rows.length);
+        }
+      });
+    } else
+    {
+      makeTree(columns, rows, 0, rows.length);
+    }
+    // flatten the tree for prediction
+    List<NB> leafModels = new ArrayList<NB>();
+    m_Tree = new FlatTree();
+    flatten(m_Tree, 0, leafModels);
+    m_Tree.compact();
+    m_LeafModels = leafModels.toArray(new NB[leafModels.size()]);
   }
 
-	private void makeTree(Instances data) throws Exception
+	/**
+	 * Sets the number of instances from which on a node builds its successors
+	 * and evaluates its attributes in parallel. The tree is the same either
+	 * way.
+	 * 
+	 * @param parallelThreshold
+	 *            the number of instances, values below 1 build sequentially
+	 */
+	public void setParallelThreshold(int parallelThreshold)
 	{
+		m_ParallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * Gets the number of instances from which on a node is built in parallel.
+	 * 
+	 * @return the number of instances
+	 */
+	public int getParallelThreshold()
+	{
+		return m_ParallelThreshold;
+	}
+
+	private void makeTree(ColumnarInstances data, int[] rows, int start,
+			int end) throws Exception
+	{
+		boolean parallel = m_ParallelThreshold > 0
+				&& end - start >= m_ParallelThreshold;
 		// Check if no instances have reached this node
-		if (data.numInstances() == 0)
+		if (start == end)
 		{
 			m_Attribute = null;
-			m_Instances = new Instances(data);
+			m_NB = new NB(data, rows, start, end);
 			m_ClassValue = Instance.missingValue();
 			return;
 		}
@@ -41,11 +104,14 @@ public class Id3_LeafNB extends Classifier
 		double impurityReduce = 0;
 		double maxValue = 0;
 		int maxIndex = -1;
+		// one pass counts the classes per value of every attribute
+		ContingencyTable table = new ContingencyTable(data, rows, start, end,
+				parallel);
 		for (int i = 0; i < data.numAttributes(); i++)
 		{
 			if (i == data.classIndex())
 				continue;
-			impurityReduce = computeEntropyReduce(data, data.attribute(i));
+			impurityReduce = computeEntropyReduce(table, data.attribute(i));
 			if (impurityReduce > maxValue)
 			{
 				maxValue = impurityReduce;
@@ -56,7 +122,11 @@ public class Id3_LeafNB extends Classifier
 		if (Utils.eq(maxValue, 0))
 		{
 		     m_Attribute = null;
-		     m_Instances=new Instances(data);
+		     // the leaf's counts are taken once here, a prediction only
+		     // looks them up
+		     m_NB = new NB(data, rows, start, end);
+			m_ClassValue = Utils.maxIndex(computeDistribution(
+					table.classCounts(), table.numInstances()));
 			//ԡ
 			m_ClassAttribute = data.classAttribute();
 			return;
@@ -64,84 +134,83 @@ public class Id3_LeafNB extends Classifier
 		else
 		{
 			m_Attribute = data.attribute(maxIndex);
-			Instances[] splitData = splitData(data, m_Attribute);
+			int[] bounds = data.partition(rows, start, end, maxIndex);
 			m_Successors = new Id3_LeafNB[m_Attribute.numValues()];
 			for (int j = 0; j < m_Attribute.numValues(); j++)
 			{
 				m_Successors[j] = new Id3_LeafNB();
-				m_Successors[j].makeTree(splitData[j]);
+				m_Successors[j].m_ParallelThreshold = m_ParallelThreshold;
 			}
+			makeSuccessors(data, rows, bounds, parallel);
 		}
 	}
 
 	/**
-	 * Splits a dataset according to the values of a nominal attribute.
-	 * ɢԵֵ
+	 * Builds the successors over the parts of a split.
 	 * 
 	 * @param data
-	 *            the data which is to be split
-	 * @param att
-	 *            the attribute to be used for splitting
-	 * @return the sets of instances produced by the split
+	 *            the training data
+	 * @param rows
+	 *            the row indices of the training data
+	 * @param bounds
+	 *            the parts of the split, successor j owns
+	 *            rows[bounds[j]..bounds[j + 1])
+	 * @param parallel
+	 *            whether to build the successors in parallel
+	 * @exception Exception
+	 *                if a successor can't be built successfully
 	 */
-	private Instances[] splitData(Instances data, Attribute att)
+	private void makeSuccessors(final ColumnarInstances data, final int[] rows,
+			int[] bounds, boolean parallel) throws Exception
 	{
-
-		int numAttValues = att.numValues();
-		Instances[] splitData = new Instances[numAttValues];
-		for (int j = 0; j < numAttValues; j++)
-		{
-			splitData[j] = new Instances(data, 0);
-		}
-		int numInstances = data.numInstances();
-		for (int i = 0; i < numInstances; i++)
+		ParallelBuild.Task[] tasks = new ParallelBuild.Task[m_Successors.length];
+		for (int j = 0; j < m_Successors.length; j++)
 		{
-			int attVal = (int) data.instance(i).value(att);
-			splitData[attVal].add(data.instance(i));
+			final Id3_LeafNB successor = m_Successors[j];
+			final int start = bounds[j], end = bounds[j + 1];
+			tasks[j] = new ParallelBuild.Task()
+			{
+				public void run() throws Exception
+				{
+					successor.makeTree(data, rows, start, end);
+				}
+			};
 		}
-		return splitData;
+		ParallelBuild.invokeAll(tasks, parallel);
 	}
 
   /**
-   * Computes information gain for an attribute.
+   * Computes information gain for an attribute from the class counts of the node.
    *
-   * @param data the data for which info gain is to be computed
+   * @param table the class counts of the data for which info gain is to be computed
    * @param att the attribute
    * @return the information gain for the given attribute and data
    */
-  private double computeEntropyReduce(Instances data, Attribute att) throws Exception {
+  private double computeEntropyReduce(ContingencyTable table, Attribute att) {
 
-    double entropyReduce = computeEntropy(data);
-    Instances[] splitData = splitData(data, att);
+    double entropyReduce = computeEntropy(table.classCounts(), table.numInstances());
     for (int j = 0; j < att.numValues(); j++) {
-      if (splitData[j].numInstances() > 0) {
-        entropyReduce-=((double)splitData[j].numInstances()/(double) data.numInstances())*computeEntropy(splitData[j]);
+      double numInstances = table.valueCount(att.index(), j);
+      if (numInstances > 0) {
+        entropyReduce-=(numInstances/(double) table.numInstances())*computeEntropy(table.classCounts(att.index(), j), numInstances);
       }
     }
     return entropyReduce;
   }
 
   /**
-   * Computes the entropy of a dataset.
+   * Computes the entropy of a class distribution.
    *
-   * @param data the data for which entropy is to be computed
-   * @return the entropy of the data's class distribution
+   * @param classCounts the number of instances of each class
+   * @param numInstances the number of instances
+   * @return the entropy of the class distribution
    */
-   private double computeEntropy(Instances data) throws Exception {
+   private double computeEntropy(double[] classCounts, double numInstances) {
 
-     int numClasses=data.numClasses();
-     int numInstances=data.numInstances();
-     double[] classCounts=new double[numClasses];
-     for (int i=0;i<numInstances;i++){
-       int classVal=(int)data.instance(i).classValue();
-       classCounts[classVal]++;
-     }
-     for (int i=0;i<numClasses;i++){
-       classCounts[i]/=numInstances;
-     }
      double Entropy=0;
-     for (int i=0;i<numClasses;i++){
-       Entropy-=classCounts[i]*log2(classCounts[i],1);
+     for (int i=0;i<classCounts.length;i++){
+       double p=classCounts[i]/numInstances;
+       Entropy-=p*log2(p,1);
      }
      return Entropy;
   }
@@ -161,43 +230,52 @@ public class Id3_LeafNB extends Classifier
       return Math.log(x/y)/Math.log(2);
   }
 
-	public double[] distributionForInstance(Instance instance) throws Exception
+	/**
+	 * Flattens the subtree of this node into the given tree.
+	 * 
+	 * @param tree
+	 *            the flat tree
+	 * @param node
+	 *            the position of this node in the flat tree
+	 * @param leafModels
+	 *            the list receiving the models of the leaves by leaf index
+	 */
+	private void flatten(FlatTree tree, int node, List<NB> leafModels)
 	{
 		if (m_Attribute == null)
 		{
-			NB nb=new NB(m_Instances);
-			m_Distribution=nb.distributionForInstance(instance);
-			// ĸĸߣǵȻĸ
-			m_ClassValue = Utils.maxIndex(m_Distribution);
-			return m_Distribution;
-		} 
-		else
+			tree.setLeaf(node);
+			leafModels.add(m_NB);
+			return;
+		}
+		int first = tree.setSplit(node, m_Attribute.index(),
+				m_Successors.length);
+		for (int j = 0; j < m_Successors.length; j++)
 		{
-			return m_Successors[(int) instance.value(m_Attribute)]
-					.distributionForInstance(instance);
+			m_Successors[j].flatten(tree, first + j, leafModels);
 		}
+	}
+
+	public double[] distributionForInstance(Instance instance) throws Exception
+	{
+		return m_LeafModels[m_Tree.leaf(instance)]
+				.distributionForInstance(instance);
 
 	}
 
 	/**
 	 * Compute the distribution.
 	 * 
-	 * @param data
-	 *            the training data
-	 * @exception Exception
-	 *                if classifier can't be built successfully
+	 * @param classCounts
+	 *            the number of training instances of each class
+	 * @param numInstances
+	 *            the number of training instances
+	 * @return the distribution
 	 */
-	private double[] computeDistribution(Instances data) throws Exception
+	private double[] computeDistribution(double[] classCounts, int numInstances)
 	{
-		int numClasses=data.numClasses();
+		int numClasses=classCounts.length;
 	    double[] probs=new double[numClasses];
-	    double[] classCounts=new double[numClasses];
-	    int numInstances=data.numInstances();
-	    for (int i=0;i<numInstances;i++)
-	    {
-	      int classVal=(int)data.instance(i).classValue();
-	      classCounts[classVal] ++;
-	    }
 	    for (int i=0;i<numClasses;i++)
 	    {
 	      probs[i]=(classCounts[i]+1.0)/(numInstances+numClasses);
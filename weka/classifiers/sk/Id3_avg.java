@@ -24,6 +24,10 @@ package weka.classifiers.sk;
 
 import weka.classifiers.Classifier;
 import weka.classifiers.Sourcable;
+import weka.classifiers.common.ColumnarInstances;
+import weka.classifiers.common.ContingencyTable;
+import weka.classifiers.common.FlatTree;
+import weka.classifiers.common.ParallelBuild;
 import weka.core.Attribute;
 import weka.core.Capabilities;
 import weka.core.Instance;
@@ -39,8 +43,6 @@ import weka.core.TechnicalInformation.Type;
 
 import java.util.Enumeration;
 
-import java_cup.internal_error;
-
 /**
  * ID3㷨ĻϽиĽѡIGainģѡIgain/
  * @author 
@@ -55,6 +57,24 @@ public class Id3_avg extends Classifier
 	 * m_Attribute Ƿ*/
 	private Attribute m_Attribute;
 
+	/**
+	 * The number of instances from which on a node builds its successors and
+	 * evaluates its attributes in parallel, values below 1 build sequentially.
+	 */
+	private int m_ParallelThreshold = ParallelBuild.DEFAULT_THRESHOLD;
+
+	/** The tree flattened for prediction, only set at the root. */
+	private FlatTree m_Tree;
+
+	/** Whether the tree is compiled into bytecode after building. */
+	private boolean m_Compile;
+
+	/**
+	 * The tree compiled into bytecode, used for prediction instead of the
+	 * flat tree if set.
+	 */
+	private transient volatile CompiledTree m_Compiled;
+
 	/** Class value if node is leaf. */
 	private double m_ClassValue;
 
@@ -118,19 +138,141 @@ public class Id3_avg extends Classifier
 		 */
 		data.deleteWithMissingClass();
 
-		makeTree(data);
+		buildClassifier(new ColumnarInstances(data));
+	}
+
+	/**
+	 * Builds Id3 decision tree classifier from coded instances, such as those
+	 * loaded by ColumnarFile, without copying them.
+	 * 
+	 * @param columns
+	 *            the coded training data, without missing class values
+	 * @exception Exception
+	 *                if classifier can't be built successfully
+	 */
+	public void buildClassifier(final ColumnarInstances columns)
+			throws Exception
+	{
+		getCapabilities().testWithFail(columns.dataset());
+
+		final int[] rows = columns.newRows();
+		if (m_ParallelThreshold > 0)
+		{
+			// large nodes fork their successors inside the pool
+			ParallelBuild.invoke(new ParallelBuild.Task()
+			{
+				public void run() throws Exception
+				{
+					makeTree(columns, rows, 0, rows.length);
+				}
+			});
+		} else
+		{
+			makeTree(columns, rows, 0, rows.length);
+		}
+		// flatten the tree for prediction
+		m_Tree = new FlatTree();
+		flatten(m_Tree, 0);
+		m_Tree.compact();
+		m_Compiled = null;
+		if (m_Compile)
+		{
+			compile();
+		}
+	}
+
+	/**
+	 * Sets the number of instances from which on a node builds its successors
+	 * and evaluates its attributes in parallel. The tree is the same either
+	 * way.
+	 * 
+	 * @param parallelThreshold
+	 *            the number of instances, values below 1 build sequentially
+	 */
+	public void setParallelThreshold(int parallelThreshold)
+	{
+		m_ParallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * Gets the number of instances from which on a node is built in parallel.
+	 * 
+	 * @return the number of instances
+	 */
+	public int getParallelThreshold()
+	{
+		return m_ParallelThreshold;
+	}
+
+	/**
+	 * Sets whether the tree is compiled into bytecode after building, see
+	 * compile().
+	 * 
+	 * @param compile
+	 *            whether to compile the tree
+	 */
+	public void setCompile(boolean compile)
+	{
+		m_Compile = compile;
+	}
+
+	/**
+	 * Gets whether the tree is compiled into bytecode after building.
+	 * 
+	 * @return whether the tree is compiled
+	 */
+	public boolean getCompile()
+	{
+		return m_Compile;
+	}
+
+	/**
+	 * Compiles the built tree into bytecode and swaps it in for prediction.
+	 * Predictions running meanwhile use the previous model, and a compiled
+	 * tree is not serialized, so a deserialized classifier predicts from the
+	 * flat tree until compiled again.
+	 * 
+	 * @return whether the tree was compiled, false if no Java compiler is
+	 *         available or compiling failed, the flat tree is used then
+	 */
+	public boolean compile()
+	{
+		CompiledTree compiled = CompiledTree.compile(m_Tree);
+		if (compiled == null)
+		{
+			return false;
+		}
+		m_Compiled = compiled;
+		return true;
+	}
+
+	/**
+	 * Gets the compiled tree, which classifies int-coded attribute values
+	 * without building instances.
+	 * 
+	 * @return the compiled tree, null if the tree was not compiled
+	 */
+	public CompiledTree getCompiledTree()
+	{
+		return m_Compiled;
 	}
 
 	/**
 	 * ID3
 	 * @param data ѵ
+	 * @param rows ѵ±꣬
+	 * @param start һ rows еλ
+	 * @param end һ֮λ
 	 * @exception ûгɹʱ׳쳣
 	 */
-	private void makeTree(Instances data) throws Exception
+	private void makeTree(ColumnarInstances data, int[] rows, int start,
+			int end) throws Exception
 	{
+		boolean parallel = m_ParallelThreshold > 0
+				&& end - start >= m_ParallelThreshold;
 		// Check if no instances have reached this node.
 		// ݼе
-		if (data.numInstances() == 0)
+		if (start == end)
 		{
 			m_Attribute = null;
 			m_ClassValue = Instance.missingValue();
@@ -142,11 +284,14 @@ public class Id3_avg extends Classifier
 		double[] infoGains = new double[data.numAttributes()];
 		attNum0fVal=new int[data.numAttributes()];
 		//Եö˷ԣ
+		// one pass counts the classes per value of every attribute
+		ContingencyTable table = new ContingencyTable(data, rows, start, end,
+				parallel);
 		Enumeration attEnum = data.enumerateAttributes();
 		while (attEnum.hasMoreElements())
 		{
 			Attribute att = (Attribute) attEnum.nextElement();
-			infoGains[att.index()] = computeInfoGain(data, att);
+			infoGains[att.index()] = table.infoGain(att.index());
 			attNum0fVal[att.index()]=att.numValues();
 		}
 		/**
@@ -165,16 +310,15 @@ public class Id3_avg extends Classifier
 			//m_Attribute = nullѾٷˣΪ null
 			m_Attribute = null;
 			m_Distribution = new double[data.numClasses()];//Returns the number of class labels.
-			Enumeration instEnum = data.enumerateInstances();
-			while (instEnum.hasMoreElements())
+			int[] classValues = data.classValues();
+			for (int i = start; i < end; i++)
 			{
-				Instance inst = (Instance) instEnum.nextElement();
 				/**
 				 * ҲǽÿӦ± 1統ǰ
 				 *	Ҷ     10     9     һ     1          
 				 *	m_Distribution[0]=9,m_Distribution[ 4]=1
 				 */
-				m_Distribution[(int) inst.classValue()]++;
+				m_Distribution[classValues[rows[i]]]++;
 			}
 			//     Ϊ  һ   
 			Utils.normalize(m_Distribution);
@@ -185,22 +329,54 @@ public class Id3_avg extends Classifier
 		}
 		else
 		{
-			/**
-			 *  splitData(data, m_Attribute)Уdata 
-        		*ѳ m_Attribute ɢֵӽ㣬 m_Attribute ȡֵgreenredblue
-		    	* splitData  data ֳ 3 ֵ splitData С
-			 */
-			Instances[] splitData = splitData(data, m_Attribute);
+			// partition this node's rows by the values of m_Attribute, one
+			// part per successor
+			int[] bounds = data.partition(rows, start, end, m_Attribute.index());
 			m_Successors = new Id3_avg[m_Attribute.numValues()];
 			for (int j = 0; j < m_Attribute.numValues(); j++)
 			{
 				m_Successors[j] = new Id3_avg();
-				m_Successors[j].makeTree(splitData[j]);
+				m_Successors[j].m_ParallelThreshold = m_ParallelThreshold;
 			}
+			makeSuccessors(data, rows, bounds, parallel);
 		}
 		//</editor-fold>
 	}
 
+	/**
+	 * Builds the successors over the parts of a split.
+	 * 
+	 * @param data
+	 *            the training data
+	 * @param rows
+	 *            the row indices of the training data
+	 * @param bounds
+	 *            the parts of the split, successor j owns
+	 *            rows[bounds[j]..bounds[j + 1])
+	 * @param parallel
+	 *            whether to build the successors in parallel
+	 * @exception Exception
+	 *                if a successor can't be built successfully
+	 */
+	private void makeSuccessors(final ColumnarInstances data, final int[] rows,
+			int[] bounds, boolean parallel) throws Exception
+	{
+		ParallelBuild.Task[] tasks = new ParallelBuild.Task[m_Successors.length];
+		for (int j = 0; j < m_Successors.length; j++)
+		{
+			final Id3_avg successor = m_Successors[j];
+			final int start = bounds[j], end = bounds[j + 1];
+			tasks[j] = new ParallelBuild.Task()
+			{
+				public void run() throws Exception
+				{
+					successor.makeTree(data, rows, start, end);
+				}
+			};
+		}
+		ParallelBuild.invokeAll(tasks, parallel);
+	}
+
 	/**
 	 * Igain/ԶӦȡֵĸ֮ȥֵ±
 	 * @return ŵԵ±
@@ -221,6 +397,29 @@ public class Id3_avg extends Classifier
 		return maxIndex;
 	}
 	
+	/**
+	 * Flattens the subtree of this node into the given tree.
+	 * 
+	 * @param tree
+	 *            the flat tree
+	 * @param node
+	 *            the position of this node in the flat tree
+	 */
+	private void flatten(FlatTree tree, int node)
+	{
+		if (m_Attribute == null)
+		{
+			tree.setLeaf(node, m_ClassValue, m_Distribution);
+			return;
+		}
+		int first = tree.setSplit(node, m_Attribute.index(),
+				m_Successors.length);
+		for (int j = 0; j < m_Successors.length; j++)
+		{
+			m_Successors[j].flatten(tree, first + j);
+		}
+	}
+
 	/**
 	 * Classifies a given test instance using the decision tree.
 	 * 
@@ -239,14 +438,12 @@ public class Id3_avg extends Classifier
 			throw new NoSupportForMissingValuesException(
 					"Id3: no missing values, " + "please.");
 		}
-		if (m_Attribute == null)
+		CompiledTree compiled = m_Compiled;
+		if (compiled != null)
 		{
-			return m_ClassValue;
-		} else
-		{
-			return m_Successors[(int) instance.value(m_Attribute)]
-					.classifyInstance(instance);
+			return compiled.classValue(instance);
 		}
+		return m_Tree.classValue(instance);
 	}
 
 	/**
@@ -267,15 +464,12 @@ public class Id3_avg extends Classifier
 			throw new NoSupportForMissingValuesException(
 					"Id3: no missing values, " + "please.");
 		}
-		if (m_Attribute == null)
+		CompiledTree compiled = m_Compiled;
+		if (compiled != null)
 		{
-			return m_Distribution;
-		} 
-		else
-		{
-			return m_Successors[(int) instance.value(m_Attribute)]
-					.distributionForInstance(instance);
+			return compiled.distribution(instance);
 		}
+		return m_Tree.distribution(instance);
 	}
 
 	/**
@@ -293,96 +487,6 @@ public class Id3_avg extends Classifier
 		return "Id3\n\n" + toString(0);
 	}
 
-	/**
-	 * Computes information gain for an attribute.
-	 * 
-	 * @param data
-	 *            the data for which info gain is to be computed
-	 * @param att
-	 *            the attribute
-	 * @return the information gain for the given attribute and data
-	 * @throws Exception
-	 *             if computation fails
-	 */
-	private double computeInfoGain(Instances data, Attribute att)
-			throws Exception
-	{
-
-		double infoGain = computeEntropy(data);
-		Instances[] splitData = splitData(data, att);
-		for (int j = 0; j < att.numValues(); j++)
-		{
-			if (splitData[j].numInstances() > 0)
-			{
-				infoGain -= ((double) splitData[j].numInstances() / (double) data
-						.numInstances()) * computeEntropy(splitData[j]);
-			}
-		}
-		return infoGain;
-	}
-
-	/**
-	 * Computes the entropy of a dataset.
-	 * 
-	 * @param data
-	 *            the data for which entropy is to be computed
-	 * @return the entropy of the data's class distribution
-	 * @throws Exception
-	 *             if computation fails
-	 */
-	private double computeEntropy(Instances data) throws Exception
-	{
-
-		double[] classCounts = new double[data.numClasses()];
-		Enumeration instEnum = data.enumerateInstances();
-		while (instEnum.hasMoreElements())
-		{
-			Instance inst = (Instance) instEnum.nextElement();
-			classCounts[(int) inst.classValue()]++;
-		}
-		double entropy = 0;
-		for (int j = 0; j < data.numClasses(); j++)
-		{
-			if (classCounts[j] > 0)
-			{
-				entropy -= classCounts[j] * Utils.log2(classCounts[j]);
-			}
-		}
-		entropy /= (double) data.numInstances();
-		return entropy + Utils.log2(data.numInstances());
-	}
-
-	/**
-	 * Splits a dataset according to the values of a nominal attribute.
-	 *  dataѳ att.numValues()ӽ㣬inst.value(att)Ǹ inst att ֵ inst
-	 *    ֳӦӽСȷе㣬Ҳӽ㣬һ Instances Ԫأ
-	 * @param data
-	 *            the data which is to be split
-	 * @param att
-	 *            the attribute to be used for splitting
-	 * @return the sets of instances produced by the split
-	 */
-	private Instances[] splitData(Instances data, Attribute att)
-	{
-
-		Instances[] splitData = new Instances[att.numValues()];
-		for (int j = 0; j < att.numValues(); j++)
-		{
-			splitData[j] = new Instances(data, data.numInstances());
-		}
-		Enumeration instEnum = data.enumerateInstances();
-		while (instEnum.hasMoreElements())
-		{
-			Instance inst = (Instance) instEnum.nextElement();
-			splitData[(int) inst.value(att)].add(inst);
-		}
-		for (int i = 0; i < splitData.length; i++)
-		{
-			splitData[i].compactify();
-		}
-		return splitData;
-	}
-
 	/**
 	 * Outputs a tree at a certain level.
 	 * 
@@ -24,6 +24,10 @@ package weka.classifiers.sk;
 
 import weka.classifiers.Classifier;
 import weka.classifiers.Sourcable;
+import weka.classifiers.common.ColumnarInstances;
+import weka.classifiers.common.ContingencyTable;
+import weka.classifiers.common.FlatTree;
+import weka.classifiers.common.ParallelBuild;
 import weka.core.Attribute;
 import weka.core.Capabilities;
 import weka.core.Instance;
@@ -50,8 +54,6 @@ import java.util.Map.Entry;
 
 import javax.xml.crypto.Data;
 
-import java_cup.internal_error;
-
 public class Id3_splitAOverAvg extends Classifier implements TechnicalInformationHandler,
 Sourcable
 {
@@ -62,6 +64,24 @@ Sourcable
 	 * m_Attribute Ƿ*/
 	private Attribute m_Attribute;
 
+	/**
+	 * The number of instances from which on a node builds its successors and
+	 * evaluates its attributes in parallel, values below 1 build sequentially.
+	 */
+	private int m_ParallelThreshold = ParallelBuild.DEFAULT_THRESHOLD;
+
+	/** The tree flattened for prediction, only set at the root. */
+	private FlatTree m_Tree;
+
+	/** Whether the tree is compiled into bytecode after building. */
+	private boolean m_Compile;
+
+	/**
+	 * The tree compiled into bytecode, used for prediction instead of the
+	 * flat tree if set.
+	 */
+	private transient volatile CompiledTree m_Compiled;
+
 	/** Class value if node is leaf. */
 	private double m_ClassValue;
 
@@ -73,8 +93,6 @@ Sourcable
 
 	/** Class attribute of dataset. */
 	private Attribute m_ClassAttribute;
-	//ѵ
-	private Instances m_Instances;
 	private ArrayList<Integer> indexOfUsedAtts=new ArrayList<Integer>();
 	
 	/**
@@ -119,13 +137,129 @@ Sourcable
 		getCapabilities().testWithFail(data);
 
 		// remove instances with missing class
-		m_Instances = new Instances(data);
+		data = new Instances(data);
 		/**
 		 *  data.deleteWithMissingClass ɾȱʧĺ
 		 */
-		m_Instances.deleteWithMissingClass();
+		data.deleteWithMissingClass();
+
+		buildClassifier(new ColumnarInstances(data));
+	}
+
+	/**
+	 * Builds Id3 decision tree classifier from coded instances, such as those
+	 * loaded by ColumnarFile, without copying them.
+	 * 
+	 * @param columns
+	 *            the coded training data, without missing class values
+	 * @exception Exception
+	 *                if classifier can't be built successfully
+	 */
+	public void buildClassifier(final ColumnarInstances columns)
+			throws Exception
+	{
+		getCapabilities().testWithFail(columns.dataset());
+
+		final int[] rows = columns.newRows();
+		if (m_ParallelThreshold > 0)
+		{
+			// large nodes fork their successors inside the pool
+			ParallelBuild.invoke(new ParallelBuild.Task()
+			{
+				public void run() throws Exception
+				{
+					makeTree(columns, rows, 0, rows.length);
+				}
+			});
+		} else
+		{
+			makeTree(columns, rows, 0, rows.length);
+		}
+		// flatten the tree for prediction
+		m_Tree = new FlatTree();
+		flatten(m_Tree, 0);
+		m_Tree.compact();
+		m_Compiled = null;
+		if (m_Compile)
+		{
+			compile();
+		}
+	}
+
+	/**
+	 * Sets the number of instances from which on a node builds its successors
+	 * and evaluates its attributes in parallel. The tree is the same either
+	 * way.
+	 * 
+	 * @param parallelThreshold
+	 *            the number of instances, values below 1 build sequentially
+	 */
+	public void setParallelThreshold(int parallelThreshold)
+	{
+		m_ParallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * Gets the number of instances from which on a node is built in parallel.
+	 * 
+	 * @return the number of instances
+	 */
+	public int getParallelThreshold()
+	{
+		return m_ParallelThreshold;
+	}
+
+	/**
+	 * Sets whether the tree is compiled into bytecode after building, see
+	 * compile().
+	 * 
+	 * @param compile
+	 *            whether to compile the tree
+	 */
+	public void setCompile(boolean compile)
+	{
+		m_Compile = compile;
+	}
+
+	/**
+	 * Gets whether the tree is compiled into bytecode after building.
+	 * 
+	 * @return whether the tree is compiled
+	 */
+	public boolean getCompile()
+	{
+		return m_Compile;
+	}
+
+	/**
+	 * Compiles the built tree into bytecode and swaps it in for prediction.
+	 * Predictions running meanwhile use the previous model, and a compiled
+	 * tree is not serialized, so a deserialized classifier predicts from the
+	 * flat tree until compiled again.
+	 * 
+	 * @return whether the tree was compiled, false if no Java compiler is
+	 *         available or compiling failed, the flat tree is used then
+	 */
+	public boolean compile()
+	{
+		CompiledTree compiled = CompiledTree.compile(m_Tree);
+		if (compiled == null)
+		{
+			return false;
+		}
+		m_Compiled = compiled;
+		return true;
+	}
 
-		makeTree(m_Instances);
+	/**
+	 * Gets the compiled tree, which classifies int-coded attribute values
+	 * without building instances.
+	 * 
+	 * @return the compiled tree, null if the tree was not compiled
+	 */
+	public CompiledTree getCompiledTree()
+	{
+		return m_Compiled;
 	}
 
 	/**
@@ -133,15 +267,24 @@ Sourcable
 	 * 
 	 * @param data
 	 *            the training data
+	 * @param rows
+	 *            the row indices of the training data, shared by the whole
+	 *            tree
+	 * @param start
+	 *            the first position of this node's rows
+	 * @param end
+	 *            the position after the last one of this node's rows
 	 * @exception Exception
 	 *                if decision tree can't be built successfully
 	 */
-	private void makeTree(Instances data) throws Exception
+	private void makeTree(ColumnarInstances data, int[] rows, int start,
+			int end) throws Exception
 	{
-		m_Instances=new Instances(data);
+		boolean parallel = m_ParallelThreshold > 0
+				&& end - start >= m_ParallelThreshold;
 		// Check if no instances have reached this node.
 		// ݼе
-		if (m_Instances.numInstances() == 0)
+		if (start == end)
 		{
 			m_Attribute = null;
 			m_ClassValue = Instance.missingValue();
@@ -158,18 +301,21 @@ Sourcable
 		}
 		//Returns an enumeration of all the attributes. The class attribute (if set) is skipped by this enumeration.
 		//Եö˷ԣ
+		// one pass counts the classes per value of every attribute
+		ContingencyTable table = new ContingencyTable(data, rows, start, end,
+				parallel);
 		Enumeration attEnum = data.enumerateAttributes();
 		while (attEnum.hasMoreElements())
 		{
 			Attribute att = (Attribute) attEnum.nextElement();
-			infoGains[att.index()] = computeInfoGain(data, att);
-			splitAs[att.index()]=computeSplitA(data, att);
+			infoGains[att.index()] = table.infoGain(att.index());
+			splitAs[att.index()]=table.splitInfo(att.index());
 		}
 		/**
 		 * Util.maxIndex Ϣ±꣬ΪԱ
 		 * m_Attribute ԱС
 		 */
-		int maxIndex=maxIndexOfGainRation(infoGains,splitAs);
+		int maxIndex=maxIndexOfGainRation(data, infoGains,splitAs);
 		m_Attribute = data.attribute(maxIndex);
 		indexOfUsedAtts.add(maxIndex);
 		// Make leaf if information gain is zero.
@@ -182,16 +328,15 @@ Sourcable
 			//m_Attribute = nullѾٷˣΪ null
 			m_Attribute = null;
 			m_Distribution = new double[data.numClasses()];//Returns the number of class labels.
-			Enumeration instEnum = data.enumerateInstances();
-			while (instEnum.hasMoreElements())
+			int[] classValues = data.classValues();
+			for (int i = start; i < end; i++)
 			{
-				Instance inst = (Instance) instEnum.nextElement();
 				/**
 				 * ҲǽÿӦ± 1統ǰ
 				 *	Ҷ     10     9     һ     1          
 				 *	m_Distribution[0]=9,m_Distribution[ 4]=1
 				 */
-				m_Distribution[(int) inst.classValue()]++;
+				m_Distribution[classValues[rows[i]]]++;
 			}
 			//     Ϊ  һ  
 			Utils.normalize(m_Distribution);
@@ -202,31 +347,64 @@ Sourcable
 		}
 		else
 		{
-			/**
-			 *  splitData(data, m_Attribute)Уdata 
-        	 * ѳ m_Attribute ɢֵӽ㣬 m_Attribute ȡֵgreenredblue
-		     *  splitData  data ֳ 3 ֵ splitData С
-			 */
-			Instances[] splitData = splitData(data, m_Attribute);
+			// partition this node's rows by the values of m_Attribute, one
+			// part per successor
+			int[] bounds = data.partition(rows, start, end, m_Attribute.index());
 			m_Successors = new Id3_splitAOverAvg[m_Attribute.numValues()];
 			for (int j = 0; j < m_Attribute.numValues(); j++)
 			{
 				m_Successors[j] = new Id3_splitAOverAvg();
-				m_Successors[j].makeTree(splitData[j]);
+				m_Successors[j].m_ParallelThreshold = m_ParallelThreshold;
 			}
+			makeSuccessors(data, rows, bounds, parallel);
 		}
 	}
 
+	/**
+	 * Builds the successors over the parts of a split.
+	 * 
+	 * @param data
+	 *            the training data
+	 * @param rows
+	 *            the row indices of the training data
+	 * @param bounds
+	 *            the parts of the split, successor j owns
+	 *            rows[bounds[j]..bounds[j + 1])
+	 * @param parallel
+	 *            whether to build the successors in parallel
+	 * @exception Exception
+	 *                if a successor can't be built successfully
+	 */
+	private void makeSuccessors(final ColumnarInstances data, final int[] rows,
+			int[] bounds, boolean parallel) throws Exception
+	{
+		ParallelBuild.Task[] tasks = new ParallelBuild.Task[m_Successors.length];
+		for (int j = 0; j < m_Successors.length; j++)
+		{
+			final Id3_splitAOverAvg successor = m_Successors[j];
+			final int start = bounds[j], end = bounds[j + 1];
+			tasks[j] = new ParallelBuild.Task()
+			{
+				public void run() throws Exception
+				{
+					successor.makeTree(data, rows, start, end);
+				}
+			};
+		}
+		ParallelBuild.invokeAll(tasks, parallel);
+	}
+
 	/**
 	 * õϢԵ±
+	 * @param data  ѵ
 	 * @param infoGains  ӽڵinfgains
 	 * @param splitAs	  	split
 	 * @return ϢȵԵ±
 	 */
-	private int maxIndexOfGainRation(double infoGains[],double splitAs[])
+	private int maxIndexOfGainRation(ColumnarInstances data, double infoGains[],double splitAs[])
 	{
 		//Եö˷ԣ
-		Enumeration attEnum = m_Instances.enumerateAttributes();
+		Enumeration attEnum = data.enumerateAttributes();
 		double maxGainRatio=0;//Ϣ
 		int maxIndex=0;//Ϣʵ±
 		
@@ -243,7 +421,7 @@ Sourcable
 		
 		//ѡܹõʵ ,ǸԵ
 		//ϢҪԵϢƽֵ 
-		attEnum = m_Instances.enumerateAttributes();
+		attEnum = data.enumerateAttributes();
 		int attNum2=0;
 		while (attEnum.hasMoreElements())
 		{
@@ -263,7 +441,7 @@ Sourcable
 		}
 		else 
 		{
-			attEnum = m_Instances.enumerateAttributes();
+			attEnum = data.enumerateAttributes();
 			while(attEnum.hasMoreElements())
 			{
 				Attribute attribute=(Attribute)attEnum.nextElement();
@@ -279,6 +457,29 @@ Sourcable
 		}
 	}
 	
+	/**
+	 * Flattens the subtree of this node into the given tree.
+	 * 
+	 * @param tree
+	 *            the flat tree
+	 * @param node
+	 *            the position of this node in the flat tree
+	 */
+	private void flatten(FlatTree tree, int node)
+	{
+		if (m_Attribute == null)
+		{
+			tree.setLeaf(node, m_ClassValue, m_Distribution);
+			return;
+		}
+		int first = tree.setSplit(node, m_Attribute.index(),
+				m_Successors.length);
+		for (int j = 0; j < m_Successors.length; j++)
+		{
+			m_Successors[j].flatten(tree, first + j);
+		}
+	}
+
 	/**
 	 * Classifies a given test instance using the decision tree.
 	 * 
@@ -297,14 +498,12 @@ Sourcable
 			throw new NoSupportForMissingValuesException(
 					"Id3: no missing values, " + "please.");
 		}
-		if (m_Attribute == null)
-		{
-			return m_ClassValue;
-		} else
+		CompiledTree compiled = m_Compiled;
+		if (compiled != null)
 		{
-			return m_Successors[(int) instance.value(m_Attribute)]
-					.classifyInstance(instance);
+			return compiled.classValue(instance);
 		}
+		return m_Tree.classValue(instance);
 	}
 
 	/**
@@ -325,134 +524,12 @@ Sourcable
 			throw new NoSupportForMissingValuesException(
 					"Id3: no missing values, " + "please.");
 		}
-		if (m_Attribute == null)
-		{
-			return m_Distribution;
-		} 
-		else
-		{
-			return m_Successors[(int) instance.value(m_Attribute)]
-					.distributionForInstance(instance);
-		}
-	}
-
-	/**
-	 * Computes information gain for an attribute.
-	 * 
-	 * @param data
-	 *            the data for which info gain is to be computed
-	 * @param att
-	 *            the attribute
-	 * @return the information gain for the given attribute and data
-	 * @throws Exception
-	 *             if computation fails
-	 */
-	private double computeInfoGain(Instances data, Attribute att)
-			throws Exception
-	{
-
-		double infoGain = computeEntropy(data);
-		Instances[] splitData = splitData(data, att);
-		for (int j = 0; j < att.numValues(); j++)
-		{
-			if (splitData[j].numInstances() > 0)
-			{
-				infoGain -= ((double) splitData[j].numInstances() / (double) data
-						.numInstances()) * computeEntropy(splitData[j]);
-			}
-		}
-		return infoGain;
-	}
-
-	/**
-	 * SplitAֵڼϢϢ
-	 * @param data ҪSplitAѵļ
-	 * @param attribute ҪSplitA
-	 * @return
-	 */
-	private double computeSplitA(Instances data,Attribute attribute)
-	{
-		int valCounts[]=new int[attribute.numValues()];
-		//ͳƳÿֵжٸ
-		//dataĵ
-		Enumeration instEnum = data.enumerateInstances();
-		while (instEnum.hasMoreElements())
-		{
-			Instance inst = (Instance) instEnum.nextElement();
-			String value=inst.stringValue(attribute);
-			valCounts[attribute.indexOfValue(value)]++;
-		}
-		
-		double splitA = 0.0;
-	  	 int num=data.numInstances();
-		for (int j = 0; j < attribute.numValues(); j++)
-		{
-			if(valCounts[j]>0)
-			{
-				splitA -= valCounts[j] * Utils.log2(valCounts[j]);
-			}
-		}
-		splitA /=(double)num;
-		return splitA + Utils.log2(data.numInstances()); 			
-	}
-	
-	/**
-	 * ݼ
-	 * @param data Ҫصݼ
-	 * @return ݼķԵ
-	 * @throws Exception ʧ֮׳쳣
-	 */
-	private double computeEntropy(Instances data) throws Exception
-	{
-
-		double[] classCounts = new double[data.numClasses()];
-		Enumeration instEnum = data.enumerateInstances();
-		while (instEnum.hasMoreElements())
-		{
-			Instance inst = (Instance) instEnum.nextElement();
-			classCounts[(int) inst.classValue()]++;
-		}
-		double entropy = 0;
-		for (int j = 0; j < data.numClasses(); j++)
-		{
-			if (classCounts[j] > 0)
-			{
-				entropy -= classCounts[j] * Utils.log2(classCounts[j]);
-			}
-		}
-		entropy /= (double) data.numInstances();
-		return entropy + Utils.log2(data.numInstances());
-	}
-
-	/**
-	 * Splits a dataset according to the values of a nominal attribute.
-	 *  dataѳ att.numValues()ӽ㣬inst.value(att)Ǹ inst att ֵ inst
-	 *    ֳӦӽСȷе㣬Ҳӽ㣬һ Instances Ԫأ
-	 * @param data
-	 *            the data which is to be split
-	 * @param att
-	 *            the attribute to be used for splitting
-	 * @return the sets of instances produced by the split
-	 */
-	private Instances[] splitData(Instances data, Attribute att)
-	{
-
-		Instances[] splitData = new Instances[att.numValues()];
-		for (int j = 0; j < att.numValues(); j++)
-		{
-			splitData[j] = new Instances(data, data.numInstances());
-		}
-		Enumeration instEnum = data.enumerateInstances();
-		while (instEnum.hasMoreElements())
-		{
-			Instance inst = (Instance) instEnum.nextElement();
-			splitData[(int) inst.value(att)].add(inst);
-		}
-		for (int i = 0; i < splitData.length; i++)
+		CompiledTree compiled = m_Compiled;
+		if (compiled != null)
 		{
-			splitData[i].compactify();
+			return compiled.distribution(instance);
 		}
-		return splitData;
+		return m_Tree.distribution(instance);
 	}
 
 	/**
@@ -37,7 +37,7 @@ import weka.core.TechnicalInformation.Type;
 
 import java.util.Enumeration;
 
-public class K1NN extends Classifier 
+public class K1NN extends Classifier implements UpdateableClassifier
 {
 
 	/** The training instances used for classification. */
@@ -49,6 +49,24 @@ public class K1NN extends Classifier
 	/** The maximum values for numeric attributes. */
 	private double[] m_MaxArray;
 
+	/** The reciprocal of the range of each numeric attribute, 0 if it has none. */
+	private double[] m_Scale;
+
+	/** Whether the ranges also take in the instances being classified. */
+	private boolean m_AdaptiveRanges;
+
+	/**
+	 * The attributes (class excluded) in the order distance() visits them,
+	 * the largest expected terms first.
+	 */
+	private int[] m_Order;
+
+	/**
+	 * The relative margin by which a distance summed in m_Order must reach
+	 * the bound, more than rounding in any order can account for.
+	 */
+	private static final double SLACK = 1e-9;
+
 	/**
 	 * Returns default capabilities of the classifier.
 	 * @return the capabilities of this classifier
@@ -109,6 +127,34 @@ public class K1NN extends Classifier
 		{
 			updateMinMax((Instance) enu.nextElement());
 		}
+		updateScale();
+		learnOrder();
+	}
+
+	/**
+	 * Sets whether the ranges of the numeric attributes are widened by the
+	 * instances being classified, as IB1 does. By default they are fixed once
+	 * the classifier is built, so that classifying leaves the model unchanged
+	 * and one model can classify from several threads. Adapting models
+	 * classify one instance at a time.
+	 * 
+	 * @param adaptiveRanges
+	 *            true to widen the ranges while classifying
+	 */
+	public void setAdaptiveRanges(boolean adaptiveRanges)
+	{
+		m_AdaptiveRanges = adaptiveRanges;
+	}
+
+	/**
+	 * Gets whether the ranges of the numeric attributes are widened by the
+	 * instances being classified.
+	 * 
+	 * @return true if the ranges are widened while classifying
+	 */
+	public boolean getAdaptiveRanges()
+	{
+		return m_AdaptiveRanges;
 	}
 
 	/**
@@ -132,6 +178,7 @@ public class K1NN extends Classifier
 		}
 		m_Train.add(instance);
 		updateMinMax(instance);
+		updateScale();
 	}
 
 	/**
@@ -147,9 +194,29 @@ public class K1NN extends Classifier
 			throw new Exception("No training instances!");
 		}
 
+		if (m_AdaptiveRanges)
+		{
+			synchronized (this)
+			{
+				//ΪҪ鷶Զٴε updateMinMax
+				updateMinMax(instance);
+				updateScale();
+				return nearestClassValue(instance);
+			}
+		}
+		return nearestClassValue(instance);
+	}
+
+	/**
+	 * Finds the class value of the nearest training instance.
+	 * 
+	 * @param instance
+	 *            the instance to be classified
+	 * @return the class value of the nearest training instance
+	 */
+	private double nearestClassValue(Instance instance)
+	{
 		double distance, minDistance = Double.MAX_VALUE, classValue = 0;
-		//ΪҪ鷶Զٴε updateMinMax
-		updateMinMax(instance);
 		//Ȼѵѭ distance ÿһľ룬ǰľС¼󷵻
 		//Сֵ
 		Enumeration enu = m_Train.enumerateInstances();
@@ -158,7 +225,7 @@ public class K1NN extends Classifier
 			Instance trainInstance = (Instance) enu.nextElement();
 			if (!trainInstance.classIsMissing())
 			{
-				distance = distance(instance, trainInstance);
+				distance = distance(instance, trainInstance, minDistance);
 				if (distance < minDistance)
 				{
 					minDistance = distance;
@@ -170,74 +237,114 @@ public class K1NN extends Classifier
 	}
 
 	/**
-	 * Calculates the distance between two instances
+	 * Calculates the distance between two instances. Every term is at least
+	 * 0, so the calculation stops once the distance is sure to reach the
+	 * bound. The terms are first added in the order learned when the
+	 * classifier was built, which reaches the bound of far instances soonest.
+	 * The distance of a near instance is summed again in attribute order, so
+	 * that it is the same to the last bit whatever the order.
 	 * 
 	 * @param first
 	 *            the first instance
 	 * @param second
 	 *            the second instance
-	 * @return the distance between the two given instances
+	 * @param bound
+	 *            the distance from which the second instance is of no
+	 *            interest
+	 * @return the distance between the two given instances, or a partial
+	 *         distance not less than the bound
 	 */
-	private double distance(Instance first, Instance second)
+	private double distance(Instance first, Instance second, double bound)
 	{
-		double diff, distance = 0;
+		double distance = 0;
 
+		for (int k = 0; k < m_Order.length; k++)
+		{
+			distance += term(first, second, m_Order[k]);
+			// the terms were added out of order, so leave some slack for
+			// rounding
+			if (distance * (1 - SLACK) >= bound)
+			{
+				return distance;
+			}
+		}
+		distance = 0;
 		for (int i = 0; i < m_Train.numAttributes(); i++)
 		{
 			if (i == m_Train.classIndex())
 			{
 				continue;
 			}
-			if (m_Train.attribute(i).isNominal())
-			{
+			distance += term(first, second, i);
+		}
+		return distance;
+	}
+
+	/**
+	 * Calculates the term of an attribute in the distance between two
+	 * instances.
+	 * 
+	 * @param first
+	 *            the first instance
+	 * @param second
+	 *            the second instance
+	 * @param i
+	 *            the attribute's index
+	 * @return the term of the attribute
+	 */
+	private double term(Instance first, Instance second, int i)
+	{
+		double diff;
+
+		if (m_Train.attribute(i).isNominal())
+		{
 
-				// If attribute is nominal
-				if (first.isMissing(i) || second.isMissing(i)
-						|| ((int) first.value(i) != (int) second.value(i)))
+			// If attribute is nominal
+			if (first.isMissing(i) || second.isMissing(i)
+					|| ((int) first.value(i) != (int) second.value(i)))
+			{
+				//ɢ˵һڶӦΪȱʧֵ
+				//Ϊ 1ȻΪ 1
+				return 1;
+			}
+		} 
+		else
+		{
+			// If attribute is numeric
+			if (first.isMissing(i) || second.isMissing(i))
+			{
+				//ȱʧֵΪ 1
+				if (first.isMissing(i) && second.isMissing(i))
 				{
-					//ɢ˵һڶӦΪȱʧֵ
-					//Ϊ 1ȻΪ 1
-					distance += 1;
+					diff = 1;
 				}
-			} 
-			else
-			{
-				// If attribute is numeric
-				if (first.isMissing(i) || second.isMissing(i))
+				else
 				{
-					//ȱʧֵΪ 1
-					if (first.isMissing(i) && second.isMissing(i))
+					//֮һڶӦΪȱʧֵһΪȱʧֵֵ淶
+					//Ϊ 1-diff
+					if (second.isMissing(i))
 					{
-						diff = 1;
-					}
+						diff = norm(first.value(i), i);
+					} 
 					else
 					{
-						//֮һڶӦΪȱʧֵһΪȱʧֵֵ淶
-						//Ϊ 1-diff
-						if (second.isMissing(i))
-						{
-							diff = norm(first.value(i), i);
-						} 
-						else
-						{
-							diff = norm(second.value(i), i);
-						}
-						if (diff < 0.5)
-						{
-							//赽ܵԶ(ȻǸȱʧֵ m_MinArraym_MaxArray СͲ)
-							diff = 1.0 - diff;
-						}
+						diff = norm(second.value(i), i);
+					}
+					if (diff < 0.5)
+					{
+						//赽ܵԶ(ȻǸȱʧֵ m_MinArraym_MaxArray СͲ)
+						diff = 1.0 - diff;
 					}
-				} 
-				else
-				{
-					diff = norm(first.value(i), i) - norm(second.value(i), i);
 				}
-				//ֵͰѾӣƽ
-				distance += diff * diff;
+			} 
+			else
+			{
+				diff = (first.value(i) - second.value(i)) * m_Scale[i];
 			}
+			//ֵͰѾӣƽ
+			return diff * diff;
 		}
-		return distance;
+		return 0;
 	}
 
 	/**
@@ -252,14 +359,83 @@ public class K1NN extends Classifier
 	private double norm(double x, int i)
 	{
 
-		if (Double.isNaN(m_MinArray[i])
-				|| Utils.eq(m_MaxArray[i], m_MinArray[i]))
+		if (m_Scale[i] == 0)
 		{
 			return 0;
 		} 
 		else
 		{
-			return (x - m_MinArray[i]) / (m_MaxArray[i] - m_MinArray[i]);
+			return (x - m_MinArray[i]) * m_Scale[i];
+		}
+	}
+
+	/**
+	 * Orders the attributes by their expected term in the distance between
+	 * two training instances, largest first, so that distance() reaches the
+	 * bound of far instances after as few attributes as possible: the chance
+	 * of a mismatch for a nominal attribute, the expected squared difference
+	 * of the normalized values for a numeric one.
+	 */
+	private void learnOrder()
+	{
+		m_Order = new int[m_Train.numAttributes() - 1];
+		double[] expected = new double[m_Order.length];
+		int k = 0;
+		for (int i = 0; i < m_Train.numAttributes(); i++)
+		{
+			if (i == m_Train.classIndex())
+			{
+				continue;
+			}
+			double term = 0;
+			if (m_Train.attribute(i).isNominal())
+			{
+				int[] counts = m_Train.attributeStats(i).nominalCounts;
+				double total = Utils.sum(counts);
+				term = 1;
+				for (int j = 0; j < counts.length && total > 0; j++)
+				{
+					term -= (counts[j] / total) * (counts[j] / total);
+				}
+			}
+			else if (m_Train.numInstances() > 1)
+			{
+				term = 2 * m_Train.variance(i) * m_Scale[i] * m_Scale[i];
+			}
+			// insertion sort, stable and there are few attributes
+			int pos = k++;
+			while (pos > 0 && expected[pos - 1] < term)
+			{
+				m_Order[pos] = m_Order[pos - 1];
+				expected[pos] = expected[pos - 1];
+				pos--;
+			}
+			m_Order[pos] = i;
+			expected[pos] = term;
+		}
+	}
+
+	/**
+	 * Computes the reciprocal of the range of each numeric attribute from the
+	 * minimum and maximum values, 0 for attributes without a range.
+	 */
+	private void updateScale()
+	{
+		if (m_Scale == null)
+		{
+			m_Scale = new double[m_Train.numAttributes()];
+		}
+		for (int i = 0; i < m_Scale.length; i++)
+		{
+			if (Double.isNaN(m_MinArray[i])
+					|| Utils.eq(m_MaxArray[i], m_MinArray[i]))
+			{
+				m_Scale[i] = 0;
+			}
+			else
+			{
+				m_Scale[i] = 1 / (m_MaxArray[i] - m_MinArray[i]);
+			}
 		}
 	}
 
@@ -0,0 +1,953 @@
+package weka.classifiers.sk;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import weka.classifiers.common.NeighborHeap;
+import weka.classifiers.common.OffHeapRows;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A KD-tree over the numeric attributes of a training set. It is built from
+ * the training data and answers k-nearest-neighbour queries under the
+ * distances used by KNN_EuclidDistance, KNN_Manhattan and
+ * KNN_ChebyshevDistance: an overlap count over the nominal attributes plus the
+ * L2, L1 or L-infinity norm over the numeric attributes.
+ * <p>
+ * The tree only splits on numeric attributes. The nominal part of the distance
+ * is never negative, so the distance from a query to a node's bounding box in
+ * the numeric attributes is a lower bound for every instance below that node,
+ * and whole subtrees are skipped once that bound exceeds the current k-th
+ * distance.
+ * <p>
+ * Every leaf keeps its own growable list of rows, so that add() inserts an
+ * instance by descending to its leaf, widening the bounding boxes on the way,
+ * and splits the leaf in place once it is full.
+ * <p>
+ * A tree built off the heap keeps the attribute values in OffHeapRows instead
+ * of one array per instance, so that only the row indices of the leaves stay
+ * on the heap.
+ * <p>
+ * On the heap, every leaf also keeps the values of its rows column by column
+ * in one block, numeric attributes first, and is scanned with the
+ * DistanceKernels, one attribute for all its rows at a time, rather than one
+ * row at a time. This doubles the memory held for the attribute values.
+ * <p>
+ * Once k neighbours are found, a leaf scan stops computing the distance to a
+ * row, or to all rows of a block, as soon as the partial distance exceeds the
+ * k-th distance; the terms are never negative, so the rest can only make it
+ * larger. A block is scanned in attribute order. A single row is first
+ * scanned in decreasing order of the variances in the training data, whose
+ * attributes on average contribute the largest terms and so end the scan of
+ * far rows soonest; the distance of a row that is not given up is summed
+ * again in attribute order, so that every distance offered is the same to
+ * the last bit as without stopping early.
+ * <p>
+ * A numeric attribute missing in the query or in a training instance adds
+ * nothing to their distance, which is then taken over the numeric attributes
+ * both have. Missing values are left out of the bounding boxes, and a node
+ * records which attributes some row below it misses, so that its lower bound
+ * ignores those attributes. A row missing the value split on goes to the
+ * right, and the split is at the median of the rows that have it.
+ */
+public class KDTree implements NeighborIndex, Serializable
+{
+	private static final long serialVersionUID = -1967453407582210136L;
+
+	/** Overlap on nominal attributes plus Euclidean distance on numeric ones. */
+	public static final int METRIC_EUCLID = 1;
+
+	/** Overlap on nominal attributes plus Manhattan distance on numeric ones. */
+	public static final int METRIC_MANHATTAN = 2;
+
+	/** Overlap on nominal attributes plus Chebyshev distance on numeric ones. */
+	public static final int METRIC_CHEBYSHEV = 3;
+
+	/** The default maximal number of instances kept in a leaf. */
+	public static final int DEFAULT_MAX_LEAF_SIZE = 8;
+
+	/** The number of rows of a leaf block scanned together. */
+	private static final int SCAN_ROWS = 256;
+
+	/**
+	 * The relative margin by which a partial distance summed out of
+	 * attribute order must exceed the bound, more than rounding in any order
+	 * can account for.
+	 */
+	private static final double SLACK = 1e-9;
+
+	/** The metric the distances are computed with. */
+	private int m_Metric;
+
+	/** The maximal number of instances in a leaf. */
+	private int m_MaxLeafSize;
+
+	/** The attribute values of the training instances, one row per instance. */
+	private double[][] m_Values;
+
+	/** The attribute values of a tree built off the heap, else null. */
+	private OffHeapRows m_Store;
+
+	/** Whether the leaves keep blocks of their rows' values. */
+	private boolean m_Blocks;
+
+	/** The number of training instances. */
+	private int m_NumInstances;
+
+	/** The numeric attributes, the only ones the tree splits on. */
+	private int[] m_NumericAtts;
+
+	/** The numeric attributes in decreasing order of variance. */
+	private int[] m_AbandonAtts;
+
+	/** The nominal attributes (class excluded) compared by overlap. */
+	private int[] m_NominalAtts;
+
+	/** The root of the tree. */
+	private KDTreeNode m_Root;
+
+	/** Each thread's scan accumulators and off-heap row, made on first use. */
+	private transient ThreadLocal<double[][]> m_Scratch;
+
+	/**
+	 * Builds a KD-tree over the given training instances.
+	 *
+	 * @param data
+	 *            the training instances
+	 * @param metric
+	 *            one of METRIC_EUCLID, METRIC_MANHATTAN, METRIC_CHEBYSHEV
+	 */
+	public KDTree(Instances data, int metric)
+	{
+		this(data, metric, DEFAULT_MAX_LEAF_SIZE);
+	}
+
+	/**
+	 * Builds a KD-tree over the given training instances.
+	 *
+	 * @param data
+	 *            the training instances
+	 * @param metric
+	 *            one of METRIC_EUCLID, METRIC_MANHATTAN, METRIC_CHEBYSHEV
+	 * @param maxLeafSize
+	 *            the maximal number of instances in a leaf
+	 */
+	public KDTree(Instances data, int metric, int maxLeafSize)
+	{
+		this(data, metric, maxLeafSize, false);
+	}
+
+	/**
+	 * Builds a KD-tree over the given training instances, on or off the heap.
+	 *
+	 * @param data
+	 *            the training instances
+	 * @param metric
+	 *            one of METRIC_EUCLID, METRIC_MANHATTAN, METRIC_CHEBYSHEV
+	 * @param maxLeafSize
+	 *            the maximal number of instances in a leaf
+	 * @param offHeap
+	 *            whether the attribute values are kept outside the Java heap
+	 */
+	public KDTree(Instances data, int metric, int maxLeafSize, boolean offHeap)
+	{
+		m_Metric = metric;
+		m_MaxLeafSize = Math.max(1, maxLeafSize);
+		m_Blocks = !offHeap;
+
+		int numNumeric = 0, numNominal = 0;
+		for (int i = 0; i < data.numAttributes(); i++)
+		{
+			if (i == data.classIndex())
+				continue;
+			if (data.attribute(i).type() == Attribute.NUMERIC)
+				numNumeric++;
+			else if (data.attribute(i).type() == Attribute.NOMINAL)
+				numNominal++;
+		}
+		m_NumericAtts = new int[numNumeric];
+		m_NominalAtts = new int[numNominal];
+		numNumeric = numNominal = 0;
+		for (int i = 0; i < data.numAttributes(); i++)
+		{
+			if (i == data.classIndex())
+				continue;
+			if (data.attribute(i).type() == Attribute.NUMERIC)
+				m_NumericAtts[numNumeric++] = i;
+			else if (data.attribute(i).type() == Attribute.NOMINAL)
+				m_NominalAtts[numNominal++] = i;
+		}
+		m_AbandonAtts = m_NumericAtts.clone();
+		orderByVariance(data, m_AbandonAtts);
+
+		m_NumInstances = data.numInstances();
+		if (offHeap)
+			m_Store = new OffHeapRows(data.numAttributes(), m_NumInstances);
+		else
+			m_Values = new double[m_NumInstances][];
+		for (int i = 0; i < m_NumInstances; i++)
+		{
+			double[] row = data.instance(i).toDoubleArray();
+			if (offHeap)
+				m_Store.put(i, row);
+			else
+				m_Values[i] = row;
+		}
+		m_Root = makeTree(allRows(), 0, m_NumInstances);
+	}
+
+	/**
+	 * Sorts numeric attributes by decreasing variance in the given data,
+	 * missing values ignored, so that the attributes contributing the largest
+	 * terms on average come first.
+	 */
+	static void orderByVariance(Instances data, int[] atts)
+	{
+		double[] variances = new double[atts.length];
+		for (int j = 0; j < atts.length; j++)
+		{
+			variances[j] = data.variance(atts[j]);
+		}
+		// insertion sort, stable and there are few attributes
+		for (int j = 1; j < atts.length; j++)
+		{
+			int att = atts[j];
+			double variance = variances[j];
+			int k = j;
+			while (k > 0 && variances[k - 1] < variance)
+			{
+				atts[k] = atts[k - 1];
+				variances[k] = variances[k - 1];
+				k--;
+			}
+			atts[k] = att;
+			variances[k] = variance;
+		}
+	}
+
+	/**
+	 * Appends a training instance and inserts it into its leaf, in time
+	 * proportional to the depth of the tree.
+	 *
+	 * @param instance
+	 *            the instance, with the same attributes as the others
+	 * @return the index of the instance
+	 */
+	public int add(Instance instance)
+	{
+		double[] row = instance.toDoubleArray();
+		if (m_Store != null)
+		{
+			m_Store.ensureCapacity(Math.max(16, m_NumInstances + 1));
+			m_Store.put(m_NumInstances, row);
+		} else
+		{
+			if (m_NumInstances == m_Values.length)
+			{
+				m_Values = Arrays.copyOf(m_Values, Math.max(16, 2 * m_NumInstances));
+			}
+			m_Values[m_NumInstances] = row;
+		}
+		int index = m_NumInstances++;
+		insert(m_Root, index, row);
+		return index;
+	}
+
+	/**
+	 * Inserts a row below the given node, widening the bounding boxes and
+	 * recording its missing values on the way to its leaf.
+	 */
+	private void insert(KDTreeNode node, int index, double[] row)
+	{
+		while (true)
+		{
+			for (int j = 0; j < m_NumericAtts.length; j++)
+			{
+				double value = row[m_NumericAtts[j]];
+				if (value < node.m_Lower[j])
+					node.m_Lower[j] = value;
+				if (value > node.m_Upper[j])
+					node.m_Upper[j] = value;
+				if (Double.isNaN(value))
+					node.setMissing(j);
+			}
+			if (node.m_Left == null)
+				break;
+			node = row[m_NumericAtts[node.m_SplitDim]] < node.m_SplitValue ? node.m_Left
+					: node.m_Right;
+		}
+		if (node.m_Size == node.m_Rows.length)
+		{
+			// a full leaf is split if its rows differ, else it grows; either
+			// way it has room for twice as many rows before the next check
+			KDTreeNode split = makeTree(node.m_Rows, 0, node.m_Size);
+			if (split.m_Left != null)
+			{
+				node.m_SplitDim = split.m_SplitDim;
+				node.m_SplitValue = split.m_SplitValue;
+				node.m_Left = split.m_Left;
+				node.m_Right = split.m_Right;
+				node.m_Rows = null;
+				node.m_Block = null;
+				node.m_Size = 0;
+				insert(node, index, row);
+				return;
+			}
+			if (m_Blocks)
+				node.m_Block = growBlock(node.m_Block, node.m_Size,
+						node.m_Rows.length, 2 * node.m_Rows.length);
+			node.m_Rows = Arrays.copyOf(node.m_Rows, 2 * node.m_Rows.length);
+		}
+		if (m_Blocks)
+			setBlockRow(node.m_Block, node.m_Rows.length, node.m_Size, row);
+		node.m_Rows[node.m_Size++] = index;
+	}
+
+	/**
+	 * Copies the first rows of a leaf block into a block with room for more
+	 * rows.
+	 */
+	private double[] growBlock(double[] block, int size, int oldCapacity,
+			int capacity)
+	{
+		double[] grown = new double[numColumns() * capacity];
+		for (int c = 0; c < numColumns(); c++)
+		{
+			System.arraycopy(block, c * oldCapacity, grown, c * capacity, size);
+		}
+		return grown;
+	}
+
+	/**
+	 * Stores the values of a row at the given position of a leaf block.
+	 */
+	private void setBlockRow(double[] block, int capacity, int pos, double[] row)
+	{
+		for (int j = 0; j < m_NumericAtts.length; j++)
+		{
+			block[j * capacity + pos] = row[m_NumericAtts[j]];
+		}
+		for (int j = 0; j < m_NominalAtts.length; j++)
+		{
+			block[(m_NumericAtts.length + j) * capacity + pos] = row[m_NominalAtts[j]];
+		}
+	}
+
+	/**
+	 * Gets the number of columns of a leaf block.
+	 */
+	private int numColumns()
+	{
+		return m_NumericAtts.length + m_NominalAtts.length;
+	}
+
+	/**
+	 * Gets the value of an attribute of a training instance.
+	 */
+	private double value(int index, int att)
+	{
+		if (m_Store != null)
+			return m_Store.getDouble(index, att);
+		return m_Values[index][att];
+	}
+
+	/**
+	 * Gets the attribute values of a training instance, copied into the given
+	 * array if they are kept off the heap.
+	 */
+	private double[] row(int index, double[] values)
+	{
+		if (m_Store == null)
+			return m_Values[index];
+		m_Store.get(index, values);
+		return values;
+	}
+
+	/**
+	 * Lists the indices of all training instances in order.
+	 */
+	private int[] allRows()
+	{
+		int[] rows = new int[m_NumInstances];
+		for (int i = 0; i < rows.length; i++)
+		{
+			rows[i] = i;
+		}
+		return rows;
+	}
+
+	/**
+	 * Builds the subtree over the rows rows[start..end), reordering them.
+	 *
+	 * @param rows
+	 *            the row indices
+	 * @param start
+	 *            the first position of the range
+	 * @param end
+	 *            the position after the last one of the range
+	 * @return the node
+	 */
+	private KDTreeNode makeTree(int[] rows, int start, int end)
+	{
+		KDTreeNode node = new KDTreeNode(m_NumericAtts.length);
+		for (int j = 0; j < m_NumericAtts.length; j++)
+		{
+			node.m_Lower[j] = Double.POSITIVE_INFINITY;
+			node.m_Upper[j] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = start; i < end; i++)
+		{
+			for (int j = 0; j < m_NumericAtts.length; j++)
+			{
+				double value = value(rows[i], m_NumericAtts[j]);
+				if (value < node.m_Lower[j])
+					node.m_Lower[j] = value;
+				if (value > node.m_Upper[j])
+					node.m_Upper[j] = value;
+				if (Double.isNaN(value))
+					node.setMissing(j);
+			}
+		}
+		if (end - start <= m_MaxLeafSize)
+			return makeLeaf(node, rows, start, end);
+
+		// split on the attribute with the widest spread, which at least two
+		// rows have
+		int splitDim = -1;
+		double maxSpread = 0;
+		for (int j = 0; j < m_NumericAtts.length; j++)
+		{
+			double spread = node.m_Upper[j] - node.m_Lower[j];
+			if (spread > maxSpread)
+			{
+				maxSpread = spread;
+				splitDim = j;
+			}
+		}
+		if (splitDim < 0)
+			return makeLeaf(node, rows, start, end);
+
+		int att = m_NumericAtts[splitDim];
+		int present = end;
+		if (node.m_Missing != null && node.m_Missing[splitDim])
+			present = missingLast(rows, start, end, att);
+		int mid = (start + present) >>> 1;
+		select(rows, start, present, mid, att);
+		node.m_SplitDim = splitDim;
+		node.m_SplitValue = value(rows[mid], att);
+		node.m_Left = makeTree(rows, start, mid);
+		node.m_Right = makeTree(rows, mid, end);
+		return node;
+	}
+
+	/**
+	 * Moves the rows of rows[start..end) missing the given attribute to the
+	 * end of the range, returning the position of the first of them.
+	 */
+	private int missingLast(int[] rows, int start, int end, int att)
+	{
+		int present = start;
+		for (int i = start; i < end; i++)
+		{
+			if (!Double.isNaN(value(rows[i], att)))
+			{
+				int tmp = rows[present];
+				rows[present++] = rows[i];
+				rows[i] = tmp;
+			}
+		}
+		return present;
+	}
+
+	/**
+	 * Gives a node its own copy of the rows rows[start..end), with room for at
+	 * least m_MaxLeafSize rows.
+	 */
+	private KDTreeNode makeLeaf(KDTreeNode node, int[] rows, int start, int end)
+	{
+		node.m_Size = end - start;
+		node.m_Rows = new int[Math.max(m_MaxLeafSize, node.m_Size)];
+		System.arraycopy(rows, start, node.m_Rows, 0, node.m_Size);
+		if (m_Blocks)
+		{
+			node.m_Block = new double[numColumns() * node.m_Rows.length];
+			for (int i = 0; i < node.m_Size; i++)
+			{
+				setBlockRow(node.m_Block, node.m_Rows.length, i,
+						m_Values[node.m_Rows[i]]);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Reorders rows[start..end) so that position k holds the row with the
+	 * k-th smallest value of the given attribute, smaller values before it and
+	 * larger ones after it.
+	 */
+	private void select(int[] rows, int start, int end, int k, int att)
+	{
+		int lo = start, hi = end - 1;
+		while (lo < hi)
+		{
+			double pivot = value(rows[(lo + hi) >>> 1], att);
+			int i = lo, j = hi;
+			while (i <= j)
+			{
+				while (value(rows[i], att) < pivot)
+					i++;
+				while (value(rows[j], att) > pivot)
+					j--;
+				if (i <= j)
+				{
+					int tmp = rows[i];
+					rows[i] = rows[j];
+					rows[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Finds the k nearest training instances to the given instance. If there
+	 * are several instances at the k-th distance, all of them are kept.
+	 *
+	 * @param instance
+	 *            the instance to search neighbours for
+	 * @param neighbors
+	 *            the heap receiving the neighbours, cleared first
+	 */
+	public void nearestNeighbors(Instance instance, NeighborHeap neighbors)
+	{
+		nearestNeighbors(instance.toDoubleArray(), neighbors);
+	}
+
+	/**
+	 * Finds the k nearest training instances to the given attribute values.
+	 *
+	 * @param query
+	 *            the attribute values to search neighbours for
+	 * @param neighbors
+	 *            the heap receiving the neighbours, cleared first
+	 */
+	public void nearestNeighbors(double[] query, NeighborHeap neighbors)
+	{
+		neighbors.clear();
+		if (m_NumInstances > 0)
+		{
+			double[][] scratch = scratch();
+			search(m_Root, query, neighbors, scratch[3], scratch);
+		}
+	}
+
+	/**
+	 * Gets the calling thread's scratch arrays: the three accumulators of a
+	 * block scan, then the row read off the heap, each null if the tree does
+	 * not need it.
+	 */
+	private double[][] scratch()
+	{
+		ThreadLocal<double[][]> local = m_Scratch;
+		if (local == null)
+		{
+			// threads racing here at worst make their arrays once more
+			local = new ThreadLocal<double[][]>();
+			m_Scratch = local;
+		}
+		double[][] scratch = local.get();
+		if (scratch == null)
+		{
+			scratch = new double[4][];
+			if (m_Blocks)
+			{
+				for (int i = 0; i < 3; i++)
+				{
+					scratch[i] = new double[SCAN_ROWS];
+				}
+			}
+			if (m_Store != null)
+				scratch[3] = new double[m_Store.rowLength()];
+			local.set(scratch);
+		}
+		return scratch;
+	}
+
+	/**
+	 * Searches the subtree below the given node. Off the heap, the rows of
+	 * the leaves are read into the given array, else the leaf blocks are
+	 * scanned with the given accumulators.
+	 */
+	private void search(KDTreeNode node, double[] query,
+			NeighborHeap neighbors, double[] values, double[][] acc)
+	{
+		if (neighbors.isFull()
+				&& lowerBound(node, query) > neighbors.kthDistance())
+		{
+			return;
+		}
+		if (node.m_Left == null && node.m_Block != null)
+		{
+			for (int from = 0; from < node.m_Size; from += SCAN_ROWS)
+			{
+				scan(node, from, Math.min(SCAN_ROWS, node.m_Size - from), query,
+						neighbors, acc[0], acc[1], acc[2]);
+			}
+			return;
+		}
+		if (node.m_Left == null)
+		{
+			for (int i = 0; i < node.m_Size; i++)
+			{
+				double bound = neighbors.isFull() ? neighbors.kthDistance()
+						: Double.POSITIVE_INFINITY;
+				neighbors.offer(distance(query, row(node.m_Rows[i], values), bound),
+						node.m_Rows[i]);
+			}
+			return;
+		}
+		// descend into the side of the split the query falls in first
+		if (query[m_NumericAtts[node.m_SplitDim]] < node.m_SplitValue)
+		{
+			search(node.m_Left, query, neighbors, values, acc);
+			search(node.m_Right, query, neighbors, values, acc);
+		} else
+		{
+			search(node.m_Right, query, neighbors, values, acc);
+			search(node.m_Left, query, neighbors, values, acc);
+		}
+	}
+
+	/**
+	 * Computes the distances from the query to count rows of a leaf block,
+	 * starting at the given one, and offers them to the heap. The scan stops
+	 * once every row is known to be farther than the k-th distance.
+	 */
+	private void scan(KDTreeNode node, int from, int count, double[] query,
+			NeighborHeap neighbors, double[] nominal, double[] numeric,
+			double[] limits)
+	{
+		double[] block = node.m_Block;
+		int capacity = node.m_Rows.length;
+		Arrays.fill(nominal, 0, count, 0);
+		Arrays.fill(numeric, 0, count, 0);
+		for (int j = 0; j < m_NominalAtts.length; j++)
+		{
+			DistanceKernels.mismatches(block, (m_NumericAtts.length + j)
+					* capacity + from, count, query[m_NominalAtts[j]], nominal);
+		}
+		boolean check = neighbors.isFull();
+		double bound = neighbors.kthDistance();
+		if (check)
+		{
+			for (int r = 0; r < count; r++)
+			{
+				limits[r] = limit(m_Metric, bound, nominal[r]);
+			}
+		}
+		for (int j = 0; j < m_NumericAtts.length; j++)
+		{
+			if (check && DistanceKernels.allAbove(numeric, count, limits))
+			{
+				// the limits are rounded, so confirm on the distances
+				if (farther(nominal, numeric, count, bound))
+					return;
+				check = false;
+			}
+			int offset = j * capacity + from;
+			double value = query[m_NumericAtts[j]];
+			if (Double.isNaN(value))
+				continue;
+			if (node.m_Missing != null && node.m_Missing[j])
+			{
+				// the kernels would let a missing value spoil the sum
+				for (int r = 0; r < count; r++)
+				{
+					numeric[r] = accumulate(m_Metric, numeric[r], value
+							- block[offset + r]);
+				}
+				continue;
+			}
+			switch (m_Metric)
+			{
+				case METRIC_EUCLID:
+					DistanceKernels.squares(block, offset, count, value, numeric);
+					break;
+				case METRIC_MANHATTAN:
+					DistanceKernels.absolutes(block, offset, count, value, numeric);
+					break;
+				default:
+					DistanceKernels.maxima(block, offset, count, value, numeric);
+					break;
+			}
+		}
+		if (m_Metric == METRIC_EUCLID)
+		{
+			DistanceKernels.sqrt(numeric, count);
+		}
+		for (int r = 0; r < count; r++)
+		{
+			neighbors.offer(nominal[r] + numeric[r], node.m_Rows[from + r]);
+		}
+	}
+
+	/**
+	 * Gets the value of the numeric part of the distance above which a row
+	 * with the given nominal part is about to be farther than the bound,
+	 * -1 if it already is.
+	 */
+	private static double limit(int metric, double bound, double nominal)
+	{
+		double rest = bound - nominal;
+		if (rest < 0)
+			return -1;
+		return metric == METRIC_EUCLID ? rest * rest : rest;
+	}
+
+	/**
+	 * Tells whether the distances made of the given parts, the numeric ones
+	 * not yet complete, are all farther than the bound. The remaining terms
+	 * can only make them larger.
+	 */
+	private boolean farther(double[] nominal, double[] numeric, int count,
+			double bound)
+	{
+		for (int r = 0; r < count; r++)
+		{
+			if (!(nominal[r] + numeric(m_Metric, numeric[r]) > bound))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Turns the accumulated numeric terms into the numeric part of the
+	 * distance.
+	 */
+	private static double numeric(int metric, double sum)
+	{
+		return metric == METRIC_EUCLID ? Math.sqrt(sum) : sum;
+	}
+
+	/**
+	 * Adds the term of an attribute difference to the accumulated numeric
+	 * terms. A difference involving a missing value adds nothing.
+	 */
+	private static double accumulate(int metric, double sum, double diff)
+	{
+		if (Double.isNaN(diff))
+			return sum;
+		switch (metric)
+		{
+			case METRIC_EUCLID:
+				return sum + diff * diff;
+			case METRIC_MANHATTAN:
+				return sum + Math.abs(diff);
+			default:
+				return Math.abs(diff) > sum ? Math.abs(diff) : sum;
+		}
+	}
+
+	/**
+	 * Computes a lower bound for the distance between the query and every
+	 * instance below the given node. The terms are combined in the same order
+	 * as in distance(), so the bound never exceeds an exact distance even
+	 * after rounding. An attribute missing in the query or in some row below
+	 * the node may add nothing and is left out.
+	 */
+	private double lowerBound(KDTreeNode node, double[] query)
+	{
+		double bound = 0;
+		for (int j = 0; j < m_NumericAtts.length; j++)
+		{
+			if (node.m_Missing != null && node.m_Missing[j])
+				continue;
+			double value = query[m_NumericAtts[j]];
+			double gap = 0;
+			if (value < node.m_Lower[j])
+				gap = node.m_Lower[j] - value;
+			else if (value > node.m_Upper[j])
+				gap = value - node.m_Upper[j];
+			switch (m_Metric)
+			{
+				case METRIC_EUCLID:
+					bound += gap * gap;
+					break;
+				case METRIC_MANHATTAN:
+					bound += gap;
+					break;
+				default:
+					if (gap > bound)
+						bound = gap;
+					break;
+			}
+		}
+		return m_Metric == METRIC_EUCLID ? Math.sqrt(bound) : bound;
+	}
+
+	/**
+	 * Calculates the distance between a query and a training row.
+	 *
+	 * @param first
+	 *            the attribute values of the query
+	 * @param second
+	 *            the attribute values of the training instance
+	 * @return the distance between the two
+	 */
+	public double distance(double[] first, double[] second)
+	{
+		return distance(first, second, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Calculates the distance between a query and a training row, giving up
+	 * once it exceeds a bound.
+	 *
+	 * @param first
+	 *            the attribute values of the query
+	 * @param second
+	 *            the attribute values of the training instance
+	 * @param bound
+	 *            the distance beyond which the row is of no interest
+	 * @return the distance between the two, or a partial distance larger than
+	 *         the bound
+	 */
+	public double distance(double[] first, double[] second, double bound)
+	{
+		return distance(m_Metric, m_NominalAtts, m_NumericAtts, m_AbandonAtts,
+				first, second, bound);
+	}
+
+	/**
+	 * Calculates the distance between a query and a training row under the
+	 * given metric, giving up once it is sure to exceed a bound. The numeric
+	 * terms are summed in the abandon order while looking for a reason to
+	 * give up, and in attribute order for the distance returned. Numeric
+	 * attributes missing in either row add nothing.
+	 *
+	 * @param metric
+	 *            one of METRIC_EUCLID, METRIC_MANHATTAN, METRIC_CHEBYSHEV
+	 * @param nominalAtts
+	 *            the nominal attributes compared by overlap
+	 * @param numericAtts
+	 *            the numeric attributes, in attribute order
+	 * @param abandonAtts
+	 *            the same numeric attributes, in the order to scan them in
+	 *            while the row may be given up
+	 * @param first
+	 *            the attribute values of the query
+	 * @param second
+	 *            the attribute values of the training instance
+	 * @param bound
+	 *            the distance beyond which the row is of no interest
+	 * @return the distance between the two, or a partial distance larger than
+	 *         the bound
+	 */
+	static double distance(int metric, int[] nominalAtts, int[] numericAtts,
+			int[] abandonAtts, double[] first, double[] second, double bound)
+	{
+		double distance = 0;
+		for (int j = 0; j < nominalAtts.length; j++)
+		{
+			int i = nominalAtts[j];
+			if ((int) first[i] != (int) second[i])
+			{
+				distance += 1;
+			}
+		}
+		if (bound < Double.POSITIVE_INFINITY)
+		{
+			double limit = limit(metric, bound, distance);
+			double numeric = 0;
+			for (int j = 0; j < abandonAtts.length; j++)
+			{
+				int i = abandonAtts[j];
+				numeric = accumulate(metric, numeric, first[i] - second[i]);
+				if (numeric > limit)
+				{
+					// the limit is rounded and the terms were summed out of
+					// order, so confirm with some slack
+					double partial = distance
+							+ numeric(metric, numeric * (1 - SLACK));
+					if (partial > bound)
+						return partial;
+					break;
+				}
+			}
+		}
+		double numeric = 0;
+		for (int j = 0; j < numericAtts.length; j++)
+		{
+			int i = numericAtts[j];
+			numeric = accumulate(metric, numeric, first[i] - second[i]);
+		}
+		return distance + numeric(metric, numeric);
+	}
+
+	/*
+	 * A node of the tree, a leaf owning the rows m_Rows[0..m_Size).
+	 */
+	private static class KDTreeNode implements Serializable
+	{
+		private static final long serialVersionUID = 3866925153037201454L;
+
+		/** The rows of a leaf, null for an inner node. */
+		private int[] m_Rows;
+
+		/** The number of rows of a leaf. */
+		private int m_Size;
+
+		/**
+		 * The values of a leaf's rows column by column, each column as long
+		 * as m_Rows, or null.
+		 */
+		private double[] m_Block;
+
+		/** The smallest value of each numeric attribute below this node. */
+		private double[] m_Lower;
+
+		/** The largest value of each numeric attribute below this node. */
+		private double[] m_Upper;
+
+		/**
+		 * Whether some row below this node misses each numeric attribute, null
+		 * if none misses any.
+		 */
+		private boolean[] m_Missing;
+
+		/** The numeric attribute (position in m_NumericAtts) split on. */
+		private int m_SplitDim = -1;
+
+		/** The value split on. */
+		private double m_SplitValue;
+
+		/** The children, null for a leaf. */
+		private KDTreeNode m_Left, m_Right;
+
+		public KDTreeNode(int numDims)
+		{
+			m_Lower = new double[numDims];
+			m_Upper = new double[numDims];
+		}
+
+		/**
+		 * Records that some row below this node misses the given numeric
+		 * attribute.
+		 */
+		public void setMissing(int dim)
+		{
+			if (m_Missing == null)
+				m_Missing = new boolean[m_Lower.length];
+			m_Missing[dim] = true;
+		}
+	}
+}
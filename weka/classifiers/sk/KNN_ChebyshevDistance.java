@@ -1,20 +1,35 @@
 package weka.classifiers.sk;
 
 import weka.classifiers.*;
+import weka.classifiers.common.NeighborHeap;
+import weka.classifiers.common.QueryBuffers;
 import weka.core.*;
 import java.util.*;
 
 /**
  * Implement an KNN classifier.
  */
-public class KNN_ChebyshevDistance extends Classifier
+public class KNN_ChebyshevDistance extends Classifier implements
+		UpdateableClassifier
 {
-	/** The training instances used for classification. */
-	private Instances m_Train;
+	/** The class values of the training instances. */
+	private int[] m_ClassValues;
+
+	/** The number of class values. */
+	private int m_NumClasses;
 
 	/** The number of neighbours to use for classification. */
 	private int m_kNN;
 
+	/** The index used to find the neighbours. */
+	private NeighborIndex m_Tree;
+
+	/** Each thread's buffers for finding the neighbours of a test instance. */
+	private QueryBuffers m_Buffers = new QueryBuffers();
+
+	/** Whether the training instances are kept outside the Java heap. */
+	private boolean m_OffHeap;
+
 	/**
 	 * Builds KNN classifier.
 	 * 
@@ -26,131 +41,117 @@ public class KNN_ChebyshevDistance extends Classifier
 	public void buildClassifier(Instances data) throws Exception
 	{
 		// initial data
-		m_Train = new Instances(data);
+		m_NumClasses = data.numClasses();
+		m_ClassValues = new int[data.numInstances()];
+		for (int i = 0; i < m_ClassValues.length; i++)
+		{
+			m_ClassValues[i] = (int) data.instance(i).classValue();
+		}
 		m_kNN = 10;
+		// a KD-tree only prunes on the numeric attributes, a ball tree on all
+		if (!m_OffHeap && BallTree.isMixed(data))
+		{
+			m_Tree = new BallTree(data, KDTree.METRIC_CHEBYSHEV);
+		} else
+		{
+			m_Tree = new KDTree(data, KDTree.METRIC_CHEBYSHEV,
+					KDTree.DEFAULT_MAX_LEAF_SIZE, m_OffHeap);
+		}
 	}
 
 	/**
-	 * Computes class distribution for a test instance.
+	 * Adds a training instance to the KD-tree, without rebuilding it.
+	 * Instances with a missing class are ignored.
 	 * 
 	 * @param instance
-	 *            the instance for which distribution is to be computed
-	 * @return the class distribution for the given instance
+	 *            the new training instance
+	 * @exception Exception
+	 *                if the instance can't be added
 	 */
-	public double[] distributionForInstance(Instance instance) throws Exception
+	public void updateClassifier(Instance instance) throws Exception
 	{
-		NeighborList neighborlist = findNeighbors(instance, m_kNN);
-		return computeDistribution(neighborInstances(neighborlist), instance);
+		if (instance.classIsMissing())
+		{
+			return;
+		}
+		int index = m_Tree.add(instance);
+		if (index == m_ClassValues.length)
+		{
+			m_ClassValues = Arrays.copyOf(m_ClassValues, Math.max(16, 2 * index));
+		}
+		m_ClassValues[index] = (int) instance.classValue();
 	}
 
 	/**
-	 * Build the list of nearest k neighbors to the given test instance.
+	 * Sets whether the training instances are kept outside the Java heap, so
+	 * that a large training set does not lengthen garbage collections. Takes
+	 * effect on the next call to buildClassifier(). Data mixing nominal and
+	 * numeric attributes is then searched with a KD-tree, not a ball tree.
 	 * 
-	 * @param instance
-	 *            the instance to search for neighbours
-	 * @return a list of neighbors
+	 * @param offHeap
+	 *            whether to keep the training instances off the heap
 	 */
-	private NeighborList findNeighbors(Instance instance, int kNN)
+	public void setOffHeap(boolean offHeap)
 	{
-		double distance;
-		NeighborList neighborlist = new NeighborList(kNN);
-		for (int i = 0; i < m_Train.numInstances(); i++)
-		{
-			Instance trainInstance = m_Train.instance(i);
-			distance = distanceChebyshev(instance, trainInstance);
-			if (neighborlist.isEmpty() || i < kNN
-					|| distance <= neighborlist.m_Last.m_Distance)
-			{
-				neighborlist.insertSorted(distance, trainInstance);
-			}
-		}
-		return neighborlist;
+		m_OffHeap = offHeap;
 	}
 
 	/**
-	 * Turn the list of nearest neighbors into a probability distribution
+	 * Gets whether the training instances are kept outside the Java heap.
 	 * 
-	 * @param neighborlist
-	 *            the list of nearest neighboring instances
-	 * @return the probability distribution
+	 * @return whether the training instances are kept off the heap
 	 */
-	private Instances neighborInstances(NeighborList neighborlist)
-			throws Exception
+	public boolean getOffHeap()
 	{
+		return m_OffHeap;
+	}
 
-		Instances neighborInsts = new Instances(m_Train,
-				neighborlist.currentLength());
-		if (!neighborlist.isEmpty())
-		{
-			NeighborNode current = neighborlist.m_First;
-			while (current != null)
-			{
-				neighborInsts.add(current.m_Instance);
-				current = current.m_Next;
-			}
-		}
-		return neighborInsts;
-
+	/**
+	 * Computes class distribution for a test instance.
+	 * 
+	 * @param instance
+	 *            the instance for which distribution is to be computed
+	 * @return the class distribution for the given instance
+	 */
+	public double[] distributionForInstance(Instance instance) throws Exception
+	{
+		NeighborHeap neighbors = m_Buffers.neighbors(m_kNN);
+		findNeighbors(instance, neighbors);
+		return computeDistribution(neighbors, instance);
 	}
 
 	/**
-	 * Calculates the distance between two instances
+	 * Build the list of nearest k neighbors to the given test instance.
 	 * 
-	 * @param first
-	 *            the first instance
-	 * @param second
-	 *            the second instance
-	 * @return the distance between the two given instancesChebyshev
+	 * @param instance
+	 *            the instance to search for neighbours
+	 * @param neighbors
+	 *            the heap receiving the neighbours
 	 */
-	private double distanceChebyshev(Instance first, Instance second)
+	private void findNeighbors(Instance instance, NeighborHeap neighbors)
 	{
-		double distance = 0;
-		double disChebyshev=0.0;
-		
-		for (int i = 0; i < m_Train.numAttributes(); i++)
-		{
-			Attribute attribute=m_Train.attribute(i);
-			if(attribute.type()==Attribute.NOMINAL)
-			{
-				if (i == m_Train.classIndex())
-				continue;
-				if ((int) first.value(i) != (int) second.value(i))
-				{
-					distance += 1;
-				}
-			}
-			//ֵ͵ʱʹѩ
-			else if(attribute.type()==Attribute.NUMERIC)
-			{
-				double dis=first.value(i)-second.value(i);
-				if(Math.abs(dis)>disChebyshev)
-				{
-					disChebyshev=dis;
-				}
-			}
-		}
-		return distance+disChebyshev;
+		m_Tree.nearestNeighbors(m_Buffers.values(instance), neighbors);
 	}
 
 	/**
 	 * Compute the distribution.
 	 * 
-	 * @param data
-	 *            the training data
+	 * @param neighbors
+	 *            the nearest neighbours
 	 * @exception Exception
 	 *                if classifier can't be built successfully
 	 */
-	private double[] computeDistribution(Instances data, Instance instance)
-			throws Exception
+	private double[] computeDistribution(NeighborHeap neighbors,
+			Instance instance) throws Exception
 	{
 
-		int numClasses = data.numClasses();
+		int numClasses = m_NumClasses;
 		double[] probs = new double[numClasses];
 		double[] classCounts = new double[numClasses];
-		int numInstances = data.numInstances();
+		int numInstances = neighbors.size();
 		for (int i = 0; i < numInstances; i++)
 		{
-			int classVal = (int) data.instance(i).classValue();
+			int classVal = m_ClassValues[neighbors.index(i)];
 			classCounts[classVal]++;
 		}
 		for (int i = 0; i < numClasses; i++)
@@ -179,197 +180,4 @@ public class KNN_ChebyshevDistance extends Classifier
 		}
 	}
 
-	/*
-	 * A class for storing data about a neighboring instance
-	 */
-	private class NeighborNode
-	{
-
-		/** The neighbor instance */
-		private Instance m_Instance;
-
-		/** The distance from the current instance to this neighbor */
-		private double m_Distance;
-
-		/** A link to the next neighbor instance */
-		private NeighborNode m_Next;
-
-		/**
-		 * Create a new neighbor node.
-		 * 
-		 * @param distance
-		 *            the distance to the neighbor
-		 * @param instance
-		 *            the neighbor instance
-		 * @param next
-		 *            the next neighbor node
-		 */
-		public NeighborNode(double distance, Instance instance,
-				NeighborNode next)
-		{
-			m_Distance = distance;
-			m_Instance = instance;
-			m_Next = next;
-		}
-
-		/**
-		 * Create a new neighbor node that doesn't link to any other nodes.
-		 * 
-		 * @param distance
-		 *            the distance to the neighbor
-		 * @param instance
-		 *            the neighbor instance
-		 */
-		public NeighborNode(double distance, Instance instance)
-		{
-
-			this(distance, instance, null);
-		}
-	}
-
-	/*
-	 * A class for a linked list to store the nearest k neighbours to an
-	 * instance.
-	 */
-	private class NeighborList
-	{
-
-		/** The first node in the list */
-		private NeighborNode m_First;
-
-		/** The last node in the list */
-		private NeighborNode m_Last;
-
-		/** The number of nodes to attempt to maintain in the list */
-		private int m_Length = 1;
-
-		/**
-		 * Creates the neighborlist with a desired length
-		 * 
-		 * @param length
-		 *            the length of list to attempt to maintain
-		 */
-		public NeighborList(int length)
-		{
-
-			m_Length = length;
-		}
-
-		/**
-		 * Gets whether the list is empty.
-		 * 
-		 * @return true if so
-		 */
-		public boolean isEmpty()
-		{
-
-			return (m_First == null);
-		}
-
-		/**
-		 * Gets the current length of the list.
-		 * 
-		 * @return the current length of the list
-		 */
-		public int currentLength()
-		{
-
-			int i = 0;
-			NeighborNode current = m_First;
-			while (current != null)
-			{
-				i++;
-				current = current.m_Next;
-			}
-			return i;
-		}
-
-		/**
-		 * Inserts an instance neighbor into the list, maintaining the list
-		 * sorted by distance.
-		 * 
-		 * @param distance
-		 *            the distance to the instance
-		 * @param instance
-		 *            the neighboring instance
-		 */
-		public void insertSorted(double distance, Instance instance)
-		{
-
-			if (isEmpty())
-			{
-				m_First = m_Last = new NeighborNode(distance, instance);
-			} else
-			{
-				NeighborNode current = m_First;
-				if (distance < m_First.m_Distance)
-				{// Insert at head
-					m_First = new NeighborNode(distance, instance, m_First);
-				} else
-				{ // Insert further down the list
-					for (; (current.m_Next != null)
-							&& (current.m_Next.m_Distance < distance); current = current.m_Next)
-						;
-					current.m_Next = new NeighborNode(distance, instance,
-							current.m_Next);
-					if (current.equals(m_Last))
-					{
-						m_Last = current.m_Next;
-					}
-				}
-
-				// Trip down the list until we've got k list elements (or more
-				// if the distance to the last elements is the same).
-				int valcount = 0;
-				for (current = m_First; current.m_Next != null; current = current.m_Next)
-				{
-					valcount++;
-					if ((valcount >= m_Length)
-							&& (current.m_Distance != current.m_Next.m_Distance))
-					{
-						m_Last = current;
-						current.m_Next = null;
-						break;
-					}
-				}
-			}
-		}
-
-		/**
-		 * Prunes the list to contain the k nearest neighbors. If there are
-		 * multiple neighbors at the k'th distance, all will be kept.
-		 * 
-		 * @param k
-		 *            the number of neighbors to keep in the list.
-		 */
-		public void pruneToK(int k)
-		{
-
-			if (isEmpty())
-			{
-				return;
-			}
-			if (k < 1)
-			{
-				k = 1;
-			}
-			int currentK = 0;
-			double currentDist = m_First.m_Distance;
-			NeighborNode current = m_First;
-			for (; current.m_Next != null; current = current.m_Next)
-			{
-				currentK++;
-				currentDist = current.m_Distance;
-				if ((currentK >= k)
-						&& (currentDist != current.m_Next.m_Distance))
-				{
-					m_Last = current;
-					current.m_Next = null;
-					break;
-				}
-			}
-		}
-
-	}
-
 }
@@ -1,6 +1,9 @@
 package weka.classifiers.sk;
 
 import weka.classifiers.*;
+import weka.classifiers.common.HammingIndex;
+import weka.classifiers.common.NeighborHeap;
+import weka.classifiers.common.QueryBuffers;
 import weka.core.*;
 import weka.core.neighboursearch.LinearNNSearch;
 import weka.core.neighboursearch.NearestNeighbourSearch;
@@ -10,7 +13,7 @@ import java.util.*;
 /**
  * Implement an KNN classifier.
  */
-public class KNN_K extends Classifier
+public class KNN_K extends Classifier implements UpdateableClassifier
 {
 
 	/** The training instances used for classification. */
@@ -19,6 +22,12 @@ public class KNN_K extends Classifier
 	/** The number of neighbours to use for classification. */
 	private int m_kNN;
 
+	/** The bit-packed training instances used to compute distances. */
+	private HammingIndex m_Index;
+
+	/** Each thread's buffers for finding the neighbours of a test instance. */
+	private QueryBuffers m_Buffers = new QueryBuffers();
+
 	// kֵϽ
 	protected int m_kNNUpper;
 	// ھӵ
@@ -51,6 +60,7 @@ public class KNN_K extends Classifier
 		m_NumClasses = data.numClasses();
 		m_ClassType = data.classAttribute().type();
 		m_kNN = 10;
+		m_Index = new HammingIndex(m_Train);
 		m_kNNUpper = 11;// (int) Math.sqrt(data.numInstances())+1;
 		m_NumAttributesUsed = 0.0;
 		for (int i = 0; i < m_Train.numAttributes(); i++)
@@ -62,6 +72,30 @@ public class KNN_K extends Classifier
 				m_NumAttributesUsed += 1.0;
 			}
 		}
+		// crossValidate򵥵˵ڵöٸھӺã
+		// m_TrainеѭÿھӣȻͳƿѰҶٸھʱá
+		// k is selected once here and kept with the model for every prediction.
+		crossValidate();
+	}
+
+	/**
+	 * Adds a training instance to the index, without rebuilding it.
+	 * Instances with a missing class are ignored. The number of neighbours
+	 * chosen when the classifier was built is kept.
+	 * 
+	 * @param instance
+	 *            the new training instance
+	 * @exception Exception
+	 *                if the instance can't be added
+	 */
+	public void updateClassifier(Instance instance) throws Exception
+	{
+		if (instance.classIsMissing())
+		{
+			return;
+		}
+		m_Train.add(instance);
+		m_Index.add(instance);
 	}
 
 	protected void crossValidate()
@@ -79,15 +113,17 @@ public class KNN_K extends Classifier
 			}
 
 			m_kNN = m_kNNUpper;
+			NeighborHeap neighbors = new NeighborHeap(m_kNNUpper);
 			Instance instance;
 			Instances neighbours;
 			double[] origDistances, convertedDistances;
 			for (int i = 0; i < m_Train.numInstances(); i++)
 			{
 				instance = m_Train.instance(i);
-				NeighborList neighborList=findNeighbors(instance, m_kNN);
-				neighbours=neighborList.getNeiborInstances();
-				origDistances = getDistances(instance,neighbours);
+				findNeighbors(instance, m_kNN, neighbors);
+				neighbors.sort();
+				neighbours=neighborInstances(neighbors);
+				origDistances = neighborDistances(neighbors);
 
 				for (int j = m_kNNUpper - 1; j >= 0; j--)
 				{
@@ -158,9 +194,11 @@ public class KNN_K extends Classifier
 	public double[] getDistances(Instance instance, Instances neiborInstances)
 	{
 		double[] distances = new double[neiborInstances.numInstances()];
+		long[] query = m_Index.encode(instance);
 		for (int i = 0; i < neiborInstances.numInstances(); i++)
 		{
-			distances[i] = distance(instance, neiborInstances.instance(i));
+			distances[i] = m_Index.distance(query,
+					m_Index.encode(neiborInstances.instance(i)));
 		}
 		return distances;
 	}
@@ -290,12 +328,20 @@ public class KNN_K extends Classifier
 	 */
 	public double[] distributionForInstance(Instance instance) throws Exception
 	{
-		// crossValidate򵥵˵ڵöٸھӺã
-		// m_TrainеѭÿھӣȻͳƿѰҶٸھʱá
-		crossValidate();
-		System.err.println("m_kNN:" + m_kNN);
-		NeighborList neighborlist = findNeighbors(instance, m_kNN);
-		return computeDistribution(neighborInstances(neighborlist), instance);
+		NeighborHeap neighbors = m_Buffers.neighbors(m_kNN);
+		findNeighbors(instance, m_kNN, neighbors);
+		return computeDistribution(neighbors, instance);
+	}
+
+	/**
+	 * Returns the number of neighbours selected by cross-validation when the
+	 * classifier was built.
+	 * 
+	 * @return the selected k
+	 */
+	public int getKNN()
+	{
+		return m_kNN;
 	}
 
 	/**
@@ -303,97 +349,76 @@ public class KNN_K extends Classifier
 	 * 
 	 * @param instance
 	 *            the instance to search for neighbours
-	 * @return a list of neighbors
+	 * @param kNN
+	 *            the number of neighbours
+	 * @param neighbors
+	 *            the heap receiving the neighbours
 	 */
-	private NeighborList findNeighbors(Instance instance, int kNN)
+	private void findNeighbors(Instance instance, int kNN,
+			NeighborHeap neighbors)
 	{
-
-		double distance;
-		NeighborList neighborlist = new NeighborList(kNN);
-		for (int i = 0; i < m_Train.numInstances(); i++)
+		neighbors.clear(kNN);
+		long[] query = m_Buffers.encode(m_Index, instance);
+		for (int i = 0; i < m_Index.numInstances(); i++)
 		{
-			Instance trainInstance = m_Train.instance(i);
-			distance = distance(instance, trainInstance);
-			if (neighborlist.isEmpty() || i < kNN
-					|| distance <= neighborlist.m_Last.m_Distance)
-			{
-				neighborlist.insertSorted(distance, trainInstance);
-			}
+			neighbors.offer(m_Index.distance(query, i), i);
 		}
-		return neighborlist;
-
 	}
 
 	/**
-	 * Turn the list of nearest neighbors into a probability distribution
+	 * Collects the nearest neighbors as a set of instances.
 	 * 
-	 * @param neighborlist
-	 *            the list of nearest neighboring instances
-	 * @return the probability distribution
+	 * @param neighbors
+	 *            the nearest neighbours
+	 * @return the neighbouring instances
 	 */
-	private Instances neighborInstances(NeighborList neighborlist)
-			throws Exception
+	private Instances neighborInstances(NeighborHeap neighbors)
 	{
-
-		Instances neighborInsts = new Instances(m_Train,
-				neighborlist.currentLength());
-		if (!neighborlist.isEmpty())
+		Instances neighborInsts = new Instances(m_Train, neighbors.size());
+		for (int i = 0; i < neighbors.size(); i++)
 		{
-			NeighborNode current = neighborlist.m_First;
-			while (current != null)
-			{
-				neighborInsts.add(current.m_Instance);
-				current = current.m_Next;
-			}
+			neighborInsts.add(m_Train.instance(neighbors.index(i)));
 		}
 		return neighborInsts;
-
 	}
 
 	/**
-	 * Calculates the distance between two instances
+	 * Collects the distances of the nearest neighbors.
 	 * 
-	 * @param first
-	 *            the first instance
-	 * @param second
-	 *            the second instance
-	 * @return the distance between the two given instances
+	 * @param neighbors
+	 *            the nearest neighbours
+	 * @return the distances, in the order of neighborInstances()
 	 */
-	private double distance(Instance first, Instance second)
+	private double[] neighborDistances(NeighborHeap neighbors)
 	{
-
-		double distance = 0;
-		for (int i = 0; i < m_Train.numAttributes(); i++)
+		double[] distances = new double[neighbors.size()];
+		for (int i = 0; i < distances.length; i++)
 		{
-			if (i == m_Train.classIndex())
-				continue;
-			if ((int) first.value(i) != (int) second.value(i))
-			{
-				distance += 1;
-			}
+			distances[i] = neighbors.distance(i);
 		}
-		return distance;
+		return distances;
 	}
 
 	/**
 	 * Compute the distribution.
 	 * 
-	 * @param data
-	 *            the training data
+	 * @param neighbors
+	 *            the nearest neighbours
 	 * @exception Exception
 	 *                if classifier can't be built successfully
 	 */
-	private double[] computeDistribution(Instances data, Instance instance)
-			throws Exception
+	private double[] computeDistribution(NeighborHeap neighbors,
+			Instance instance) throws Exception
 	{
 
-		int numClasses = data.numClasses();
+		int numClasses = m_Train.numClasses();
 		double[] probs = new double[numClasses];
 		double[] classCounts = new double[numClasses];
-		int numInstances = data.numInstances();
+		int numInstances = neighbors.size();
 		for (int i = 0; i < numInstances; i++)
 		{
-			int classVal = (int) data.instance(i).classValue();
+			int classVal = (int) m_Train.instance(neighbors.index(i))
+					.classValue();
 			classCounts[classVal]++;
 		}
 		for (int i = 0; i < numClasses; i++)
@@ -421,240 +446,4 @@ public class KNN_K extends Classifier
 		}
 	}
 
-	/*
-	 * A class for storing data about a neighboring instance
-	 */
-	private class NeighborNode
-	{
-
-		/** The neighbor instance */
-		private Instance m_Instance;
-
-		public Instance getM_Instance()
-		{
-			return m_Instance;
-		}
-
-		public void setM_Instance(Instance m_Instance)
-		{
-			this.m_Instance = m_Instance;
-		}
-
-		public double getM_Distance()
-		{
-			return m_Distance;
-		}
-
-		public void setM_Distance(double m_Distance)
-		{
-			this.m_Distance = m_Distance;
-		}
-
-		public NeighborNode getM_Next()
-		{
-			return m_Next;
-		}
-
-		public void setM_Next(NeighborNode m_Next)
-		{
-			this.m_Next = m_Next;
-		}
-
-		/** The distance from the current instance to this neighbor */
-		private double m_Distance;
-
-		/** A link to the next neighbor instance */
-		private NeighborNode m_Next;
-
-		/**
-		 * Create a new neighbor node.
-		 * 
-		 * @param distance
-		 *            the distance to the neighbor
-		 * @param instance
-		 *            the neighbor instance
-		 * @param next
-		 *            the next neighbor node
-		 */
-		public NeighborNode(double distance, Instance instance,
-				NeighborNode next)
-		{
-			m_Distance = distance;
-			m_Instance = instance;
-			m_Next = next;
-		}
-
-		/**
-		 * Create a new neighbor node that doesn't link to any other nodes.
-		 * 
-		 * @param distance
-		 *            the distance to the neighbor
-		 * @param instance
-		 *            the neighbor instance
-		 */
-		public NeighborNode(double distance, Instance instance)
-		{
-
-			this(distance, instance, null);
-		}
-	}
-
-	/*
-	 * A class for a linked list to store the nearest k neighbours to an
-	 * instance.
-	 */
-	private class NeighborList
-	{
-
-		/** The first node in the list */
-		private NeighborNode m_First;
-
-		/** The last node in the list */
-		private NeighborNode m_Last;
-
-		/** The number of nodes to attempt to maintain in the list */
-		private int m_Length = 1;
-
-		public Instances getNeiborInstances()
-		{
-			Instances neiborInstances = new Instances(m_Train);
-			neiborInstances.delete();
-			NeighborNode current = m_First;
-			while (current != null)
-			{
-				neiborInstances.add(current.getM_Instance());
-				current = current.m_Next;
-			}
-			return neiborInstances;
-		}
-
-		/**
-		 * Creates the neighborlist with a desired length
-		 * 
-		 * @param length
-		 *            the length of list to attempt to maintain
-		 */
-		public NeighborList(int length)
-		{
-
-			m_Length = length;
-		}
-
-		/**
-		 * Gets whether the list is empty.
-		 * 
-		 * @return true if so
-		 */
-		public boolean isEmpty()
-		{
-
-			return (m_First == null);
-		}
-
-		/**
-		 * Gets the current length of the list.
-		 * 
-		 * @return the current length of the list
-		 */
-		public int currentLength()
-		{
-
-			int i = 0;
-			NeighborNode current = m_First;
-			while (current != null)
-			{
-				i++;
-				current = current.m_Next;
-			}
-			return i;
-		}
-
-		/**
-		 * Inserts an instance neighbor into the list, maintaining the list
-		 * sorted by distance.
-		 * 
-		 * @param distance
-		 *            the distance to the instance
-		 * @param instance
-		 *            the neighboring instance
-		 */
-		public void insertSorted(double distance, Instance instance)
-		{
-
-			if (isEmpty())
-			{
-				m_First = m_Last = new NeighborNode(distance, instance);
-			} else
-			{
-				NeighborNode current = m_First;
-				if (distance < m_First.m_Distance)
-				{// Insert at head
-					m_First = new NeighborNode(distance, instance, m_First);
-				} else
-				{ // Insert further down the list
-					for (; (current.m_Next != null)
-							&& (current.m_Next.m_Distance < distance); current = current.m_Next)
-						;
-					current.m_Next = new NeighborNode(distance, instance,
-							current.m_Next);
-					if (current.equals(m_Last))
-					{
-						m_Last = current.m_Next;
-					}
-				}
-
-				// Trip down the list until we've got k list elements (or more
-				// if the distance to the last elements is the same).
-				int valcount = 0;
-				for (current = m_First; current.m_Next != null; current = current.m_Next)
-				{
-					valcount++;
-					if ((valcount >= m_Length)
-							&& (current.m_Distance != current.m_Next.m_Distance))
-					{
-						m_Last = current;
-						current.m_Next = null;
-						break;
-					}
-				}
-			}
-		}
-
-		/**
-		 * Prunes the list to contain the k nearest neighbors. If there are
-		 * multiple neighbors at the k'th distance, all will be kept.
-		 * 
-		 * @param k
-		 *            the number of neighbors to keep in the list.
-		 */
-		public void pruneToK(int k)
-		{
-
-			if (isEmpty())
-			{
-				return;
-			}
-			if (k < 1)
-			{
-				k = 1;
-			}
-			int currentK = 0;
-			double currentDist = m_First.m_Distance;
-			NeighborNode current = m_First;
-			for (; current.m_Next != null; current = current.m_Next)
-			{
-				currentK++;
-				currentDist = current.m_Distance;
-				if ((currentK >= k)
-						&& (currentDist != current.m_Next.m_Distance))
-				{
-					m_Last = current;
-					current.m_Next = null;
-					break;
-				}
-			}
-		}
-
-	}
-
 }
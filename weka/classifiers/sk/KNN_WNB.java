@@ -1,6 +1,10 @@
 package weka.classifiers.sk;
 
 import weka.classifiers.*;
+import weka.classifiers.common.ColumnarInstances;
+import weka.classifiers.common.HammingIndex;
+import weka.classifiers.common.NeighborHeap;
+import weka.classifiers.common.QueryBuffers;
 import weka.core.*;
 
 import java.util.*;
@@ -10,15 +14,21 @@ import java.util.*;
  * @author 
  *
  */
-public class KNN_WNB extends Classifier
+public class KNN_WNB extends Classifier implements UpdateableClassifier
 {
 
-	/** The training instances used for classification. */
-	private Instances m_Train;
+	/** The coded training instances the naive Bayes models count. */
+	private ColumnarInstances m_Columns;
 
 	/** The number of neighbours to use for classification. */
 	private int m_kNN;
 
+	/** The bit-packed training instances used to compute distances. */
+	private HammingIndex m_Index;
+
+	/** Each thread's buffers for finding the neighbours of a test instance. */
+	private QueryBuffers m_Buffers = new QueryBuffers();
+
 	/**
 	 * Builds KNN classifier.
 	 * 
@@ -30,8 +40,28 @@ public class KNN_WNB extends Classifier
 	public void buildClassifier(Instances data) throws Exception
 	{
 		// initial data
-		m_Train = new Instances(data);
+		m_Columns = new ColumnarInstances(data);
 		m_kNN = 10;
+		m_Index = new HammingIndex(data);
+	}
+
+	/**
+	 * Adds a training instance to the coded instances and the index,
+	 * without rebuilding them. Instances with a missing class are ignored.
+	 * 
+	 * @param instance
+	 *            the new training instance
+	 * @exception Exception
+	 *                if the instance can't be added
+	 */
+	public void updateClassifier(Instance instance) throws Exception
+	{
+		if (instance.classIsMissing())
+		{
+			return;
+		}
+		m_Columns.add(instance);
+		m_Index.add(instance);
 	}
 
 	/**
@@ -43,25 +73,26 @@ public class KNN_WNB extends Classifier
 	 */
 	public double[] distributionForInstance(Instance instance) throws Exception
 	{
-		NeighborList neighborlist = findNeighbors(instance, m_kNN);
-		NB nb=new NB();
-		nb.buildClassifier(neighborInstances(neighborlist));
+		NeighborHeap neighbors = m_Buffers.neighbors(m_kNN);
+		findNeighbors(instance, neighbors);
+		NB nb=new NB(m_Columns, m_Buffers.rows(neighbors), 0, neighbors.size());
 		return nb.distributionForInstance(instance);
 	}
 
-	private double[] computeDistribution(NeighborList neighborlist,
+	private double[] computeDistribution(NeighborHeap neighbors,
 			Instance instance) throws Exception
 	{
-		Instances data=neighborInstances(neighborlist);
-		int numClasses = data.numClasses();
+		// visit the neighbours nearest first so the weights add up in the
+		// same order as before
+		neighbors.sort();
+		int numClasses = m_Columns.numClasses();
 		double[] probs = new double[numClasses];
 		double[] classCounts = new double[numClasses];
-		int numInstances = data.numInstances();
-		double distances[]=neiborDistances(neighborlist);
+		int numInstances = neighbors.size();
 		for (int i = 0; i < numInstances; i++)
 		{
-			int classVal = (int) data.instance(i).classValue();
-			classCounts[classVal]+=1*(1/Math.pow(distances[i], 2)+1);
+			int classVal = m_Columns.classValues()[neighbors.index(i)];
+			classCounts[classVal]+=1*(1/Math.pow(neighbors.distance(i), 2)+1);
 		}
 		for (int i = 0; i < numClasses; i++)
 		{
@@ -113,104 +144,19 @@ public class KNN_WNB extends Classifier
 	 * 
 	 * @param instance
 	 *            the instance to search for neighbours
-	 * @return a list of neighbors
+	 * @param neighbors
+	 *            the heap receiving the neighbours
 	 */
-	private NeighborList findNeighbors(Instance instance, int kNN)
+	private void findNeighbors(Instance instance, NeighborHeap neighbors)
 	{
-
-		double distance;
-		NeighborList neighborlist = new NeighborList(kNN);
-		for (int i = 0; i < m_Train.numInstances(); i++)
+		neighbors.clear();
+		long[] query = m_Buffers.encode(m_Index, instance);
+		for (int i = 0; i < m_Index.numInstances(); i++)
 		{
-			Instance trainInstance = m_Train.instance(i);
-			distance = distance(instance, trainInstance);
-			if (neighborlist.isEmpty() || i < kNN
-					|| distance <= neighborlist.m_Last.m_Distance)
-			{
-				neighborlist.insertSorted(distance, trainInstance);
-			}
+			neighbors.offer(m_Index.distance(query, i), i);
 		}
-		return neighborlist;
-
 	}
 
-	/**
-	 * Turn the list of nearest neighbors into a probability distribution
-	 * 
-	 * @param neighborlist
-	 *            the list of nearest neighboring instances
-	 * @return the probability distribution
-	 */
-	private Instances neighborInstances(NeighborList neighborlist)
-			throws Exception
-	{
-
-		Instances neighborInsts = new Instances(m_Train,
-				neighborlist.currentLength());
-		if (!neighborlist.isEmpty())
-		{
-			NeighborNode current = neighborlist.m_First;
-			while (current != null)
-			{
-				neighborInsts.add(current.m_Instance);
-				current = current.m_Next;
-			}
-		}
-		return neighborInsts;
-
-	}
-	
-	/**
-	 * õھӵľ
-	 * @param neighborlist ھб
-	 * @return 
-	 */
-	private double[] neiborDistances(NeighborList neighborlist)
-	{
-		double distances[]=new double[neighborlist.currentLength()];
-		
-		if (!neighborlist.isEmpty())
-		{
-			NeighborNode current = neighborlist.m_First;
-			int i=0;
-			while (current != null)
-			{
-				distances[i]=current.m_Distance;
-				current = current.m_Next;
-				i++;
-			}
-			i=0;
-		}
-		return distances;
-	}
-	
-	/**
-	 * Calculates the distance between two instances
-	 * 
-	 * @param first
-	 *            the first instance
-	 * @param second
-	 *            the second instance
-	 * @return the distance between the two given instances
-	 */
-	private double distance(Instance first, Instance second)
-	{
-
-		double distance = 0;
-		for (int i = 0; i < m_Train.numAttributes(); i++)
-		{
-			if (i == m_Train.classIndex())
-				continue;
-			if ((int) first.value(i) != (int) second.value(i))
-			{
-				distance += 1;
-			}
-		}
-		return distance;
-	}
-
-	
-
 	/**
 	 * Main method.
 	 * 
@@ -229,197 +175,4 @@ public class KNN_WNB extends Classifier
 		}
 	}
 
-	/*
-	 * A class for storing data about a neighboring instance
-	 */
-	private class NeighborNode
-	{
-
-		/** The neighbor instance */
-		private Instance m_Instance;
-
-		/** The distance from the current instance to this neighbor */
-		private double m_Distance;
-
-		/** A link to the next neighbor instance */
-		private NeighborNode m_Next;
-
-		/**
-		 * Create a new neighbor node.
-		 * 
-		 * @param distance
-		 *            the distance to the neighbor
-		 * @param instance
-		 *            the neighbor instance
-		 * @param next
-		 *            the next neighbor node
-		 */
-		public NeighborNode(double distance, Instance instance,
-				NeighborNode next)
-		{
-			m_Distance = distance;
-			m_Instance = instance;
-			m_Next = next;
-		}
-
-		/**
-		 * Create a new neighbor node that doesn't link to any other nodes.
-		 * 
-		 * @param distance
-		 *            the distance to the neighbor
-		 * @param instance
-		 *            the neighbor instance
-		 */
-		public NeighborNode(double distance, Instance instance)
-		{
-
-			this(distance, instance, null);
-		}
-	}
-
-	/*
-	 * A class for a linked list to store the nearest k neighbours to an
-	 * instance.
-	 */
-	private class NeighborList
-	{
-
-		/** The first node in the list */
-		private NeighborNode m_First;
-
-		/** The last node in the list */
-		private NeighborNode m_Last;
-
-		/** The number of nodes to attempt to maintain in the list */
-		private int m_Length = 1;
-
-		/**
-		 * Creates the neighborlist with a desired length
-		 * 
-		 * @param length
-		 *            the length of list to attempt to maintain
-		 */
-		public NeighborList(int length)
-		{
-
-			m_Length = length;
-		}
-
-		/**
-		 * Gets whether the list is empty.
-		 * 
-		 * @return true if so
-		 */
-		public boolean isEmpty()
-		{
-
-			return (m_First == null);
-		}
-
-		/**
-		 * Gets the current length of the list.
-		 * 
-		 * @return the current length of the list
-		 */
-		public int currentLength()
-		{
-
-			int i = 0;
-			NeighborNode current = m_First;
-			while (current != null)
-			{
-				i++;
-				current = current.m_Next;
-			}
-			return i;
-		}
-
-		/**
-		 * Inserts an instance neighbor into the list, maintaining the list
-		 * sorted by distance.
-		 * 
-		 * @param distance
-		 *            the distance to the instance
-		 * @param instance
-		 *            the neighboring instance
-		 */
-		public void insertSorted(double distance, Instance instance)
-		{
-
-			if (isEmpty())
-			{
-				m_First = m_Last = new NeighborNode(distance, instance);
-			} else
-			{
-				NeighborNode current = m_First;
-				if (distance < m_First.m_Distance)
-				{// Insert at head
-					m_First = new NeighborNode(distance, instance, m_First);
-				} else
-				{ // Insert further down the list
-					for (; (current.m_Next != null)
-							&& (current.m_Next.m_Distance < distance); current = current.m_Next)
-						;
-					current.m_Next = new NeighborNode(distance, instance,
-							current.m_Next);
-					if (current.equals(m_Last))
-					{
-						m_Last = current.m_Next;
-					}
-				}
-
-				// Trip down the list until we've got k list elements (or more
-				// if the distance to the last elements is the same).
-				int valcount = 0;
-				for (current = m_First; current.m_Next != null; current = current.m_Next)
-				{
-					valcount++;
-					if ((valcount >= m_Length)
-							&& (current.m_Distance != current.m_Next.m_Distance))
-					{
-						m_Last = current;
-						current.m_Next = null;
-						break;
-					}
-				}
-			}
-		}
-
-		/**
-		 * Prunes the list to contain the k nearest neighbors. If there are
-		 * multiple neighbors at the k'th distance, all will be kept.
-		 * 
-		 * @param k
-		 *            the number of neighbors to keep in the list.
-		 */
-		public void pruneToK(int k)
-		{
-
-			if (isEmpty())
-			{
-				return;
-			}
-			if (k < 1)
-			{
-				k = 1;
-			}
-			int currentK = 0;
-			double currentDist = m_First.m_Distance;
-			NeighborNode current = m_First;
-			for (; current.m_Next != null; current = current.m_Next)
-			{
-				currentK++;
-				currentDist = current.m_Distance;
-				if ((currentK >= k)
-						&& (currentDist != current.m_Next.m_Distance))
-				{
-					m_Last = current;
-					current.m_Next = null;
-					break;
-				}
-			}
-		}
-
-	}
-
 }
@@ -2,11 +2,14 @@ package weka.classifiers.sk;
 
 import weka.core.*;
 import weka.classifiers.*;
+import weka.classifiers.common.ArffStream;
+import weka.classifiers.common.ColumnarInstances;
+import java.io.IOException;
 
 /**
  * Implement the NB classifier.
  */
-public class NB extends Classifier
+public class NB extends Classifier implements UpdateableClassifier
 {
 	/** The number of class and each attribute value occurs in the dataset 
 	 * ݼÿȡֵֵĸ         ĸ    P(xk|ci)*/
@@ -42,7 +45,26 @@ public class NB extends Classifier
 
 	public NB(Instances data)
 	{
-		initVariables(data);
+		ColumnarInstances columns = new ColumnarInstances(data);
+		initVariables(columns, columns.newRows(), 0, columns.numInstances());
+	}
+
+	/**
+	 * Generates the classifier from a range of rows of coded instances,
+	 * without copying them.
+	 * 
+	 * @param data
+	 *            the coded instances
+	 * @param rows
+	 *            the row indices
+	 * @param start
+	 *            the first position of the range
+	 * @param end
+	 *            the position after the last one of the range
+	 */
+	public NB(ColumnarInstances data, int[] rows, int start, int end)
+	{
+		initVariables(data, rows, start, end);
 	}
 	
 	public NB()
@@ -59,20 +81,43 @@ public class NB extends Classifier
 	 */
 	public void buildClassifier(Instances instances) throws Exception
 	{
-		initVariables(instances);
+		ColumnarInstances columns = new ColumnarInstances(instances);
+		initVariables(columns, columns.newRows(), 0, columns.numInstances());
+	}
+
+	/**
+	 * Generates the classifier from coded instances, such as those loaded by
+	 * ColumnarFile, without copying them.
+	 * 
+	 * @param columns
+	 *            the coded training data
+	 * @exception Exception
+	 *                if the classifier has not been generated successfully
+	 */
+	public void buildClassifier(ColumnarInstances columns) throws Exception
+	{
+		initVariables(columns, columns.newRows(), 0, columns.numInstances());
 	}
 	
 	/**
 	 * ʼеĳԱ
 	 * @param instances
+	 *            the coded training instances
+	 * @param rows
+	 *            the row indices
+	 * @param start
+	 *            the first position of the training rows
+	 * @param end
+	 *            the position after the last one of the training rows
 	 */
-	private void initVariables(Instances instances)
+	private void initVariables(ColumnarInstances instances, int[] rows,
+			int start, int end)
 	{
 		// reset variable
 		m_NumClasses = instances.numClasses();
 		m_ClassIndex = instances.classIndex();
 		m_NumAttributes = instances.numAttributes();
-		m_NumInstances = instances.numInstances();
+		m_NumInstances = end - start;
 		m_TotalAttValues = 0;
 		// allocate space for attribute reference arrays
 		//ռ
@@ -102,28 +147,87 @@ public class NB extends Classifier
 		 * no
 		 */
 		m_ClassAttCounts = new double[m_NumClasses][m_TotalAttValues];
-		// Calculate the counts
-		for (int k = 0; k < m_NumInstances; k++)
+		// Calculate the counts, one column at a time
+		int[] classValues = instances.classValues();
+		for (int k = start; k < end; k++)
 		{
-			int classVal = (int) instances.instance(k).classValue();
-			m_ClassCounts[classVal]++;
-			int[] attIndex = new int[m_NumAttributes];
-			for (int i = 0; i < m_NumAttributes; i++)
+			m_ClassCounts[classValues[rows[k]]]++;
+		}
+		for (int i = 0; i < m_NumAttributes; i++)
+		{
+			if (i == m_ClassIndex || !instances.isNominal(i))
+				continue;
+			double[][] counts = new double[m_NumAttValues[i]][m_NumClasses];
+			instances.count(i, rows, start, end, counts,
+					new double[m_NumAttValues[i]]);
+			for (int j = 0; j < m_NumAttValues[i]; j++)
 			{
-				if (i == m_ClassIndex)
-				{
-					attIndex[i] = -1;
-				}
-				else
+				for (int classVal = 0; classVal < m_NumClasses; classVal++)
 				{
-					attIndex[i] = m_StartAttIndex[i]
-							+ (int) instances.instance(k).value(i);
-					m_ClassAttCounts[classVal][attIndex[i]]++;
+					m_ClassAttCounts[classVal][m_StartAttIndex[i] + j] = counts[j][classVal];
 				}
 			}
 		}
 	}
 
+	/**
+	 * Adds an instance to the counts, without recounting the instances the
+	 * classifier was built from. Instances with a missing class are ignored.
+	 * 
+	 * @param instance
+	 *            the new training instance
+	 * @exception Exception
+	 *                if the instance can't be added
+	 */
+	public void updateClassifier(Instance instance) throws Exception
+	{
+		if (instance.classIsMissing())
+			return;
+		int classVal = (int) instance.classValue();
+		m_ClassCounts[classVal]++;
+		for (int att = 0; att < m_NumAttributes; att++)
+		{
+			if (att == m_ClassIndex || !instance.attribute(att).isNominal())
+				continue;
+			m_ClassAttCounts[classVal][m_StartAttIndex[att]
+					+ (int) instance.value(att)]++;
+		}
+		m_NumInstances++;
+	}
+
+	/**
+	 * Generates the classifier from the rows of a stream, reading it to its
+	 * end. The counts are the same as from the rows loaded as instances, but
+	 * no row is kept.
+	 * 
+	 * @param stream
+	 *            the stream, with its class index set
+	 * @exception IOException
+	 *                if a row can't be read
+	 */
+	public void buildClassifier(ArffStream stream) throws IOException
+	{
+		ColumnarInstances columns = new ColumnarInstances(stream.getStructure());
+		initVariables(columns, columns.newRows(), 0, 0);
+		double[] values = new double[m_NumAttributes];
+		while (stream.next(values))
+		{
+			if (Instance.isMissingValue(values[m_ClassIndex]))
+				continue;
+			int classVal = (int) values[m_ClassIndex];
+			m_ClassCounts[classVal]++;
+			for (int att = 0; att < m_NumAttributes; att++)
+			{
+				// numeric attributes have no values to count
+				if (att == m_ClassIndex || m_NumAttValues[att] == 0)
+					continue;
+				m_ClassAttCounts[classVal][m_StartAttIndex[att]
+						+ (int) values[att]]++;
+			}
+			m_NumInstances++;
+		}
+	}
+
 	/**
 	 * Calculates the class membership probabilities for the given test instance
 	 * 
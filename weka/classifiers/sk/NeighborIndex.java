@@ -0,0 +1,35 @@
+package weka.classifiers.sk;
+
+import java.io.Serializable;
+
+import weka.classifiers.common.NeighborHeap;
+import weka.core.Instance;
+
+/**
+ * An index over the training instances of a KNN classifier that finds the
+ * nearest neighbours of a query from its attribute values, implemented by
+ * KDTree and BallTree. An index is saved along with its classifier.
+ */
+public interface NeighborIndex extends Serializable
+{
+	/**
+	 * Appends a training instance to the index.
+	 *
+	 * @param instance
+	 *            the instance, with the same attributes as the others
+	 * @return the index of the instance
+	 */
+	int add(Instance instance);
+
+	/**
+	 * Finds the k nearest training instances to the given attribute values.
+	 * If there are several instances at the k-th distance, all of them are
+	 * kept.
+	 *
+	 * @param query
+	 *            the attribute values to search neighbours for
+	 * @param neighbors
+	 *            the heap receiving the neighbours, cleared first
+	 */
+	void nearestNeighbors(double[] query, NeighborHeap neighbors);
+}
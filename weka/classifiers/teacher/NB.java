@@ -7,11 +7,12 @@ package weka.classifiers.teacher;
 
 import weka.core.*;
 import weka.classifiers.*;
+import weka.classifiers.common.ColumnarInstances;
 
 /**
  * Implement the NB classifier.
  */
-public class NB extends Classifier {
+public class NB extends Classifier implements UpdateableClassifier {
 
   /** The number of class and each attribute value occurs in the dataset */
   private double [][] m_ClassAttCounts;
@@ -73,23 +74,44 @@ public class NB extends Classifier {
     // allocate space for counts and frequencies
     m_ClassCounts = new double[m_NumClasses];
     m_ClassAttCounts = new double[m_NumClasses][m_TotalAttValues];
-    // Calculate the counts
+    // Calculate the counts, one column at a time
+    ColumnarInstances columns = new ColumnarInstances(instances);
+    int[] rows = columns.newRows();
+    int[] classValues = columns.classValues();
     for(int k = 0; k < m_NumInstances; k++) {
-      int classVal=(int)instances.instance(k).classValue();
-      m_ClassCounts[classVal] ++;
-      int[] attIndex = new int[m_NumAttributes];
-      for(int i = 0; i < m_NumAttributes; i++) {
-        if(i == m_ClassIndex){
-          attIndex[i] = -1;
-        }
-        else{
-          attIndex[i] = m_StartAttIndex[i] + (int)instances.instance(k).value(i);
-          m_ClassAttCounts[classVal][attIndex[i]]++;
+      m_ClassCounts[classValues[k]] ++;
+    }
+    for(int i = 0; i < m_NumAttributes; i++) {
+      if(i == m_ClassIndex || !columns.isNominal(i)) continue;
+      double[][] counts = new double[m_NumAttValues[i]][m_NumClasses];
+      columns.count(i, rows, 0, m_NumInstances, counts, new double[m_NumAttValues[i]]);
+      for(int j = 0; j < m_NumAttValues[i]; j++) {
+        for(int classVal = 0; classVal < m_NumClasses; classVal++) {
+          m_ClassAttCounts[classVal][m_StartAttIndex[i] + j] = counts[j][classVal];
         }
       }
     }
   }
 
+  /**
+   * Adds an instance to the counts, without recounting the instances the
+   * classifier was built from. Instances with a missing class are ignored.
+   *
+   * @param instance the new training instance
+   * @exception Exception if the instance can't be added
+   */
+  public void updateClassifier(Instance instance) throws Exception {
+
+    if(instance.classIsMissing()) return;
+    int classVal = (int)instance.classValue();
+    m_ClassCounts[classVal] ++;
+    for(int att = 0; att < m_NumAttributes; att++) {
+      if(att == m_ClassIndex || !instance.attribute(att).isNominal()) continue;
+      m_ClassAttCounts[classVal][m_StartAttIndex[att] + (int)instance.value(att)] ++;
+    }
+    m_NumInstances ++;
+  }
+
    /**
     * Calculates the class membership probabilities for the given test instance
     *